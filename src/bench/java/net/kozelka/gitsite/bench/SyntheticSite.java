@@ -0,0 +1,106 @@
+package net.kozelka.gitsite.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Generates staging sites of given number of files, with sizes and directory fan-out resembling a generated maven site with javadoc:
+ * mostly small pages, some stylesheets and scripts, few images and archives.
+ * <p>
+ * Sites are generated once into <code>target/bench-sites</code> and reused by subsequent runs.
+ * Note that the largest one (1M files) needs about 10 GB of disk space.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public final class SyntheticSite {
+    private static final int FILES_PER_DIRECTORY = 64;
+    private static final int DIRECTORIES_PER_DIRECTORY = 16;
+    private static final String[] PAGE_EXTENSIONS = {".html", ".html", ".html", ".css", ".js"};
+
+    private SyntheticSite() {
+    }
+
+    /**
+     * @return directory with the site, generated if it does not exist yet
+     */
+    public static File prepare(int fileCount) throws IOException {
+        final File sitesDir = new File("target/bench-sites").getAbsoluteFile();
+        final File site = new File(sitesDir, "site-" + fileCount);
+        final File complete = new File(sitesDir, "site-" + fileCount + ".complete");
+        if (!complete.isFile()) {
+            FileUtils.deleteDirectory(site);
+            generate(site, fileCount, 42);
+            complete.createNewFile();
+        }
+        return site;
+    }
+
+    /**
+     * Writes the site; same seed produces the same site.
+     */
+    public static void generate(File site, int fileCount, long seed) throws IOException {
+        final Random random = new Random(seed);
+        final byte[] text = new byte[1024 * 1024];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) (i % 80 == 79 ? '\n' : 'a' + random.nextInt(26));
+        }
+        int written = 0;
+        int directoryIndex = 0;
+        while (written < fileCount) {
+            final File dir = new File(site, directoryPath(directoryIndex++));
+            dir.mkdirs();
+            for (int i = 0; i < FILES_PER_DIRECTORY && written < fileCount; i++, written++) {
+                final boolean binary = random.nextInt(20) == 0;
+                final String name = binary ? "image-" + i + ".png" : "page-" + i + PAGE_EXTENSIONS[random.nextInt(PAGE_EXTENSIONS.length)];
+                writeFile(new File(dir, name), text, fileSize(random));
+            }
+        }
+    }
+
+    /**
+     * @return path of n-th directory in breadth-first order of a tree with fixed fan-out, "" being the root
+     */
+    static String directoryPath(int n) {
+        if (n == 0) {
+            return "";
+        }
+        final int parent = (n - 1) / DIRECTORIES_PER_DIRECTORY;
+        final String parentPath = directoryPath(parent);
+        final String name = "dir" + ((n - 1) % DIRECTORIES_PER_DIRECTORY);
+        return parentPath.length() == 0 ? name : parentPath + "/" + name;
+    }
+
+    /**
+     * 80% of files 0.5-4 kB, 15% 4-32 kB, 4.5% 32-128 kB, 0.5% 128 kB - 1 MB; about 11 kB on average.
+     */
+    static int fileSize(Random random) {
+        final int percentile = random.nextInt(1000);
+        if (percentile < 800) {
+            return 512 + random.nextInt(3584);
+        } else if (percentile < 950) {
+            return 4096 + random.nextInt(28672);
+        } else if (percentile < 995) {
+            return 32768 + random.nextInt(98304);
+        }
+        return 131072 + random.nextInt(917504);
+    }
+
+    private static void writeFile(File file, byte[] text, int size) throws IOException {
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            int remaining = size;
+            while (remaining > 0) {
+                final int chunk = Math.min(remaining, text.length);
+                os.write(text, (size * 31) % (text.length - chunk + 1), chunk);
+                remaining -= chunk;
+            }
+        } finally {
+            os.close();
+        }
+    }
+}
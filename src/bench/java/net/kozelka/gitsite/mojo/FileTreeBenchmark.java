@@ -0,0 +1,105 @@
+package net.kozelka.gitsite.mojo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.kozelka.gitsite.bench.SyntheticSite;
+import net.kozelka.gitsite.sync.SiteScan;
+import net.kozelka.gitsite.sync.SiteSync;
+import net.kozelka.gitsite.sync.StatCache;
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * File tree operations performed by {@link GitSiteDeployMojo} on a staged site:
+ * the excludes-based scan, the <code>fileCount</code> walk and its streaming replacement, the former delete-all-then-copy-all into the work tree,
+ * and {@link SiteSync} re-deploying an unchanged site, with and without the {@link StatCache}.
+ * Each operation is measured as a single shot, as it would run once per deployment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class FileTreeBenchmark {
+    private static final String EXCLUDES = ".git/**,VERSION/**,BRANCH/**";
+    private static final List<String> PROTECTED_ROOTS = Arrays.asList(".git", "VERSION", "BRANCH");
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int files;
+
+    private File site;
+    private File copyTarget;
+    private File syncTarget;
+    private File statCacheFile;
+
+    @Setup(Level.Trial)
+    public void prepareSite() throws IOException {
+        site = SyntheticSite.prepare(files);
+        copyTarget = new File(site.getParentFile(), site.getName() + ".copy");
+        syncTarget = new File(site.getParentFile(), site.getName() + ".sync");
+        statCacheFile = new File(site.getParentFile(), site.getName() + ".stat-cache");
+        if (!syncTarget.isDirectory()) {
+            FileUtils.copyDirectoryStructure(site, syncTarget);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void prepareCopyTarget() throws IOException {
+        if (!copyTarget.isDirectory()) {
+            FileUtils.copyDirectoryStructure(site, copyTarget);
+        }
+    }
+
+    @Benchmark
+    public int excludesScan() throws IOException {
+        return FileUtils.getFiles(site, null, EXCLUDES).size();
+    }
+
+    @Benchmark
+    public int fileCount() throws IOException {
+        return FileUtils.getFiles(site, null, null, false).size();
+    }
+
+    @Benchmark
+    public int siteScan() throws IOException {
+        return SiteScan.of(site).getFiles();
+    }
+
+    @Benchmark
+    public void deleteThenCopy() throws IOException {
+        for (File file : FileUtils.getFiles(copyTarget, null, EXCLUDES)) {
+            FileUtils.fileDelete(file.getAbsolutePath());
+        }
+        FileUtils.copyDirectoryStructure(site, copyTarget);
+    }
+
+    @Benchmark
+    public SiteSync.Stats syncUnchanged() throws IOException {
+        return new SiteSync(PROTECTED_ROOTS).sync(site, syncTarget);
+    }
+
+    @Benchmark
+    public SiteSync.Stats syncUnchangedStatCache() throws IOException {
+        final StatCache statCache = StatCache.open(statCacheFile);
+        final SiteSync siteSync = new SiteSync(PROTECTED_ROOTS);
+        siteSync.setStatCache(statCache, "");
+        final SiteSync.Stats stats = siteSync.sync(site, syncTarget);
+        statCache.save();
+        return stats;
+    }
+}
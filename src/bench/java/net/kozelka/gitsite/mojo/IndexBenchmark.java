@@ -0,0 +1,68 @@
+package net.kozelka.gitsite.mojo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Updating the subcontext index with many subcontexts, checked either on disk (work tree mode) or against the git tree (sparse and fast-import modes).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexBenchmark {
+    private static final List<String> NEW_SUBCONTEXT = Collections.singletonList("/VERSION/new");
+
+    @Param({"10", "1000", "100000"})
+    int subcontexts;
+
+    private String indexContent;
+    private Set<String> subcontextsInTree;
+    private File workDir;
+
+    @Setup(Level.Trial)
+    public void prepareIndex() throws IOException {
+        workDir = new File("target/bench-sites/index-" + subcontexts).getAbsoluteFile();
+        final StringBuilder sb = new StringBuilder();
+        subcontextsInTree = new HashSet<String>();
+        for (int i = 0; i < subcontexts; i++) {
+            final String subcontext = String.format("/VERSION/1.%d", i);
+            sb.append(subcontext).append("\n");
+            subcontextsInTree.add(subcontext);
+            new File(workDir, subcontext).mkdirs();
+        }
+        indexContent = sb.toString();
+        FileUtils.mkdir(new File(workDir, "/VERSION/new").getPath());
+        subcontextsInTree.add("/VERSION/new");
+    }
+
+    @Benchmark
+    public String mergeOnDisk() throws IOException {
+        return GitSiteDeployMojo.mergeIndex(indexContent, NEW_SUBCONTEXT, workDir, null, null);
+    }
+
+    @Benchmark
+    public String mergeInTree() throws IOException {
+        return GitSiteDeployMojo.mergeIndex(indexContent, NEW_SUBCONTEXT, null, subcontextsInTree, null);
+    }
+}
@@ -0,0 +1,89 @@
+package net.kozelka.gitsite.utils;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handling of process output at high line rates, like a verbose push: capturing all lines and matching afterwards,
+ * versus the bounded capture matching while the lines stream in; optionally with the deploy log written in background.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShellExecutorBenchmark {
+    private static final Pattern NOT_FOUND = Pattern.compile(".*couldn't find remote ref.*");
+    private static final StreamConsumer DISCARD = new StreamConsumer() {
+        public void consumeLine(String line) {
+        }
+    };
+
+    @Param({"10000", "1000000"})
+    int lines;
+
+    @Param({"false", "true"})
+    boolean fileLog;
+
+    private ShellExecutor shell;
+    private AsyncFileLog log;
+
+    @Setup
+    public void prepareShell() {
+        shell = new ShellExecutor();
+        shell.setInfo(DISCARD);
+        if (fileLog) {
+            log = new AsyncFileLog(new File("target/bench-sites/shell.log"), 10 * 1024 * 1024, new SystemStreamLog());
+            final StreamConsumer logging = new StreamConsumer() {
+                public void consumeLine(String line) {
+                    log.log("WARN", line);
+                }
+            };
+            shell.setStdout(logging);
+            shell.setStderr(logging);
+        } else {
+            shell.setStdout(DISCARD);
+            shell.setStderr(DISCARD);
+        }
+    }
+
+    @TearDown
+    public void closeLog() {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private String[] command() {
+        return new String[] {"-c", String.format("awk 'BEGIN { for (i = 0; i < %d; i++) print \"remote: Resolving deltas: \" i }'", lines)};
+    }
+
+    @Benchmark
+    public boolean unbounded() throws Exception {
+        final ShellExecutor.Result result = shell.execWithResult("sh", command());
+        return result.stdoutContains(NOT_FOUND);
+    }
+
+    @Benchmark
+    public boolean boundedWatched() throws Exception {
+        final ShellExecutor.Result result = new ShellExecutor.Result(100).watchStdout(NOT_FOUND);
+        shell.execWithResult(result, "sh", command());
+        return result.stdoutContains(NOT_FOUND);
+    }
+}
@@ -0,0 +1,2 @@
+import it.BareRemoteIT
+assert BareRemoteIT.prepare(basedir, ["bare-remote/cli", "bare-remote/jgit"], context)
@@ -0,0 +1,2 @@
+import it.BareRemoteIT
+assert BareRemoteIT.verify(basedir, ["bare-remote/cli", "bare-remote/jgit"], context)
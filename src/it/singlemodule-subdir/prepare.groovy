@@ -1,2 +1,2 @@
 import it.SingleModuleIT
-assert SingleModuleIT.prepare(basedir, localRepositoryPath, "singlemodule-subdir/gitsite", context)
+assert SingleModuleIT.prepare(basedir, localRepositoryPath, ["singlemodule-subdir/cli", "singlemodule-subdir/jgit"], context)
@@ -1,2 +1,2 @@
 import it.SingleModuleIT
-assert SingleModuleIT.verify(basedir, localRepositoryPath, context)
+assert SingleModuleIT.verify(basedir, localRepositoryPath, ["singlemodule-subdir/cli", "singlemodule-subdir/jgit"], context)
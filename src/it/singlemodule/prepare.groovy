@@ -1,2 +1,2 @@
 import it.SingleModuleIT
-assert SingleModuleIT.prepare(basedir, localRepositoryPath, "singlemodule/gitsite", context)
+assert SingleModuleIT.prepare(basedir, localRepositoryPath, ["singlemodule/cli", "singlemodule/jgit"], context)
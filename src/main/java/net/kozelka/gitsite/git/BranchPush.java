@@ -0,0 +1,218 @@
+package net.kozelka.gitsite.git;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.kozelka.gitsite.utils.DeployMetrics;
+import net.kozelka.gitsite.utils.ShellExecutor;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Pushes a local commit into the site branch of the primary remote, and then into the mirrors.
+ * <p>
+ * A push rejected because the remote branch has moved on is reported to the caller, which builds the commit again on top of the new tip;
+ * {@link #awaitRetry} spreads such attempts of concurrent publishers out in time.
+ * A new branch may be pushed in bounded parts (see {@link ChunkedCommit}), and the history may be collapsed before the push (see {@link HistoryRetention}).
+ * The mirrors are pushed only after the primary remote has accepted the commit.
+ * </p>
+ * <p>
+ * Each method works in the repository that the given shell works in.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class BranchPush {
+    private static final String CHUNKS_REF = "refs/gitsite/chunks";
+
+    private final String branch;
+    private final Log log;
+    private List<String> mirrorUrls = Collections.emptyList();
+    private int mirrorTimeoutSeconds;
+    private boolean mirrorsRequired;
+    private int attempts = 1;
+    private long retryDelay;
+    private ChunkedCommit chunkedCommit = new ChunkedCommit(0, 0);
+    private boolean squashChunks = true;
+    private HistoryRetention retention = new HistoryRetention(0, 0);
+
+    public BranchPush(String branch, Log log) {
+        this.branch = branch;
+        this.log = log;
+    }
+
+    /**
+     * @param urls remotes to force-push into after the primary one
+     * @param timeoutSeconds how long each push may take; 0 for no limit
+     * @param required whether a failed mirror fails the push
+     */
+    public void setMirrors(List<String> urls, int timeoutSeconds, boolean required) {
+        this.mirrorUrls = urls;
+        this.mirrorTimeoutSeconds = timeoutSeconds;
+        this.mirrorsRequired = required;
+    }
+
+    /**
+     * @param attempts how many times the push may be tried
+     * @param delay initial delay between attempts, in milliseconds
+     */
+    public void setRetries(int attempts, long delay) {
+        this.attempts = attempts;
+        this.retryDelay = delay;
+    }
+
+    /**
+     * @param squash whether the parts are finally replaced with the original commit
+     */
+    public void setChunks(ChunkedCommit chunkedCommit, boolean squash) {
+        this.chunkedCommit = chunkedCommit;
+        this.squashChunks = squash;
+    }
+
+    public void setRetention(HistoryRetention retention) {
+        this.retention = retention;
+    }
+
+    public HistoryRetention getRetention() {
+        return retention;
+    }
+
+    /**
+     * Pushes given local ref into the branch, without force unless the options say so; then pushes the mirrors.
+     *
+     * @return false if the push was rejected because the remote branch has moved on meanwhile; the mirrors are left untouched then
+     */
+    public boolean push(ShellExecutor shell, DeployMetrics metrics, String localRef, String... options) throws CommandLineException, IOException {
+        final List<String> args = new ArrayList<String>(Arrays.asList("push", "origin", localRef + ":refs/heads/" + branch));
+        args.addAll(Arrays.asList(options));
+        final ShellExecutor.Result pushResult = new ShellExecutor.Result(CliGitOperations.TAIL_LINES).watchStderr(CliGitOperations.PUSH_REJECTED);
+        shell.execWithResult(pushResult, "git", args.toArray(new String[args.size()]));
+        if (pushResult.getExitCode() != 0) {
+            if (pushResult.stderrContains(CliGitOperations.PUSH_REJECTED)) {
+                // mirrors follow the primary remote; they get the commit of the next attempt, or nothing
+                return false;
+            }
+            throw new IOException(String.format("git push exited with code %d", pushResult.getExitCode()));
+        }
+        pushMirrors(shell, metrics, localRef);
+        return true;
+    }
+
+    /**
+     * Publishes a new branch by several pushes, each adding a bounded part of the files; optionally replaces them with the original commit at the end.
+     * The mirrors then get the content in one push.
+     *
+     * @param localRef the ref with the root commit to publish
+     * @return false if chunking is disabled or not needed, and nothing was pushed
+     */
+    public boolean pushInChunks(ShellExecutor shell, DeployMetrics metrics, String localRef, String message) throws CommandLineException, IOException {
+        if (!chunkedCommit.isEnabled()) {
+            return false;
+        }
+        final List<String> chunks = chunkedCommit.split(shell, localRef, CHUNKS_REF, gitOutput(shell, "var", "GIT_COMMITTER_IDENT"), message);
+        if (chunks.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < chunks.size(); i++) {
+            log.info(String.format("Pushing part %d of %d into new branch '%s'", i + 1, chunks.size(), branch));
+            shell.exec("git", "push", "origin", chunks.get(i) + ":refs/heads/" + branch, "--force");
+            metrics.count("pushChunks", 1);
+        }
+        if (squashChunks) {
+            // all objects are on the remote already, this only transfers the commit
+            shell.exec("git", "push", "origin", localRef + ":refs/heads/" + branch, "--force");
+        } else {
+            shell.exec("git", "update-ref", localRef, chunks.get(chunks.size() - 1));
+        }
+        shell.exec("git", "update-ref", "-d", CHUNKS_REF);
+        pushMirrors(shell, metrics, localRef);
+        return true;
+    }
+
+    /**
+     * Collapses the old history of given commit, if the retention is enabled and due.
+     *
+     * @param ref the ref to receive the rewritten history
+     * @return true if the history was rewritten; it must then be pushed with {@link #pushRewritten}
+     */
+    public boolean collapseHistory(ShellExecutor shell, DeployMetrics metrics, String tip, String ref) throws CommandLineException {
+        if (!retention.isEnabled()) {
+            return false;
+        }
+        retention.deepen(shell, branch);
+        final int collapsed = retention.apply(shell, tip, ref);
+        if (collapsed == 0) {
+            return false;
+        }
+        log.info(String.format("Collapsed %d old commits of branch '%s'", collapsed, branch));
+        metrics.count("commitsCollapsed", collapsed);
+        return true;
+    }
+
+    /**
+     * Pushes rewritten history of the branch, unless the remote branch has moved on from the expected tip.
+     *
+     * @return false if the push was rejected
+     */
+    public boolean pushRewritten(ShellExecutor shell, DeployMetrics metrics, String localRef, String expectedTip) throws CommandLineException, IOException {
+        return push(shell, metrics, localRef, "--force-with-lease=refs/heads/" + branch + ":" + expectedTip);
+    }
+
+    /**
+     * Force-pushes given ref into all mirrors in parallel, and reports the outcome.
+     * Must only be called after the primary remote has accepted the same ref.
+     *
+     * @throws IOException if some mirror failed, and the mirrors are required
+     */
+    public void pushMirrors(ShellExecutor shell, DeployMetrics metrics, String localRef) throws IOException {
+        final List<MirrorPushes.Outcome> outcomes = MirrorPushes.start(shell, mirrorUrls, localRef, branch, mirrorTimeoutSeconds).await();
+        final List<String> failed = new ArrayList<String>();
+        for (MirrorPushes.Outcome outcome : outcomes) {
+            if (outcome.getError() == null) {
+                log.info(String.format("Pushed to mirror %s in %d ms", outcome.getUrl(), outcome.getMillis()));
+                metrics.count("mirrorsPushed", 1);
+            } else {
+                log.warn(String.format("Push to mirror %s failed after %d ms: %s", outcome.getUrl(), outcome.getMillis(), outcome.getError()));
+                metrics.count("mirrorsFailed", 1);
+                failed.add(outcome.getUrl());
+            }
+        }
+        if (mirrorsRequired && !failed.isEmpty()) {
+            throw new IOException("Push to mirrors failed: " + failed);
+        }
+    }
+
+    /**
+     * Waits before the next attempt to push, with exponentially growing and randomized delay, so that concurrent publishers spread out.
+     *
+     * @param attempt number of the attempt that was just rejected, starting with 1
+     * @throws IOException when there are no attempts left
+     */
+    public void awaitRetry(int attempt, DeployMetrics metrics) throws IOException {
+        if (attempt >= attempts) {
+            throw new IOException(String.format("Push to branch '%s' was rejected %d times; the branch is updated by others too often", branch, attempt));
+        }
+        metrics.phase("backoff");
+        metrics.count("pushRetries", 1);
+        final long delay = retryDelay * (1L << Math.min(attempt - 1, 10));
+        final long jitter = (long) (Math.random() * retryDelay);
+        log.warn(String.format("Branch '%s' was updated by someone else - retrying in %d ms (attempt %d of %d)", branch, delay + jitter, attempt + 1, attempts));
+        try {
+            Thread.sleep(delay + jitter);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the push");
+        }
+    }
+
+    private static String gitOutput(ShellExecutor shell, String... args) throws CommandLineException {
+        final ShellExecutor.Result result = shell.execWithResult("git", args);
+        if (result.getExitCode() != 0 || result.getStdoutLines().isEmpty()) {
+            throw new CommandLineException(String.format("git %s exited with code %d", args[0], result.getExitCode()));
+        }
+        return result.getStdoutLines().get(0).trim();
+    }
+}
@@ -0,0 +1,104 @@
+package net.kozelka.gitsite.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import net.kozelka.gitsite.utils.ShellExecutor;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Splits a root commit into a sequence of commits, each adding a bounded amount of files or bytes,
+ * so that a huge site can be pushed in several smaller packs instead of a single one.
+ * <p>
+ * The last commit of the sequence has the same tree as the original one.
+ * Blobs are referenced by their ids, so nothing is read or hashed again; each part is written by its own <code>git fast-import</code>.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class ChunkedCommit {
+    private final long maxBytes;
+    private final int maxFiles;
+
+    /**
+     * @param maxBytes the maximum size of files added by one commit; 0 for no limit
+     * @param maxFiles the maximum number of files added by one commit; 0 for no limit
+     */
+    public ChunkedCommit(long maxBytes, int maxFiles) {
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0 || maxFiles > 0;
+    }
+
+    /**
+     * @param commit the root commit to split
+     * @param ref the ref to build the sequence in
+     * @param committer committer identity including timestamp, as printed by <code>git var GIT_COMMITTER_IDENT</code>
+     * @return ids of the commits, in order; empty if the commit fits into the limits as it is
+     */
+    public List<String> split(ShellExecutor shell, String commit, String ref, String committer, String message) throws CommandLineException {
+        final ShellExecutor.Result lsTree = shell.execWithResult("git", "-c", "core.quotePath=false", "ls-tree", "-r", "-l", "--full-tree", commit);
+        if (lsTree.getExitCode() != 0) {
+            throw new CommandLineException(String.format("git ls-tree exited with code %d", lsTree.getExitCode()));
+        }
+        // <mode> SP <type> SP <object> SP+ <size> TAB <path>
+        final List<List<String>> chunks = new ArrayList<List<String>>();
+        List<String> chunk = null;
+        long chunkBytes = 0;
+        for (String line : lsTree.getStdoutLines()) {
+            final int tab = line.indexOf('\t');
+            final String[] fields = line.substring(0, tab).trim().split(" +");
+            final long size = "-".equals(fields[3]) ? 0 : Long.parseLong(fields[3]);
+            if (chunk == null
+                || (maxFiles > 0 && chunk.size() >= maxFiles)
+                || (maxBytes > 0 && chunkBytes + size > maxBytes && !chunk.isEmpty())) {
+                chunk = new ArrayList<String>();
+                chunks.add(chunk);
+                chunkBytes = 0;
+            }
+            chunk.add("M " + fields[0] + " " + fields[2] + " " + line.substring(tab + 1));
+            chunkBytes += size;
+        }
+        if (chunks.size() < 2) {
+            return new ArrayList<String>();
+        }
+        final List<String> commits = new ArrayList<String>();
+        for (int i = 0; i < chunks.size(); i++) {
+            final StringBuilder sb = new StringBuilder();
+            if (i == 0) {
+                sb.append("reset ").append(ref).append("\n\n");
+            }
+            final String partMessage = String.format("%s (part %d of %d)\n", message.trim(), i + 1, chunks.size());
+            sb.append("commit ").append(ref).append("\n");
+            sb.append("committer ").append(committer).append("\n");
+            sb.append("data ").append(utf8(partMessage).length).append("\n");
+            sb.append(partMessage).append("\n");
+            if (i > 0) {
+                sb.append("from ").append(commits.get(i - 1)).append("\n");
+            }
+            for (String modify : chunks.get(i)) {
+                sb.append(modify).append("\n");
+            }
+            sb.append("\n");
+            shell.execWithInput(new ByteArrayInputStream(utf8(sb.toString())), "git", "fast-import", "--quiet", "--force");
+            final ShellExecutor.Result revParse = shell.execWithResult("git", "rev-parse", "--verify", ref);
+            if (revParse.getExitCode() != 0 || revParse.getStdoutLines().isEmpty()) {
+                throw new CommandLineException(String.format("git rev-parse exited with code %d", revParse.getExitCode()));
+            }
+            commits.add(revParse.getStdoutLines().get(0).trim());
+        }
+        return commits;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package net.kozelka.gitsite.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+import net.kozelka.gitsite.utils.ShellExecutor;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Implements git operations by invoking the external <code>git</code> program.
+ *
+ * @author Petr Kozelka
+ */
+public class CliGitOperations implements GitOperations {
+    /**
+     * How many most recent output lines of a command are kept for diagnostics.
+     */
+    public static final int TAIL_LINES = 100;
+    /**
+     * Matches the push output line reporting that the remote branch has moved on.
+     */
+    public static final Pattern PUSH_REJECTED = Pattern.compile(".*\\[rejected\\].*\\((fetch first|non-fast-forward|stale info)\\).*|.*\\[remote rejected\\].*(cannot lock ref|failed to update ref).*");
+    private static final Pattern BRANCH_NOT_FOUND = Pattern.compile(".*could not find remote branch.*|.* not found in upstream .*");
+    private static final Pattern REMOTE_REF_NOT_FOUND = Pattern.compile(".*couldn't find remote ref.*");
+    private static final Pattern NOTHING_TO_COMMIT = Pattern.compile("nothing to commit.*");
+
+    private final ShellExecutor shell;
+
+    public CliGitOperations(ShellExecutor shell) {
+        this.shell = shell;
+    }
+
+    public boolean cloneBranch(String remoteUrl, String branch, File workDir, List<String> sparsePaths) throws IOException {
+        shell.setWorkingDirectory(workDir);
+        try {
+            final ShellExecutor.Result cloneResult = new ShellExecutor.Result(TAIL_LINES).watchStderr(BRANCH_NOT_FOUND);
+            if (sparsePaths != null) {
+                shell.execWithResult(cloneResult, "git", "clone", "--depth", "1", "--filter=blob:none", "--no-checkout", "--branch", branch, "--single-branch", remoteUrl, ".");
+            } else {
+                shell.execWithResult(cloneResult, "git", "clone", "--branch", branch, "--single-branch", remoteUrl, ".");
+            }
+            if (cloneResult.getExitCode() != 0) {
+                boolean branchNotFound = cloneResult.stderrContains(BRANCH_NOT_FOUND);
+                if (! branchNotFound) {
+                    throw new IOException(String.format("git clone exited with code %d", cloneResult.getExitCode()));
+                }
+                return false;
+            }
+            if (sparsePaths != null) {
+                checkoutSparse(workDir, sparsePaths);
+            }
+            return true;
+        } catch (CommandLineException e) {
+            throw new IOException("git clone failed", e);
+        }
+    }
+
+    /**
+     * Restricts the work tree of a fresh <code>--no-checkout</code> clone to given paths.
+     */
+    private void checkoutSparse(File workDir, List<String> sparsePaths) throws CommandLineException, IOException {
+        shell.exec("git", "config", "core.sparseCheckout", "true");
+        final File sparseCheckoutFile = new File(workDir, ".git/info/sparse-checkout");
+        sparseCheckoutFile.getParentFile().mkdirs();
+        final StringBuilder sb = new StringBuilder();
+        for (String path : sparsePaths) {
+            sb.append("/").append(path).append("\n");
+        }
+        FileUtils.fileWrite(sparseCheckoutFile.getAbsolutePath(), "UTF-8", sb.toString());
+        shell.exec("git", "read-tree", "-mu", "HEAD");
+    }
+
+    public void init(File workDir, String remoteUrl, String branch) throws IOException {
+        shell.setWorkingDirectory(workDir);
+        try {
+            shell.exec("git", "init");
+            shell.exec("git", "symbolic-ref", "HEAD", "refs/heads/" + branch);
+            shell.exec("git", "remote", "add", "origin", remoteUrl);
+        } catch (CommandLineException e) {
+            throw new IOException("git init failed", e);
+        }
+    }
+
+    public String getRemoteUrl(File workDir) throws IOException {
+        if (!new File(workDir, ".git").isDirectory()) {
+            return null;
+        }
+        shell.setWorkingDirectory(workDir);
+        try {
+            final ShellExecutor.Result urlResult = shell.execWithResult("git", "config", "--get", "remote.origin.url");
+            if (urlResult.getExitCode() != 0 || urlResult.getStdoutLines().isEmpty()) {
+                return null;
+            }
+            if (shell.execWithResult("git", "rev-parse", "--verify", "--quiet", "HEAD").getExitCode() != 0) {
+                return null;
+            }
+            return urlResult.getStdoutLines().get(0).trim();
+        } catch (CommandLineException e) {
+            throw new IOException("git config failed", e);
+        }
+    }
+
+    public boolean fetch(File workDir, String branch) throws IOException {
+        shell.setWorkingDirectory(workDir);
+        try {
+            final ShellExecutor.Result fetchResult = new ShellExecutor.Result(TAIL_LINES).watchStderr(REMOTE_REF_NOT_FOUND);
+            shell.execWithResult(fetchResult, "git", "fetch", "--prune", "origin", "+refs/heads/" + branch + ":refs/remotes/origin/" + branch);
+            if (fetchResult.getExitCode() == 0) {
+                return true;
+            }
+            if (fetchResult.stderrContains(REMOTE_REF_NOT_FOUND)) {
+                return false;
+            }
+            throw new IOException(String.format("git fetch exited with code %d", fetchResult.getExitCode()));
+        } catch (CommandLineException e) {
+            throw new IOException("git fetch failed", e);
+        }
+    }
+
+    public void checkoutRemote(File workDir, String branch) throws IOException {
+        shell.setWorkingDirectory(workDir);
+        final String remoteRef = "refs/remotes/origin/" + branch;
+        try {
+            shell.exec("git", "checkout", "--force", "-B", branch, remoteRef);
+            shell.exec("git", "reset", "--hard", remoteRef);
+            shell.exec("git", "clean", "-ffdx");
+        } catch (CommandLineException e) {
+            throw new IOException("git checkout failed", e);
+        }
+    }
+
+    public void addAll(File workDir) throws IOException {
+        shell.setWorkingDirectory(workDir);
+        try {
+            shell.exec("git", "add", "-A", ".");
+        } catch (CommandLineException e) {
+            throw new IOException("git add failed", e);
+        }
+    }
+
+    public boolean commit(File workDir, String message) throws IOException {
+        shell.setWorkingDirectory(workDir);
+        try {
+            final ShellExecutor.Result commitResult = new ShellExecutor.Result(TAIL_LINES).watchStdout(NOTHING_TO_COMMIT);
+            shell.execWithResult(commitResult, "git", "commit", "-am", message);
+            if (commitResult.getExitCode() == 0) {
+                return true;
+            }
+            if (commitResult.stdoutContains(NOTHING_TO_COMMIT)) {
+                return false;
+            }
+            throw new IOException(String.format("git commit exited with code %d", commitResult.getExitCode()));
+        } catch (CommandLineException e) {
+            throw new IOException("git commit failed", e);
+        }
+    }
+
+    public boolean push(File workDir, String localBranch, String remoteBranch, boolean force) throws IOException {
+        shell.setWorkingDirectory(workDir);
+        try {
+            if (force) {
+                shell.exec("git", "push", "origin", localBranch + ":" + remoteBranch, "--force", "--set-upstream");
+                return true;
+            }
+            final ShellExecutor.Result pushResult = new ShellExecutor.Result(TAIL_LINES).watchStderr(PUSH_REJECTED);
+            shell.execWithResult(pushResult, "git", "push", "origin", localBranch + ":" + remoteBranch);
+            if (pushResult.getExitCode() == 0) {
+                return true;
+            }
+            if (pushResult.stderrContains(PUSH_REJECTED)) {
+                return false;
+            }
+            throw new IOException(String.format("git push exited with code %d", pushResult.getExitCode()));
+        } catch (CommandLineException e) {
+            throw new IOException("git push failed", e);
+        }
+    }
+}
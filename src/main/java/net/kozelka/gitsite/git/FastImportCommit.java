@@ -0,0 +1,402 @@
+package net.kozelka.gitsite.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.kozelka.gitsite.sync.GitBlobHash;
+import net.kozelka.gitsite.sync.StatCache;
+
+/**
+ * Describes a single commit to be created by <code>git fast-import</code>, and produces the corresponding input stream.
+ * <p>
+ * The stream is produced lazily: directories are walked and files are opened only when fast-import asks for more data,
+ * so the site content is read exactly once and never copied to a work tree.
+ * Each file is opened before its size is announced, and exactly that many bytes are streamed; a file that changes its size meanwhile fails the stream.
+ * Paths not mentioned in the commit are inherited from the parent as tree references.
+ * </p>
+ * <p>
+ * Files executable by their owner get mode <code>100755</code>, like <code>git add</code> records them; symbolic links are not followed,
+ * and are committed as links (mode <code>120000</code>) pointing to their unchanged target.
+ * </p>
+ * <p>
+ * With a {@link StatCache}, files with the same size and modification time as in the previous commit are referenced by their blob id
+ * instead of being read; blob ids of the other files are computed while they are streamed, and recorded for the next time.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class FastImportCommit {
+    private final String ref;
+    private final String committer;
+    private final String message;
+    private String parent;
+    private final List<String> deletedPaths = new ArrayList<String>();
+    private final List<String> inlinePaths = new ArrayList<String>();
+    private final List<byte[]> inlineContents = new ArrayList<byte[]>();
+    private final List<File> directories = new ArrayList<File>();
+    private final List<String> directoryPaths = new ArrayList<String>();
+    private StatCache statCache;
+    private final AtomicInteger reusedBlobs = new AtomicInteger();
+
+    /**
+     * @param ref the ref to be written by fast-import
+     * @param committer committer identity including timestamp, as printed by <code>git var GIT_COMMITTER_IDENT</code>
+     */
+    public FastImportCommit(String ref, String committer, String message) {
+        this.ref = ref;
+        this.committer = committer;
+        this.message = message;
+    }
+
+    /**
+     * @param parent commit to build upon; its tree is inherited, except for deleted or replaced paths
+     */
+    public void setParent(String parent) {
+        this.parent = parent;
+    }
+
+    public void delete(String path) {
+        deletedPaths.add(path);
+    }
+
+    public void add(String path, String content) {
+        inlinePaths.add(path);
+        inlineContents.add(utf8(content));
+    }
+
+    /**
+     * Adds all files from the directory, placing them under given path ("" for the root of the tree).
+     */
+    public void addDirectory(File directory, String path) {
+        directories.add(directory);
+        directoryPaths.add(path);
+    }
+
+    /**
+     * @param statCache cache of blob ids, keyed by tree path; null to read all files
+     */
+    public void setStatCache(StatCache statCache) {
+        this.statCache = statCache;
+    }
+
+    /**
+     * @return how many files were referenced by their cached blob id, in the last opened stream
+     */
+    public int getReusedBlobs() {
+        return reusedBlobs.get();
+    }
+
+    public InputStream openStream() {
+        reusedBlobs.set(0);
+        return new SequenceInputStream(new Chunks());
+    }
+
+    private static String join(String path, String name) {
+        return path.length() == 0 ? name : path + "/" + name;
+    }
+
+    /**
+     * Quotes the path if fast-import would not understand it otherwise.
+     */
+    static String quote(String path) {
+        if (path.indexOf('"') < 0 && path.indexOf('\\') < 0 && path.indexOf('\n') < 0) {
+            return path;
+        }
+        return '"' + path.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+    /**
+     * @return the mode that git records for given directory entry, which is not a directory
+     */
+    static String gitMode(File file) throws IOException {
+        final Path path = file.toPath();
+        if (Files.isSymbolicLink(path)) {
+            return "120000";
+        }
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")
+            && Files.getPosixFilePermissions(path).contains(PosixFilePermission.OWNER_EXECUTE)) {
+            return "100755";
+        }
+        return "100644";
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Produces the stream chunk by chunk: header, deletions, inline files, then one header + content pair per directory file.
+     */
+    private class Chunks implements Enumeration<InputStream> {
+        private int inlineIndex;
+        private int directoryIndex;
+        private boolean headerDone;
+        private boolean doneEmitted;
+        private final LinkedList<File> pendingFiles = new LinkedList<File>();
+        private final LinkedList<String> pendingPaths = new LinkedList<String>();
+        private File currentDirectory;
+        private InputStream pendingContent;
+
+        public boolean hasMoreElements() {
+            return !doneEmitted;
+        }
+
+        public InputStream nextElement() {
+            if (doneEmitted) {
+                throw new NoSuchElementException();
+            }
+            if (!headerDone) {
+                headerDone = true;
+                return new ByteArrayInputStream(header());
+            }
+            if (pendingContent != null) {
+                final InputStream content = pendingContent;
+                pendingContent = null;
+                return content;
+            }
+            if (inlineIndex < inlinePaths.size()) {
+                final InputStream entry = inlineEntry("100644", inlinePaths.get(inlineIndex), inlineContents.get(inlineIndex));
+                inlineIndex++;
+                return entry;
+            }
+            final File file = nextFile();
+            if (file != null) {
+                final String path = pendingPaths.removeFirst();
+                final String mode;
+                try {
+                    mode = gitMode(file);
+                    if (mode.equals("120000")) {
+                        // the content of a link is its target
+                        return inlineEntry(mode, path, utf8(Files.readSymbolicLink(file.toPath()).toString()));
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read " + file, e);
+                }
+                if (statCache != null) {
+                    final StatCache.Entry cached = statCache.lookup(path);
+                    if (cached != null && cached.getBlobId() != null && cached.matches(file.length(), file.lastModified())) {
+                        statCache.retain(path, cached);
+                        reusedBlobs.incrementAndGet();
+                        return new ByteArrayInputStream(utf8(String.format("M %s %s %s\n", mode, cached.getBlobId(), quote(path))));
+                    }
+                }
+                final long size;
+                try {
+                    final FileInputStream fis = new FileInputStream(file);
+                    size = fis.getChannel().size();
+                    final InputStream is = new AnnouncedSizeInputStream(fis, file, size);
+                    pendingContent = statCache == null ? is : new HashingInputStream(is, file, path, size);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read " + file, e);
+                }
+                return new ByteArrayInputStream(utf8(String.format("M %s inline %s\ndata %d\n", mode, quote(path), size)));
+            }
+            doneEmitted = true;
+            return new ByteArrayInputStream(utf8("\ndone\n"));
+        }
+
+        /**
+         * Walks the directories depth-first, keeping only the not yet visited siblings in memory.
+         * The returned file's path is left as first element of {@link #pendingPaths}.
+         */
+        private File nextFile() {
+            while (true) {
+                if (pendingFiles.isEmpty()) {
+                    if (directoryIndex >= directories.size()) {
+                        return null;
+                    }
+                    currentDirectory = directories.get(directoryIndex);
+                    pendingFiles.add(currentDirectory);
+                    pendingPaths.add(directoryPaths.get(directoryIndex));
+                    directoryIndex++;
+                }
+                final File file = pendingFiles.removeFirst();
+                // a link to a directory inside is committed as a link, like git does; the added directory itself may be a link
+                if (file.isDirectory() && (file == currentDirectory || !Files.isSymbolicLink(file.toPath()))) {
+                    final String path = pendingPaths.removeFirst();
+                    final File[] entries = file.listFiles();
+                    if (entries == null) {
+                        throw new IllegalStateException("Cannot list directory " + file);
+                    }
+                    Arrays.sort(entries);
+                    for (int i = entries.length - 1; i >= 0; i--) {
+                        pendingFiles.addFirst(entries[i]);
+                        pendingPaths.addFirst(join(path, entries[i].getName()));
+                    }
+                } else {
+                    return file;
+                }
+            }
+        }
+
+        private InputStream inlineEntry(String mode, String path, byte[] content) {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            write(baos, String.format("M %s inline %s\ndata %d\n", mode, quote(path), content.length));
+            baos.write(content, 0, content.length);
+            write(baos, "\n");
+            return new ByteArrayInputStream(baos.toByteArray());
+        }
+
+        private byte[] header() {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final byte[] messageBytes = utf8(message);
+            write(baos, String.format("commit %s\ncommitter %s\ndata %d\n", ref, committer, messageBytes.length));
+            baos.write(messageBytes, 0, messageBytes.length);
+            write(baos, "\n");
+            if (parent != null) {
+                write(baos, String.format("from %s\n", parent));
+            }
+            for (String path : deletedPaths) {
+                write(baos, String.format("D %s\n", quote(path)));
+            }
+            return baos.toByteArray();
+        }
+
+        private void write(ByteArrayOutputStream baos, String s) {
+            final byte[] bytes = utf8(s);
+            baos.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Computes the blob id of a file while fast-import reads it, and records it in the stat cache once the file is read completely.
+     */
+    private class HashingInputStream extends FilterInputStream {
+        private final File file;
+        private final String path;
+        private final long size;
+        private final long mtime;
+        private final MessageDigest digest;
+        private long read;
+        private boolean recorded;
+
+        HashingInputStream(InputStream in, File file, String path, long size) {
+            super(in);
+            this.file = file;
+            this.path = path;
+            this.size = size;
+            this.mtime = file.lastModified();
+            this.digest = GitBlobHash.newDigest(size);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                digest.update((byte) b);
+                read++;
+            } else {
+                finish();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                digest.update(b, off, n);
+                read += n;
+            } else if (n < 0) {
+                finish();
+            }
+            return n;
+        }
+
+        private void finish() {
+            if (!recorded && read == size && file.lastModified() == mtime) {
+                recorded = true;
+                statCache.put(path, size, mtime, StatCache.UNKNOWN, GitBlobHash.toHex(digest.digest()));
+            }
+        }
+    }
+
+    /**
+     * Gives exactly the announced number of bytes of a file, so that fast-import never takes the rest of the stream for file content;
+     * fails if the file turns out to be shorter or longer.
+     */
+    private static class AnnouncedSizeInputStream extends FilterInputStream {
+        private final File file;
+        private final long size;
+        private long remaining;
+
+        AnnouncedSizeInputStream(InputStream in, File file, long size) {
+            super(in);
+            this.file = file;
+            this.size = size;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return end();
+            }
+            final int b = super.read();
+            if (b < 0) {
+                throw changed();
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                return end();
+            }
+            final int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw changed();
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip not supported");
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        private int end() throws IOException {
+            if (super.read() >= 0) {
+                throw changed();
+            }
+            return -1;
+        }
+
+        private IOException changed() {
+            return new IOException(String.format("File %s changed its size from %d bytes while being streamed", file, size));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package net.kozelka.gitsite.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Git operations needed for publishing the site through a work clone.
+ * All operations work with the remote named <code>origin</code>.
+ *
+ * @author Petr Kozelka
+ */
+public interface GitOperations {
+    /**
+     * Clones single branch of the remote into an empty directory.
+     *
+     * @param sparsePaths paths to limit a shallow, sparse checkout to; null for a full clone
+     * @return false if the branch does not exist in the remote; the directory is then left empty
+     */
+    boolean cloneBranch(String remoteUrl, String branch, File workDir, List<String> sparsePaths) throws IOException;
+
+    /**
+     * Creates an empty repository with given remote and current branch.
+     */
+    void init(File workDir, String remoteUrl, String branch) throws IOException;
+
+    /**
+     * @return url of the <code>origin</code> remote, or null if the directory is not a usable git repository
+     */
+    String getRemoteUrl(File workDir) throws IOException;
+
+    /**
+     * Fetches the branch into <code>refs/remotes/origin/BRANCH</code>.
+     *
+     * @return false if the branch does not exist in the remote
+     */
+    boolean fetch(File workDir, String branch) throws IOException;
+
+    /**
+     * Makes the local branch point to the fetched remote branch, checks it out and discards all local changes, including untracked files.
+     */
+    void checkoutRemote(File workDir, String branch) throws IOException;
+
+    /**
+     * Stages all changes in the work tree, including deletions.
+     */
+    void addAll(File workDir) throws IOException;
+
+    /**
+     * @return false if there was nothing to commit
+     */
+    boolean commit(File workDir, String message) throws IOException;
+
+    /**
+     * @return false if the remote rejected the update because its branch has moved on in the meantime; this can only happen without force
+     */
+    boolean push(File workDir, String localBranch, String remoteBranch, boolean force) throws IOException;
+}
@@ -0,0 +1,150 @@
+package net.kozelka.gitsite.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import net.kozelka.gitsite.utils.ShellExecutor;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Bounds the history of the site branch to a number of most recent commits, or to the commits of a number of most recent days.
+ * <p>
+ * Older history is collapsed into a single root commit carrying the tree of the oldest retained commit;
+ * the retained commits are re-created on top of it, with their original authors, dates and messages, by <code>git fast-import</code>.
+ * To avoid rewriting the branch with each deployment, the history is only collapsed once the commits beyond the limits
+ * are at least as many as the retained ones; so the branch never grows much beyond twice the limits.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class HistoryRetention {
+    private static final String RECORD_START = "\u0001";
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final int maxCommits;
+    private final int maxDays;
+
+    /**
+     * @param maxCommits how many most recent commits to retain; 0 for no limit
+     * @param maxDays how many days of history to retain; 0 for no limit
+     */
+    public HistoryRetention(int maxCommits, int maxDays) {
+        this.maxCommits = maxCommits;
+        this.maxDays = maxDays;
+    }
+
+    public boolean isEnabled() {
+        return maxCommits > 0 || maxDays > 0;
+    }
+
+    /**
+     * Makes sure that the whole history of the branch is available in the repository, in case it was fetched shallow.
+     * Blobs are not needed for collapsing, and are not fetched.
+     */
+    public void deepen(ShellExecutor shell, String branch) throws CommandLineException {
+        final ShellExecutor.Result result = shell.execWithResult("git", "rev-parse", "--is-shallow-repository");
+        if (!result.getStdoutLines().isEmpty() && "true".equals(result.getStdoutLines().get(0).trim())) {
+            shell.exec("git", "fetch", "--unshallow", "--filter=blob:none", "origin", "+refs/heads/" + branch + ":refs/remotes/origin/" + branch);
+        }
+    }
+
+    /**
+     * Collapses the history of given commit, if it is due.
+     *
+     * @param tip the commit whose first-parent history is examined
+     * @param ref the ref to receive the rewritten history; may be the one that <code>tip</code> refers to
+     * @return number of commits collapsed into the new root; 0 if the history was left as is
+     */
+    public int apply(ShellExecutor shell, String tip, String ref) throws CommandLineException {
+        final ShellExecutor.Result log = shell.execWithResult("git", "log", "--first-parent", "--date=raw",
+            "--format=%x01%T %ct%n%an <%ae> %ad%n%cn <%ce> %cd%n%B", tip);
+        if (log.getExitCode() != 0) {
+            throw new CommandLineException(String.format("git log exited with code %d", log.getExitCode()));
+        }
+        final List<LogEntry> entries = parse(log.getStdoutLines());
+        final long oldest = System.currentTimeMillis() / 1000 - maxDays * SECONDS_PER_DAY;
+        int retained = 1;
+        while (retained < entries.size()
+            && (maxCommits == 0 || retained < maxCommits)
+            && (maxDays == 0 || entries.get(retained).commitTime >= oldest)) {
+            retained++;
+        }
+        final int collapsed = entries.size() - retained;
+        if (collapsed == 0 || collapsed < retained) {
+            return 0;
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append("reset ").append(ref).append("\n\n");
+        for (int i = retained - 1; i >= 0; i--) {
+            final LogEntry entry = entries.get(i);
+            final String message = i == retained - 1
+                ? entry.message + "\nCollapsed " + collapsed + " older commits of the site history.\n"
+                : entry.message;
+            sb.append("commit ").append(ref).append("\n");
+            sb.append("author ").append(entry.author).append("\n");
+            sb.append("committer ").append(entry.committer).append("\n");
+            sb.append("data ").append(utf8(message).length).append("\n");
+            sb.append(message).append("\n");
+            sb.append("M 040000 ").append(entry.tree).append(" \"\"\n\n");
+        }
+        shell.execWithInput(new ByteArrayInputStream(utf8(sb.toString())), "git", "fast-import", "--quiet", "--force");
+        return collapsed;
+    }
+
+    private static List<LogEntry> parse(List<String> lines) {
+        final List<LogEntry> entries = new ArrayList<LogEntry>();
+        LogEntry entry = null;
+        int lineInRecord = 0;
+        for (String line : lines) {
+            if (line.startsWith(RECORD_START)) {
+                entry = new LogEntry();
+                entries.add(entry);
+                final String[] treeAndTime = line.substring(RECORD_START.length()).split(" ");
+                entry.tree = treeAndTime[0];
+                entry.commitTime = Long.parseLong(treeAndTime[1]);
+                lineInRecord = 1;
+            } else if (entry != null) {
+                switch (lineInRecord++) {
+                case 1:
+                    entry.author = line;
+                    break;
+                case 2:
+                    entry.committer = line;
+                    break;
+                default:
+                    entry.messageLines.add(line);
+                }
+            }
+        }
+        for (LogEntry e : entries) {
+            final StringBuilder sb = new StringBuilder();
+            int end = e.messageLines.size();
+            while (end > 0 && e.messageLines.get(end - 1).trim().length() == 0) {
+                end--;
+            }
+            for (String line : e.messageLines.subList(0, end)) {
+                sb.append(line).append("\n");
+            }
+            e.message = sb.toString();
+        }
+        return entries;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class LogEntry {
+        private String tree;
+        private long commitTime;
+        private String author;
+        private String committer;
+        private final List<String> messageLines = new ArrayList<String>();
+        private String message;
+    }
+}
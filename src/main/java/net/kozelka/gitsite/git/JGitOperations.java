@@ -0,0 +1,219 @@
+package net.kozelka.gitsite.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Implements git operations in-process, using JGit - no external processes are started.
+ * <p>
+ * Repositories are opened through JGit's {@link RepositoryCache}, so that their object database and pack handles
+ * are shared by all uses within the same JVM - for instance by all modules of a reactor build.
+ * Sparse checkout is not supported.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class JGitOperations implements GitOperations {
+
+    public boolean cloneBranch(String remoteUrl, String branch, File workDir, List<String> sparsePaths) throws IOException {
+        if (sparsePaths != null) {
+            throw new IllegalArgumentException("Sparse checkout is not supported by JGit");
+        }
+        try {
+            if (!remoteHasBranch(remoteUrl, branch)) {
+                return false;
+            }
+            Git.cloneRepository()
+                .setURI(remoteUrl)
+                .setDirectory(workDir)
+                .setBranch(branch)
+                .setBranchesToClone(Collections.singleton(Constants.R_HEADS + branch))
+                .call()
+                .close();
+            return true;
+        } catch (GitAPIException e) {
+            throw new IOException("JGit clone failed", e);
+        }
+    }
+
+    public void init(File workDir, String remoteUrl, String branch) throws IOException {
+        try {
+            Git.init().setDirectory(workDir).call().close();
+        } catch (GitAPIException e) {
+            throw new IOException("JGit init failed", e);
+        }
+        final Repository repository = open(workDir);
+        try {
+            final RefUpdate headUpdate = repository.updateRef(Constants.HEAD);
+            headUpdate.link(Constants.R_HEADS + branch);
+            final StoredConfig config = repository.getConfig();
+            config.setString("remote", "origin", "url", remoteUrl);
+            config.setString("remote", "origin", "fetch", "+refs/heads/*:refs/remotes/origin/*");
+            config.save();
+        } finally {
+            repository.close();
+        }
+    }
+
+    public String getRemoteUrl(File workDir) throws IOException {
+        if (!new File(workDir, Constants.DOT_GIT).isDirectory()) {
+            return null;
+        }
+        final Repository repository = open(workDir);
+        try {
+            if (repository.resolve(Constants.HEAD) == null) {
+                return null;
+            }
+            return repository.getConfig().getString("remote", "origin", "url");
+        } finally {
+            repository.close();
+        }
+    }
+
+    public boolean fetch(File workDir, String branch) throws IOException {
+        final Repository repository = open(workDir);
+        try {
+            final Git git = new Git(repository);
+            final String remoteUrl = repository.getConfig().getString("remote", "origin", "url");
+            if (!remoteHasBranch(remoteUrl, branch)) {
+                return false;
+            }
+            git.fetch()
+                .setRemote("origin")
+                .setRefSpecs(new RefSpec("+" + Constants.R_HEADS + branch + ":" + Constants.R_REMOTES + "origin/" + branch))
+                .call();
+            return true;
+        } catch (GitAPIException e) {
+            throw new IOException("JGit fetch failed", e);
+        } finally {
+            repository.close();
+        }
+    }
+
+    public void checkoutRemote(File workDir, String branch) throws IOException {
+        final Repository repository = open(workDir);
+        try {
+            final ObjectId remoteTip = repository.resolve(Constants.R_REMOTES + "origin/" + branch);
+            if (remoteTip == null) {
+                throw new IOException("Branch was not fetched: " + branch);
+            }
+            final RefUpdate branchUpdate = repository.updateRef(Constants.R_HEADS + branch);
+            branchUpdate.setNewObjectId(remoteTip);
+            checkRefUpdate(branchUpdate.forceUpdate(), branch);
+            checkRefUpdate(repository.updateRef(Constants.HEAD).link(Constants.R_HEADS + branch), Constants.HEAD);
+            final Git git = new Git(repository);
+            git.reset().setMode(ResetCommand.ResetType.HARD).setRef(Constants.HEAD).call();
+            git.clean().setCleanDirectories(true).setIgnore(false).setForce(true).call();
+        } catch (GitAPIException e) {
+            throw new IOException("JGit checkout failed", e);
+        } finally {
+            repository.close();
+        }
+    }
+
+    public void addAll(File workDir) throws IOException {
+        final Repository repository = open(workDir);
+        try {
+            final Git git = new Git(repository);
+            git.add().addFilepattern(".").call();
+            // also stage deletions, like 'git add -A'
+            git.add().setUpdate(true).addFilepattern(".").call();
+        } catch (GitAPIException e) {
+            throw new IOException("JGit add failed", e);
+        } finally {
+            repository.close();
+        }
+    }
+
+    public boolean commit(File workDir, String message) throws IOException {
+        final Repository repository = open(workDir);
+        try {
+            final Git git = new Git(repository);
+            if (repository.resolve(Constants.HEAD) != null && git.status().call().isClean()) {
+                return false;
+            }
+            git.commit().setMessage(message).call();
+            return true;
+        } catch (GitAPIException e) {
+            throw new IOException("JGit commit failed", e);
+        } finally {
+            repository.close();
+        }
+    }
+
+    public boolean push(File workDir, String localBranch, String remoteBranch, boolean force) throws IOException {
+        final Repository repository = open(workDir);
+        try {
+            final RefSpec refSpec = new RefSpec(Constants.R_HEADS + localBranch + ":" + Constants.R_HEADS + remoteBranch).setForceUpdate(force);
+            final Iterable<PushResult> results = new Git(repository).push()
+                .setRemote("origin")
+                .setRefSpecs(refSpec)
+                .call();
+            for (PushResult result : results) {
+                for (RemoteRefUpdate update : result.getRemoteUpdates()) {
+                    final RemoteRefUpdate.Status status = update.getStatus();
+                    if (status == RemoteRefUpdate.Status.REJECTED_NONFASTFORWARD || status == RemoteRefUpdate.Status.REJECTED_REMOTE_CHANGED) {
+                        return false;
+                    }
+                    if (status != RemoteRefUpdate.Status.OK && status != RemoteRefUpdate.Status.UP_TO_DATE) {
+                        throw new IOException(String.format("JGit push of %s was rejected: %s %s", update.getRemoteName(), status, update.getMessage()));
+                    }
+                }
+            }
+            return true;
+        } catch (GitAPIException e) {
+            throw new IOException("JGit push failed", e);
+        } finally {
+            repository.close();
+        }
+    }
+
+    private static boolean remoteHasBranch(String remoteUrl, String branch) throws GitAPIException {
+        final Collection<Ref> refs = Git.lsRemoteRepository()
+            .setRemote(remoteUrl)
+            .setHeads(true)
+            .call();
+        for (Ref ref : refs) {
+            if (ref.getName().equals(Constants.R_HEADS + branch)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkRefUpdate(RefUpdate.Result result, String name) throws IOException {
+        switch (result) {
+        case NEW:
+        case FORCED:
+        case FAST_FORWARD:
+        case NO_CHANGE:
+            return;
+        default:
+            throw new IOException(String.format("Cannot update %s: %s", name, result));
+        }
+    }
+
+    /**
+     * Opens the repository through the JVM-wide cache; must be balanced by {@link Repository#close()}.
+     */
+    private static Repository open(File workDir) throws IOException {
+        return RepositoryCache.open(RepositoryCache.FileKey.exact(new File(workDir, Constants.DOT_GIT), FS.DETECTED));
+    }
+}
@@ -0,0 +1,123 @@
+package net.kozelka.gitsite.git;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import net.kozelka.gitsite.utils.ShellExecutor;
+import org.codehaus.plexus.util.cli.CommandLineTimeOutException;
+
+/**
+ * Pushes a local ref into the site branch of mirror remotes, all of them in parallel, each by its own <code>git push</code> process.
+ * <p>
+ * Mirrors follow the primary remote, so the pushes are forced; they are started only after the primary remote has accepted the commit,
+ * so that a rejected primary push never leaves the mirrors ahead of it.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class MirrorPushes {
+    private final List<String> urls;
+    private final List<Future<Outcome>> futures = new ArrayList<Future<Outcome>>();
+    private final ExecutorService executor;
+
+    private MirrorPushes(List<String> urls) {
+        this.urls = urls;
+        this.executor = urls.isEmpty() ? null : Executors.newFixedThreadPool(urls.size(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "gitsite-mirror-push");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param shell executor to fork the pushing ones from; its working directory must be the repository with the ref
+     * @param timeoutSeconds how long each push may take; 0 for no limit
+     */
+    public static MirrorPushes start(ShellExecutor shell, List<String> urls, final String localRef, final String branch, int timeoutSeconds) {
+        final MirrorPushes pushes = new MirrorPushes(urls);
+        for (final String url : urls) {
+            final ShellExecutor forked = shell.fork();
+            forked.setTimeout(timeoutSeconds);
+            pushes.futures.add(pushes.executor.submit(new Callable<Outcome>() {
+                public Outcome call() throws Exception {
+                    final long start = System.currentTimeMillis();
+                    final ShellExecutor.Result result = new ShellExecutor.Result(CliGitOperations.TAIL_LINES);
+                    String error = null;
+                    try {
+                        forked.execWithResult(result, "git", "push", url, localRef + ":refs/heads/" + branch, "--force");
+                        if (result.getExitCode() != 0) {
+                            final List<String> stderr = result.getStderrLines();
+                            error = String.format("git push exited with code %d%s", result.getExitCode(),
+                                stderr.isEmpty() ? "" : ": " + stderr.get(stderr.size() - 1));
+                        }
+                    } catch (CommandLineTimeOutException e) {
+                        error = "timed out";
+                    }
+                    return new Outcome(url, System.currentTimeMillis() - start, error);
+                }
+            }));
+        }
+        if (pushes.executor != null) {
+            pushes.executor.shutdown();
+        }
+        return pushes;
+    }
+
+    /**
+     * Waits for all pushes to finish.
+     *
+     * @return outcome of each push, in the order of urls
+     */
+    public List<Outcome> await() throws InterruptedIOException {
+        final List<Outcome> outcomes = new ArrayList<Outcome>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                outcomes.add(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for pushes to mirrors");
+            } catch (ExecutionException e) {
+                outcomes.add(new Outcome(urls.get(i), 0, String.valueOf(e.getCause())));
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Result of pushing to one mirror.
+     */
+    public static class Outcome {
+        private final String url;
+        private final long millis;
+        private final String error;
+
+        Outcome(String url, long millis, String error) {
+            this.url = url;
+            this.millis = millis;
+            this.error = error;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return why the push failed, or null if it succeeded
+         */
+        public String getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package net.kozelka.gitsite.git;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Work clone of the site branch, ready for synchronizing the site into.
+ *
+ * @author Petr Kozelka
+ */
+public class WorkClone {
+    private final File workDir;
+    private final String localBranch;
+    private final boolean branchCreated;
+    private final boolean sparse;
+    private int fileCount;
+    private Closeable lock;
+
+    /**
+     * @param localBranch the checked-out branch
+     * @param branchCreated true if the site branch does not exist in the remote yet, and the local branch is a new one
+     */
+    public WorkClone(File workDir, String localBranch, boolean branchCreated, boolean sparse) {
+        this.workDir = workDir;
+        this.localBranch = localBranch;
+        this.branchCreated = branchCreated;
+        this.sparse = sparse;
+    }
+
+    public File getWorkDir() {
+        return workDir;
+    }
+
+    public String getLocalBranch() {
+        return localBranch;
+    }
+
+    public boolean isBranchCreated() {
+        return branchCreated;
+    }
+
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * @return number of site files in the work tree, as of the last synchronization
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public void setFileCount(int fileCount) {
+        this.fileCount = fileCount;
+    }
+
+    /**
+     * @param lock lock of the cached clone, see {@link WorkCloneCache#lock}; null if not cached
+     */
+    public void setLock(Closeable lock) {
+        this.lock = lock;
+    }
+
+    /**
+     * @param branch the site branch, just published from this clone and checked out
+     * @return the same clone, continuing on the published branch as if it was cloned; it takes over the lock
+     */
+    public WorkClone published(String branch) {
+        final WorkClone cloned = new WorkClone(workDir, branch, false, sparse);
+        cloned.fileCount = fileCount;
+        cloned.lock = lock;
+        lock = null;
+        return cloned;
+    }
+
+    /**
+     * Lets other builds use the cached clone.
+     */
+    public void release() throws IOException {
+        if (lock != null) {
+            lock.close();
+        }
+        lock = null;
+    }
+}
@@ -0,0 +1,153 @@
+package net.kozelka.gitsite.git;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Keeps work clones of site branches between runs, so that each deploy only needs to fetch the recent changes.
+ * <p>
+ * Each clone lives in its own subdirectory of the cache directory, keyed by remote url and branch.
+ * Whenever the cached clone looks broken or points to a different remote, it is wiped so that the caller can make a clean clone.
+ * </p>
+ * <p>
+ * Builds sharing the cache directory take turns on each clone: a build holds the {@link #lock} of the clone for the whole deployment,
+ * and others wait for it.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class WorkCloneCache {
+    private final File cacheDirectory;
+    private final GitOperations git;
+    private final Log log;
+    private static final long LOCK_POLL_MILLIS = 200;
+
+    public WorkCloneCache(File cacheDirectory, GitOperations git, Log log) {
+        this.cacheDirectory = cacheDirectory;
+        this.git = git;
+        this.log = log;
+    }
+
+    /**
+     * @param sparsePath the path that the clone's sparse checkout is limited to; null for full clone
+     * @return directory of the work clone for given remote and branch; it is not guaranteed to exist
+     */
+    public File getWorkDir(String remoteUrl, String branch, String sparsePath) {
+        final String readable = branch.replaceAll("[^A-Za-z0-9._-]", "_");
+        final String key = remoteUrl + "\n" + branch + (sparsePath == null ? "" : "\n" + sparsePath);
+        return new File(cacheDirectory, readable + "-" + sha1Hex(key).substring(0, 12));
+    }
+
+    /**
+     * Waits until no other build uses given cache entry, and locks it.
+     * The lock file is kept beside the entry, which itself may get wiped meanwhile.
+     *
+     * @param entry a work directory from {@link #getWorkDir}, or a repository next to it
+     * @return the lock; closing it lets other builds in
+     */
+    public Closeable lock(File entry) throws IOException {
+        final File lockFile = new File(entry.getAbsolutePath() + ".lock");
+        lockFile.getParentFile().mkdirs();
+        final FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        boolean locked = false;
+        try {
+            boolean waiting = false;
+            while (true) {
+                FileLock lock;
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    // held by another thread of this process
+                    lock = null;
+                }
+                if (lock != null) {
+                    locked = true;
+                    return channel;
+                }
+                if (!waiting) {
+                    log.info(String.format("Waiting for another build to finish with %s", entry));
+                    waiting = true;
+                }
+                try {
+                    Thread.sleep(LOCK_POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for lock " + lockFile);
+                }
+            }
+        } finally {
+            if (!locked) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Brings the cached clone to the tip of the remote branch, discarding any local changes.
+     *
+     * @return true if the clone is ready for use; false if it was missing or unusable - in that case, the work directory is left empty and a clean clone is needed
+     */
+    public boolean refresh(File workDir, String remoteUrl, String branch) throws IOException {
+        final String cachedRemoteUrl;
+        try {
+            cachedRemoteUrl = git.getRemoteUrl(workDir);
+        } catch (IOException e) {
+            log.warn(String.format("Cached work clone %s is corrupt - discarding it", workDir), e);
+            return wipe(workDir);
+        }
+        if (cachedRemoteUrl == null) {
+            log.info(String.format("No usable cached work clone in %s", workDir));
+            return wipe(workDir);
+        }
+        if (!remoteUrl.equals(cachedRemoteUrl)) {
+            log.warn(String.format("Cached work clone %s does not point to %s - discarding it", workDir, remoteUrl));
+            return wipe(workDir);
+        }
+        try {
+            if (!git.fetch(workDir, branch)) {
+                log.info(String.format("Branch '%s' no longer exists in '%s'", branch, remoteUrl));
+                return wipe(workDir);
+            }
+            git.checkoutRemote(workDir, branch);
+        } catch (IOException e) {
+            log.warn(String.format("Cannot update cached work clone %s - discarding it", workDir), e);
+            return wipe(workDir);
+        }
+        log.info(String.format("Reusing cached work clone %s", workDir));
+        return true;
+    }
+
+    private static boolean wipe(File workDir) throws IOException {
+        FileUtils.deleteDirectory(workDir);
+        if (!workDir.mkdirs()) {
+            throw new IOException("Cannot create directory " + workDir);
+        }
+        return false;
+    }
+
+    private static String sha1Hex(String s) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package net.kozelka.gitsite.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import net.kozelka.gitsite.utils.AsyncFileLog;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Background preparation of a work clone, with cleanup in case nobody picks it up.
+ * <p>
+ * The preparation writes into a log that is handed over to whoever {@link #take() takes} the clone,
+ * so that the log file is written by one instance only.
+ * If the JVM exits before the clone is taken, it is {@link #abandon() abandoned}; the caller abandons it also when the build ends without taking it.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class WorkClonePrefetch {
+    /**
+     * How long an abandoned preparation may take to stop, before its directory is deleted.
+     */
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+
+    private final ExecutorService executor;
+    private Future<WorkClone> future;
+    private final AsyncFileLog fileLog;
+    private final File workDirToClean;
+    private final Log log;
+    /**
+     * The clone once prepared, even if the preparation was cancelled meanwhile; it holds the lock of a cached clone.
+     */
+    private final AtomicReference<WorkClone> prepared = new AtomicReference<WorkClone>();
+    private volatile boolean abandoned;
+    private final Thread shutdownHook = new Thread("gitsite-prefetch-cleanup") {
+        @Override
+        public void run() {
+            abandon();
+        }
+    };
+
+    private WorkClonePrefetch(ExecutorService executor, AsyncFileLog fileLog, File workDirToClean, Log log) {
+        this.executor = executor;
+        this.fileLog = fileLog;
+        this.workDirToClean = workDirToClean;
+        this.log = log;
+    }
+
+    /**
+     * Starts given preparation in a daemon thread.
+     *
+     * @param fileLog the log that the preparation writes into
+     * @param workDirToClean the directory to delete when abandoned; null to keep it, like a cached clone
+     * @param log where problems of abandoning are reported
+     */
+    public static WorkClonePrefetch start(final Callable<WorkClone> preparation, AsyncFileLog fileLog, File workDirToClean, Log log) {
+        final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "gitsite-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final WorkClonePrefetch prefetch = new WorkClonePrefetch(executor, fileLog, workDirToClean, log);
+        prefetch.future = executor.submit(new Callable<WorkClone>() {
+            public WorkClone call() throws Exception {
+                final WorkClone workClone = preparation.call();
+                prefetch.prepared.set(workClone);
+                if (prefetch.abandoned) {
+                    // nobody is going to take it
+                    workClone.release();
+                }
+                return workClone;
+            }
+        });
+        executor.shutdown();
+        Runtime.getRuntime().addShutdownHook(prefetch.shutdownHook);
+        return prefetch;
+    }
+
+    /**
+     * @return the log of the preparation; it stays open, and is closed by whoever takes the clone
+     */
+    public AsyncFileLog getFileLog() {
+        return fileLog;
+    }
+
+    /**
+     * Waits for the preparation to finish.
+     *
+     * @return the prepared work clone; the caller releases it
+     */
+    public WorkClone take() throws IOException, CommandLineException {
+        removeShutdownHook();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the work clone", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof CommandLineException) {
+                throw (CommandLineException) cause;
+            }
+            throw new IOException("Background preparation of the work clone failed", cause);
+        }
+    }
+
+    /**
+     * Cancels the preparation and waits for it to stop, releases the clone if it is prepared already, closes the log and, unless cached, deletes the clone.
+     * The interrupted preparation kills its git process; if it does not stop in time, the clone is left in place, as the process may still be writing into it.
+     */
+    public void abandon() {
+        abandoned = true;
+        future.cancel(true);
+        boolean stopped;
+        try {
+            stopped = executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = false;
+        }
+        final WorkClone workClone = prepared.get();
+        if (stopped && workClone != null) {
+            try {
+                workClone.release();
+            } catch (IOException e) {
+                log.warn(String.format("Cannot release abandoned work clone %s: %s", workClone.getWorkDir(), e));
+            }
+        }
+        fileLog.close();
+        if (workDirToClean != null) {
+            if (!stopped) {
+                log.warn(String.format("Background preparation of the work clone did not stop in %d s - leaving %s in place", STOP_TIMEOUT_SECONDS, workDirToClean));
+            } else {
+                try {
+                    FileUtils.deleteDirectory(workDirToClean);
+                } catch (IOException e) {
+                    log.warn(String.format("Cannot delete abandoned work clone %s: %s", workDirToClean, e));
+                }
+            }
+        }
+        removeShutdownHook();
+    }
+
+    private void removeShutdownHook() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // already shutting down
+        }
+    }
+}
@@ -1,25 +1,34 @@
 package net.kozelka.gitsite.mojo;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.lang.reflect.Field;
-import java.util.Arrays;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Properties;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.maven.execution.MavenExecutionRequest;
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.SessionData;
 
 /**
- * Dispatches execution to method based on module position within the reactor
+ * Dispatches execution to method based on module position within the reactor.
+ * <p>
+ * Coordination state lives in the session, so it is safe with parallel builds (<code>-T</code>)
+ * and with concurrent builds of the same checkout. The "last module" is the one in which the mojo completes last,
+ * counted down over all reactor projects that execute the mojo - not the last entry of the reactor list.
+ * If some of them fail or get skipped, the countdown never finishes; this is reported as an error when the session ends.
+ * </p>
  */
 public abstract class AbstractMultiModuleMojo extends AbstractMojo {
     @Parameter(property = "reactorProjects", readonly = true)
@@ -28,105 +37,210 @@ public abstract class AbstractMultiModuleMojo extends AbstractMojo {
     protected MavenProject project;
     @Parameter(property = "session", required = true, readonly = true)
     protected MavenSession mavenSession;
+    @Parameter(defaultValue = "${mojoExecution}", readonly = true)
+    protected MojoExecution mojoExecution;
 
     protected String executionRootDirectory;
+    /**
+     * Data shared by all mojos of the build; null until the mojo is executed.
+     */
+    SessionData sessionData;
 
     public void execute() throws MojoExecutionException, MojoFailureException {
         // http://lorands.com/2011/08/how-to-find-out-if-the-given-maven-project-is-a-root-of-a-multi-module-execution/
-        executionRootDirectory = mavenSession.getExecutionRootDirectory();
+        sessionData = mavenSession.getRepositorySession().getData();
+        watchSession(mavenSession.getRequest());
+        execute(mavenSession.getExecutionRootDirectory(), sessionData);
+    }
+
+    /**
+     * Makes the session call {@link #sessionEnded()} when the build is over; the first mojo to share the reactor state installs the listener.
+     */
+    private void watchSession(MavenExecutionRequest request) {
+        if (getReactorState().watched.compareAndSet(false, true)) {
+            request.setExecutionListener(new SessionEndListener(request.getExecutionListener(), new Runnable() {
+                public void run() {
+                    sessionEnded();
+                }
+            }));
+        }
+    }
+
+    /**
+     * Executes the mojo within the build started in given directory, sharing the reactor state through given data.
+     */
+    void execute(String executionRootDirectory, SessionData sessionData) throws MojoExecutionException, MojoFailureException {
+        this.executionRootDirectory = executionRootDirectory;
+        this.sessionData = sessionData;
+        final ReactorState reactorState = getReactorState();
         if (project == reactorProjects.get(0)) {
             executeInFirstModule();
         }
         if (project.isExecutionRoot()) {
+            getLog().info(String.format("Last module work waits for %d module(s) executing %s; if any of them fails or is skipped, it is not done", reactorState.participants, describeExecution()));
             executeInRootModule();
         }
-        final int size = reactorProjects.size();
-        if (project == reactorProjects.get(size - 1)) {
+        final int remaining = reactorState.remaining.decrementAndGet();
+        getLog().debug(String.format("%s: %d more module(s) to go", project.getArtifactId(), remaining));
+        if (remaining == 0) {
             executeInLastModule();
         }
         executeInEachModule();
     }
 
-    private File getParamFile() {
-        try {
-            final String s = new File(executionRootDirectory).getCanonicalPath();
-            return new File(String.format("%s/gitsite-%d.properties",
-                System.getProperty("java.io.tmpdir"),
-                s.hashCode()));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Reports an unfinished countdown, which means that {@link #executeInLastModule()} did not happen; then calls {@link #executeAtSessionEnd()}.
+     */
+    void sessionEnded() {
+        final ReactorState reactorState = getReactorState();
+        final int remaining = reactorState.remaining.get();
+        if (remaining > 0) {
+            getLog().error(String.format("%d of %d module(s) did not complete %s (failed or skipped) - its last module work was NOT done", remaining, reactorState.participants, describeExecution()));
         }
+        executeAtSessionEnd();
     }
 
-    protected File saveParameters(String... fieldNames) throws MojoExecutionException {
-        final File paramFile = getParamFile();
-        getLog().debug(String.format("Saving values to %s - fields: %s", paramFile, Arrays.toString(fieldNames)));
+    private String describeExecution() {
+        return mojoExecution == null ? getClass().getSimpleName() : String.format("%s (%s)", mojoExecution.getGoal(), mojoExecution.getExecutionId());
+    }
+
+    /**
+     * @return state shared by all executions of this mojo within the session; created on first use
+     */
+    ReactorState getReactorState() {
+        final String key = getClass().getName() + "/" + (mojoExecution == null ? "" : mojoExecution.getExecutionId());
+        ReactorState state = (ReactorState) sessionData.get(key);
+        if (state == null) {
+            final ReactorState newState = new ReactorState(countParticipants());
+            state = sessionData.set(key, null, newState) ? newState : (ReactorState) sessionData.get(key);
+        }
+        return state;
+    }
+
+    /**
+     * @return number of reactor projects in which this mojo will execute
+     */
+    private int countParticipants() {
+        if (mojoExecution == null || mojoExecution.getSource() == MojoExecution.Source.CLI) {
+            return reactorProjects.size();
+        }
+        final String pluginKey = mojoExecution.getPlugin().getKey();
+        final String goal = mojoExecution.getGoal();
+        final String executionId = mojoExecution.getExecutionId();
+        int count = 0;
+        for (MavenProject reactorProject : reactorProjects) {
+            if (bindsGoal(reactorProject, pluginKey, goal, executionId)) {
+                count++;
+            }
+        }
+        return count == 0 ? reactorProjects.size() : count;
+    }
+
+    /**
+     * @return true if given project executes given goal within the execution of given id
+     */
+    private static boolean bindsGoal(MavenProject reactorProject, String pluginKey, String goal, String executionId) {
+        // raw types: the compile-time MavenProject is older than the runtime one
+        for (Object pluginObject : reactorProject.getBuildPlugins()) {
+            final Plugin plugin = (Plugin) pluginObject;
+            if (!pluginKey.equals(plugin.getKey())) {
+                continue;
+            }
+            for (Object executionObject : plugin.getExecutions()) {
+                final PluginExecution execution = (PluginExecution) executionObject;
+                if (executionId.equals(execution.getId()) && execution.getGoals().contains(goal)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remembers values of the parameters, so that the last module can use them.
+     * The parameters are all instance fields declared by the subclasses; fields of this class are left out.
+     */
+    protected void saveParameters() throws MojoExecutionException {
+        final List<Field> fields = getParameterFields();
+        getLog().debug(String.format("Saving values of fields: %s", fields));
         try {
-            final Properties properties = new Properties();
-            for (String fieldName : fieldNames) {
-                final Field field = this.getClass().getDeclaredField(fieldName);
+            final Map<String, Object> parameters = getReactorState().parameters;
+            for (Field field : fields) {
                 field.setAccessible(true);
                 final Object value = field.get(this);
                 if (value != null) {
-                    properties.put(fieldName, value + "");
+                    parameters.put(field.getName(), value);
                 }
             }
-            final OutputStream os = new FileOutputStream(paramFile);
-            try {
-                properties.store(os, getClass().getName());
-            } finally {
-                os.close();
-            }
-            return paramFile;
-        } catch (NoSuchFieldException e) {
-            throw new MojoExecutionException("Cannot save parameters", e);
         } catch (IllegalAccessException e) {
             throw new MojoExecutionException("Cannot save parameters", e);
-        } catch (IOException e) {
-            throw new MojoExecutionException("Cannot save parameters", e);
         }
     }
 
-    protected File loadParameters() throws MojoExecutionException {
-        final File paramFile = getParamFile();
-        try {
-            getLog().debug(String.format("Loading values from %s", paramFile));
-            final Properties properties = new Properties();
-            final FileInputStream is = new FileInputStream(paramFile);
-            try {
-                properties.load(is);
-            } finally {
-                is.close();
+    /**
+     * @return the non-static fields declared by the class of this mojo and its superclasses, up to this class
+     */
+    private List<Field> getParameterFields() {
+        final List<Field> fields = new ArrayList<Field>();
+        for (Class<?> c = getClass(); c != AbstractMultiModuleMojo.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+                    fields.add(field);
+                }
             }
-            final Set<Object> keys = properties.keySet();
-            for (Object key : keys) {
-                final String fieldName = (String) key;
-                final Field field = this.getClass().getDeclaredField(fieldName);
+        }
+        return fields;
+    }
+
+    /**
+     * Applies values saved by {@link #saveParameters()}; if none were saved, current values are kept.
+     */
+    protected void loadParameters() throws MojoExecutionException {
+        final Map<String, Object> parameters = getReactorState().parameters;
+        getLog().debug(String.format("Loading values of fields: %s", parameters.keySet()));
+        try {
+            for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+                final Field field = findField(entry.getKey());
                 field.setAccessible(true);
-                final String value = properties.getProperty(fieldName);
-                field.set(this, fromString(value, field.getType()));
+                field.set(this, entry.getValue());
             }
-        } catch (FileNotFoundException e) {
-            throw new MojoExecutionException("Cannot load parameters", e);
-        } catch (IOException e) {
-            throw new MojoExecutionException("Cannot load parameters", e);
         } catch (NoSuchFieldException e) {
             throw new MojoExecutionException("Cannot load parameters", e);
         } catch (IllegalAccessException e) {
             throw new MojoExecutionException("Cannot load parameters", e);
         }
-        return paramFile;
     }
 
-    private Object fromString(String s, Class<?> toType) {
-        if (toType.equals(Boolean.class) || toType.equals(boolean.class)) {
-            return Boolean.valueOf(s);
-        }
-        if (toType.equals(File.class)) {
-            return new File(s);
+    /**
+     * @return the field declared by the class of this mojo or by any of its superclasses
+     */
+    private Field findField(String fieldName) throws NoSuchFieldException {
+        for (Class<?> c = getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(fieldName);
+            } catch (NoSuchFieldException e) {
+                // try the superclass
+            }
         }
-        // more types comes here if needed
-        return s;
+        throw new NoSuchFieldException(fieldName);
+    }
+
+    protected void putSessionAttribute(String key, Object value) {
+        getReactorState().attributes.put(key, value);
+    }
+
+    /**
+     * @return object that is shared under given key, or null; it stays shared
+     */
+    protected Object getSessionAttribute(String key) {
+        return getReactorState().attributes.get(key);
+    }
+
+    /**
+     * @return object that was shared under given key, or null; it is no longer shared afterwards
+     */
+    protected Object removeSessionAttribute(String key) {
+        return getReactorState().attributes.remove(key);
     }
 
     protected void executeInEachModule() throws MojoExecutionException, MojoFailureException {
@@ -141,7 +255,31 @@ public abstract class AbstractMultiModuleMojo extends AbstractMojo {
         //
     }
 
+    /**
+     * Executed once, in the module that completes last among those executing this mojo.
+     */
     protected void executeInLastModule() throws MojoExecutionException, MojoFailureException {
         //
     }
+
+    /**
+     * Executed once, when the build is over, by the mojo that shares the reactor state first - whether the last module was reached or not.
+     * Runs only within a real Maven session.
+     */
+    protected void executeAtSessionEnd() {
+        //
+    }
+
+    static class ReactorState {
+        private final int participants;
+        private final AtomicInteger remaining;
+        private final AtomicBoolean watched = new AtomicBoolean();
+        private final ConcurrentMap<String, Object> parameters = new ConcurrentHashMap<String, Object>();
+        private final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+
+        ReactorState(int participants) {
+            this.participants = participants;
+            this.remaining = new AtomicInteger(participants);
+        }
+    }
 }
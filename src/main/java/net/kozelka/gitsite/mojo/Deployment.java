@@ -0,0 +1,41 @@
+package net.kozelka.gitsite.mojo;
+
+import java.io.File;
+
+/**
+ * One site directory to be published into one subcontext, as an element of the <code>deployments</code> parameter.
+ *
+ * @author Petr Kozelka
+ */
+public class Deployment {
+    /**
+     * The site directory to be deployed.
+     */
+    File inputDirectory;
+
+    /**
+     * Subdirectory for placing the site's content; empty or missing for the root of the site.
+     */
+    String subcontext;
+
+    public Deployment() {
+    }
+
+    public Deployment(File inputDirectory, String subcontext) {
+        this.inputDirectory = inputDirectory;
+        this.subcontext = subcontext;
+    }
+
+    public File getInputDirectory() {
+        return inputDirectory;
+    }
+
+    public String getSubcontext() {
+        return subcontext == null ? "" : subcontext;
+    }
+
+    @Override
+    public String toString() {
+        return inputDirectory + " -> " + (getSubcontext().length() == 0 ? "/" : getSubcontext());
+    }
+}
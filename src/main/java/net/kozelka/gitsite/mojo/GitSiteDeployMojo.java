@@ -1,15 +1,39 @@
 package net.kozelka.gitsite.mojo;
 
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
+import net.kozelka.gitsite.git.BranchPush;
+import net.kozelka.gitsite.git.ChunkedCommit;
+import net.kozelka.gitsite.git.CliGitOperations;
+import net.kozelka.gitsite.git.FastImportCommit;
+import net.kozelka.gitsite.git.GitOperations;
+import net.kozelka.gitsite.git.HistoryRetention;
+import net.kozelka.gitsite.git.JGitOperations;
+import net.kozelka.gitsite.git.WorkClone;
+import net.kozelka.gitsite.git.WorkCloneCache;
+import net.kozelka.gitsite.git.WorkClonePrefetch;
+import net.kozelka.gitsite.sync.Precompression;
+import net.kozelka.gitsite.sync.Precompressor;
+import net.kozelka.gitsite.sync.SiteScan;
+import net.kozelka.gitsite.sync.SiteSync;
+import net.kozelka.gitsite.sync.StatCache;
+import net.kozelka.gitsite.utils.AsyncFileLog;
+import net.kozelka.gitsite.utils.DeployMetrics;
 import net.kozelka.gitsite.utils.ShellExecutor;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -17,6 +41,7 @@ import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.StringUtils;
 import org.codehaus.plexus.util.cli.CommandLineException;
 import org.codehaus.plexus.util.cli.StreamConsumer;
 
@@ -43,6 +68,14 @@ public class GitSiteDeployMojo extends AbstractMultiModuleMojo {
 
     /**
      * The SCM URL where the site will be deployed. By default we reuse the current project's scm.
+     * <p>
+     * Several comma-separated URLs publish the site to mirrors too, like <code>scm:git:git@github.com:me/site.git,scm:git:https://mirror.example.com/site.git</code>.
+     * The first one is the primary remote: the site branch is fetched from there, and the commit is built on top of it.
+     * Once the primary remote has accepted the commit, it is force-pushed into the other ones, all of them in parallel;
+     * a rejected primary push leaves the mirrors untouched until an attempt succeeds.
+     * The deployment therefore takes the primary push plus the slowest mirror push, rather than just the slowest of all pushes.
+     * Mirrors require gitBackend <code>cli</code>.
+     * </p>
      */
     @Parameter(defaultValue = "${project.scm.developerConnection}", property = "gitsite.gitScmUrl")
     String gitScmUrl;
@@ -55,6 +88,24 @@ public class GitSiteDeployMojo extends AbstractMultiModuleMojo {
     @Parameter(defaultValue = "true", property = "gitsite.keepHistory")
     boolean keepHistory;
 
+    /**
+     * With <code>keepHistory</code>, how many most recent commits of the site branch to retain; 0 means all of them.
+     * Older history is collapsed into a single root commit, and the rewritten branch is pushed with <code>--force-with-lease</code>.
+     * The collapse happens once the older commits outnumber the retained ones, so the branch is not rewritten with every deployment.
+     * Requires gitBackend <code>cli</code>.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "0", property = "gitsite.historyCommits")
+    int historyCommits;
+
+    /**
+     * With <code>keepHistory</code>, how many days of the site branch history to retain; 0 means all of it.
+     * Works like <code>historyCommits</code>; when both are set, a commit is retained only if it is within both limits.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "0", property = "gitsite.historyDays")
+    int historyDays;
+
     /**
      * Commit message to be used for publishing.
      * This is passed to {@link String#format(String, Object...)} where first parameter is number of published files; therefore, you can use '%d' placeholder to reference it.
@@ -68,6 +119,22 @@ public class GitSiteDeployMojo extends AbstractMultiModuleMojo {
     @Parameter(defaultValue = "${project.build.directory}/gitsite-deploy.log")
     File logfile;
 
+    /**
+     * Maximum size of the <code>logfile</code>, in bytes. When exceeded, the log is renamed with suffix <code>.1</code>,
+     * replacing the previously rotated one, and a new log is started. Zero means no limit.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "10485760", property = "gitsite.logfileMaxSize")
+    long logfileMaxSize;
+
+    /**
+     * Where to write the JSON report with wall time of deployment phases, file and byte counters, and executed processes with their exit codes.
+     * A summary is also printed to the build log.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "${project.build.directory}/gitsite-deploy-metrics.json", property = "gitsite.metricsFile")
+    File metricsFile;
+
     /**
      * Subdirectory for placing the site's content.
      * <p>
@@ -79,6 +146,25 @@ public class GitSiteDeployMojo extends AbstractMultiModuleMojo {
     @Parameter(property = "gitsite.subcontext")
     String subcontext;
 
+    /**
+     * Multiple site directories to be published into their subcontexts at once, with a single commit and push;
+     * when set, <code>inputDirectory</code> and <code>subcontext</code> only apply to the location of the work clone.
+     * For instance:
+     * <pre>
+     * &lt;deployments&gt;
+     *   &lt;deployment&gt;
+     *     &lt;inputDirectory&gt;${project.build.directory}/docs-1.0&lt;/inputDirectory&gt;
+     *     &lt;subcontext&gt;/VERSION/1.0&lt;/subcontext&gt;
+     *   &lt;/deployment&gt;
+     *   ...
+     * &lt;/deployments&gt;
+     * </pre>
+     * Subcontexts must not be nested in each other, except for ones under <code>roots</code> together with the root of the site.
+     * @since 0.1.3
+     */
+    @Parameter
+    List<Deployment> deployments;
+
     /**
      * Name of the file that will contain simple listing of subcontexts.
      * The listing is alphabetically sorted, line separated and each subcontext is listed only once.
@@ -92,11 +178,218 @@ public class GitSiteDeployMojo extends AbstractMultiModuleMojo {
     @Parameter(defaultValue = "VERSION,BRANCH", property = "gitsite.roots")
     String roots;
 
-    private static final String SCM_PREFIX = "scm:git:";
+    /**
+     * Directory for keeping work clones between deployments, for instance <code>${user.home}/.m2/gitsite-cache</code>.
+     * <p>
+     * When set, the work clone is not created from scratch each time; instead, the cached one is fetched and hard-reset to the tip of the remote branch.
+     * A cached clone that is corrupt or points to a different remote is discarded and cloned again.
+     * When not set, a fresh clone is made into <code>${inputDirectory}.work</code>.
+     * </p>
+     * @since 0.1.3
+     */
+    @Parameter(property = "gitsite.cacheDirectory")
+    File cacheDirectory;
+
+    /**
+     * Whether to check out only the <code>subcontext</code>, instead of the whole site branch.
+     * <p>
+     * When true and <code>subcontext</code> is set, the work clone is shallow (<code>--depth 1</code>), partial (<code>--filter=blob:none</code>)
+     * and its sparse checkout only contains the subcontext, the <code>index</code> file and <code>.gitattributes</code>.
+     * Size and time of the checkout then depends on the deployed subcontext only, not on all the other ones.
+     * Ignored when deploying to the root of the site.
+     * </p>
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "false", property = "gitsite.sparseCheckout")
+    boolean sparseCheckout;
+
+    /**
+     * How the site commit is created:
+     * <ul>
+     * <li><code>worktree</code> - the site is synchronized into a checked-out work clone, and committed with <code>git add</code> and <code>git commit</code></li>
+     * <li><code>fast-import</code> - the commit is streamed directly from <code>inputDirectory</code> through <code>git fast-import</code>
+     * into a bare repository <code>${inputDirectory}.git</code>; other subcontexts and roots are kept as tree references and never checked out.
+     * Files are stored as they are, without the <code>text=auto</code> line ending normalization.
+     * Executable files get mode 100755, and symbolic links are committed as links, while <code>worktree</code> follows them and commits the content of their targets.</li>
+     * </ul>
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = COMMIT_MODE_WORKTREE, property = "gitsite.commitMode")
+    String commitMode;
+
+    /**
+     * Implementation of git operations used with the <code>worktree</code> commit mode:
+     * <ul>
+     * <li><code>cli</code> - invokes the external <code>git</code> program</li>
+     * <li><code>jgit</code> - works in-process using JGit, without starting any processes; does not support <code>sparseCheckout</code></li>
+     * </ul>
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = GIT_BACKEND_CLI, property = "gitsite.gitBackend")
+    String gitBackend;
+
+    /**
+     * Whether to start cloning (or fetching, with <code>cacheDirectory</code>) the site branch in background, as soon as the root module executes.
+     * <p>
+     * In multi-module builds, this lets the network transfer overlap with building the other modules;
+     * the last module then just waits for the prepared work clone.
+     * Only applies to the <code>worktree</code> commit mode.
+     * </p>
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "false", property = "gitsite.prefetch")
+    boolean prefetch;
+
+    /**
+     * Number of threads comparing and copying files into the work clone, with the <code>worktree</code> commit mode, and compressing files with <code>precompress</code>.
+     * Zero means the number of available processors; 1 disables parallel copying.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "0", property = "gitsite.syncThreads")
+    int syncThreads;
+
+    /**
+     * How many times to try the push, when the branch is concurrently updated by other publishers.
+     * After a rejected push, the remote branch is fetched again, the site and the <code>index</code> are re-applied on top of it,
+     * and the push is repeated. Only applies with <code>keepHistory</code>; otherwise the push is forced.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "5", property = "gitsite.pushAttempts")
+    int pushAttempts;
+
+    /**
+     * Initial delay, in milliseconds, before the push is retried; it doubles with each attempt, plus a random part up to the same amount.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "1000", property = "gitsite.pushRetryDelay")
+    long pushRetryDelay;
+
+    /**
+     * When the branch is created, push its content in parts of at most this many bytes, so that a huge site
+     * does not hit the size limits of the git server; 0 pushes everything at once.
+     * A single file larger than the limit makes a part of its own.
+     * Requires gitBackend <code>cli</code>.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "0", property = "gitsite.pushChunkBytes")
+    long pushChunkBytes;
+
+    /**
+     * When the branch is created, push its content in parts of at most this many files; 0 means no limit.
+     * Can be combined with <code>pushChunkBytes</code>.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "0", property = "gitsite.pushChunkFiles")
+    int pushChunkFiles;
+
+    /**
+     * Whether the parts pushed by <code>pushChunkBytes</code> or <code>pushChunkFiles</code> are finally replaced with a single commit.
+     * If false, the parts remain in the branch history.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "true", property = "gitsite.squashChunks")
+    boolean squashChunks;
+
+    /**
+     * Whether to remember size, modification time and blob id of published files, in a binary file inside the work clone (or the bare repository).
+     * Files that did not change since the previous deployment are then neither compared with the work tree nor read by fast-import.
+     * The cache is safe to delete at any time.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "true", property = "gitsite.statCache")
+    boolean statCache;
+
+    /**
+     * How long a push to one mirror may take, in seconds, before it is killed and reported as failed; 0 means no limit.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "600", property = "gitsite.mirrorPushTimeout")
+    int mirrorPushTimeout;
+
+    /**
+     * Whether a failed push to any of the mirrors fails the deployment; by default, it is only reported as a warning.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "false", property = "gitsite.mirrorsRequired")
+    boolean mirrorsRequired;
+
+    /**
+     * Whether to commit precompressed siblings of the site files, like <code>app.js.gz</code> next to <code>app.js</code>.
+     * <p>
+     * Web servers like nginx with <code>gzip_static</code> serve such siblings instead of compressing each response.
+     * The siblings are written into the work clone, or into <code>gitsite-precompressed</code> of the bare repository with the <code>fast-import</code> mode;
+     * the input directories are left untouched.
+     * A sibling is only written when missing, or when its modification time differs from its source's.
+     * Top-level <code>roots</code> of a site deployed into the root of the site are left out.
+     * </p>
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "false", property = "gitsite.precompress")
+    boolean precompress;
+
+    /**
+     * Comma-separated formats of precompressed siblings: <code>gz</code>, <code>br</code>.
+     * Brotli requires the <code>brotli</code> program on the <code>PATH</code>; without it, <code>br</code> siblings are skipped with a warning.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = Precompressor.GZIP, property = "gitsite.precompressFormats")
+    String precompressFormats;
+
+    /**
+     * Comma-separated extensions of the files to precompress.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "html,htm,css,js,mjs,json,xml,svg,txt,map", property = "gitsite.precompressTypes")
+    String precompressTypes;
+
+    /**
+     * Files smaller than this many bytes are not precompressed.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "1024", property = "gitsite.precompressMinSize")
+    long precompressMinSize;
+
+    static final String SCM_PREFIX = "scm:git:";
+    private static final String GIT_BACKEND_CLI = "cli";
+    private static final String GIT_BACKEND_JGIT = "jgit";
+    private static final String COMMIT_MODE_WORKTREE = "worktree";
+    static final String COMMIT_MODE_FAST_IMPORT = "fast-import";
+    private static final String DEPLOY_REF = "refs/gitsite/deploy";
+    static final String STAT_CACHE_FILE = "gitsite-stat-cache";
+    /**
+     * Directory of the bare repository keeping the precompressed siblings between <code>fast-import</code> deployments, one subdirectory per subcontext.
+     */
+    static final String PRECOMPRESSED_DIR = "gitsite-precompressed";
+    private static final String PREFETCH_ATTRIBUTE = "prefetch";
 
     private void validate() throws MojoExecutionException {
-        if (!gitScmUrl.startsWith(SCM_PREFIX)) {
-            throw new MojoExecutionException(String.format("gitScmUrl must start with prefix '%s'", SCM_PREFIX));
+        for (String scmUrl : gitScmUrl.split(",")) {
+            if (!scmUrl.trim().startsWith(SCM_PREFIX)) {
+                throw new MojoExecutionException(String.format("gitScmUrl must start with prefix '%s'", SCM_PREFIX));
+            }
+        }
+        if (!COMMIT_MODE_WORKTREE.equals(commitMode) && !COMMIT_MODE_FAST_IMPORT.equals(commitMode)) {
+            throw new MojoExecutionException(String.format("commitMode must be one of '%s', '%s'", COMMIT_MODE_WORKTREE, COMMIT_MODE_FAST_IMPORT));
+        }
+        if (!GIT_BACKEND_CLI.equals(gitBackend) && !GIT_BACKEND_JGIT.equals(gitBackend)) {
+            throw new MojoExecutionException(String.format("gitBackend must be one of '%s', '%s'", GIT_BACKEND_CLI, GIT_BACKEND_JGIT));
+        }
+        if (GIT_BACKEND_JGIT.equals(gitBackend) && COMMIT_MODE_FAST_IMPORT.equals(commitMode)) {
+            throw new MojoExecutionException(String.format("commitMode '%s' requires gitBackend '%s'", COMMIT_MODE_FAST_IMPORT, GIT_BACKEND_CLI));
+        }
+        if (GIT_BACKEND_JGIT.equals(gitBackend) && new HistoryRetention(historyCommits, historyDays).isEnabled()) {
+            throw new MojoExecutionException(String.format("historyCommits and historyDays require gitBackend '%s'", GIT_BACKEND_CLI));
+        }
+        if (GIT_BACKEND_JGIT.equals(gitBackend) && new ChunkedCommit(pushChunkBytes, pushChunkFiles).isEnabled()) {
+            throw new MojoExecutionException(String.format("pushChunkBytes and pushChunkFiles require gitBackend '%s'", GIT_BACKEND_CLI));
+        }
+        if (GIT_BACKEND_JGIT.equals(gitBackend) && getRemoteUrls().size() > 1) {
+            throw new MojoExecutionException(String.format("Multiple gitScmUrl remotes require gitBackend '%s'", GIT_BACKEND_CLI));
+        }
+        for (String format : precompress ? splitList(precompressFormats) : Collections.<String>emptyList()) {
+            if (!Precompressor.GZIP.equals(format) && !Precompressor.BROTLI.equals(format)) {
+                throw new MojoExecutionException(String.format("precompressFormats must be a list of '%s', '%s'", Precompressor.GZIP, Precompressor.BROTLI));
+            }
         }
     }
 
@@ -104,146 +397,823 @@ public class GitSiteDeployMojo extends AbstractMultiModuleMojo {
     protected void executeInRootModule() throws MojoExecutionException, MojoFailureException {
         getLog().debug("ROOT MODULE - executionRootDirectory = " + executionRootDirectory);
         validate();
-        saveParameters("inputDirectory", "gitBranch", "gitScmUrl", "keepHistory", "logfile", "commitMessage");
+        saveParameters();
+        if (prefetch) {
+            startPrefetch();
+        }
     }
 
     @Override
     protected void executeInLastModule() throws MojoExecutionException, MojoFailureException {
         getLog().debug("LAST MODULE - executionRootDirectory = " + executionRootDirectory);
-        final File paramFile = loadParameters();
-        gitSiteDeploy();
-        if (!paramFile.delete()) {
-            paramFile.deleteOnExit();
+        loadParameters();
+        try {
+            gitSiteDeploy();
+        } finally {
+            abandonPrefetch();
         }
     }
 
-    private void gitSiteDeploy() throws MojoExecutionException, MojoFailureException {
-        final File workDir = new File(inputDirectory.getAbsolutePath() + ".work");
-        workDir.mkdirs();
-        final ShellExecutor shell = getShellExecutor();
-        shell.setWorkingDirectory(workDir);
-        final String gitRemoteUrl = gitScmUrl.substring(SCM_PREFIX.length());
+    @Override
+    protected void executeAtSessionEnd() {
+        abandonPrefetch();
+    }
 
+    void gitSiteDeploy() throws MojoExecutionException, MojoFailureException {
+        final String gitRemoteUrl = getRemoteUrls().get(0);
+        subcontext = subcontext == null ? "" : subcontext;
+        final List<String> protectedRoots = getProtectedRoots();
+        final List<Deployment> batch = getDeployments();
+        validateDeployments(batch, protectedRoots);
+        final AsyncFileLog fileLog = openFileLog();
+        final DeployMetrics metrics = createMetrics(batch);
+        final ShellExecutor shell = getShellExecutor(fileLog);
+        shell.setProcessListener(metrics);
+        final GitOperations git = createGitOperations(shell);
+        final ForkJoinPool pool = createPool();
+        boolean success = false;
         try {
-            boolean pushForce = !keepHistory;
-            subcontext = subcontext == null ? "" : subcontext;
-
-            // clone or init site.wc
-            final String localBranch;
-            final ShellExecutor.Result cloneResult = shell.execWithResult("git", "clone", "--branch", gitBranch, "--single-branch", gitRemoteUrl, ".");
-            if (cloneResult.getExitCode() == 0) {
-                localBranch = gitBranch;
+            final Precompression precompression = createPrecompression(shell, pool, protectedRoots);
+            if (COMMIT_MODE_FAST_IMPORT.equals(commitMode)) {
+                deployWithFastImport(shell, git, metrics, precompression, gitRemoteUrl, batch, protectedRoots);
             } else {
-                boolean branchNotFound = cloneResult.stderrContains(Pattern.compile(".*could not find remote branch.*\\|.* not found in upstream .*"));
-                if (! branchNotFound) {
-                    throw new MojoExecutionException(String.format("git exited with code %d", cloneResult.getExitCode()));
-                }
-                getLog().info(String.format("Branch '%s' does not exist in '%s' - will be created", gitBranch, gitRemoteUrl));
-                pushForce = true;
-                localBranch = "master";
-            }
-
-            // move site to the subcontext
-            final File targetArea = new File(workDir, subcontext).getCanonicalFile();
-            targetArea.mkdirs();
-            getLog().debug("Moving site into " + targetArea);
-            final StringBuilder excludes = new StringBuilder(".git/**");
-            //TODO: should we care about exclussions only when rendering the root site?
-            for (StringTokenizer tok = new StringTokenizer(roots, ","); tok.hasMoreTokens(); ) {
-                final String root = tok.nextToken();
-                excludes.append(",");
-                excludes.append(root);
-                excludes.append("/**");
-            }
-            final List<File> filesToDelete = FileUtils.getFiles(targetArea.getAbsoluteFile(), null, excludes.toString());
-            getLog().info(String.format("Deleting %d files - excluded '%s'", filesToDelete.size(), excludes));
-            for (File file : filesToDelete) {
-                getLog().debug("Deleting file: " + file);
-                FileUtils.fileDelete(file.getAbsolutePath());
-            }
-            FileUtils.copyDirectoryStructure(inputDirectory, targetArea);
+                metrics.phase("clone");
+                WorkClone workClone = takePrefetched();
+                if (workClone == null) {
+                    workClone = prepareWorkClone(git, gitRemoteUrl, subcontextPaths(batch));
+                }
+                try {
+                    deployWithWorkTree(shell, git, metrics, pool, precompression, workClone, batch, protectedRoots, null);
+                } finally {
+                    workClone.release();
+                }
+            }
+            success = true;
+        } catch (CommandLineException e) {
+            throw new MojoExecutionException("git publishing error", e);
+        } catch (IOException e) {
+            throw new MojoExecutionException("git publishing error", e);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            fileLog.close();
+            reportMetrics(metrics, success);
+        }
+    }
+
+    /**
+     * @return pool for comparing, copying and compressing files on <code>syncThreads</code> threads, to be shut down by the caller; null for a single thread
+     */
+    ForkJoinPool createPool() {
+        final int threads = syncThreads > 0 ? syncThreads : Runtime.getRuntime().availableProcessors();
+        return threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * @return urls of the remotes listed in <code>gitScmUrl</code>, without the prefix; the first one is the primary remote, the others are mirrors
+     */
+    List<String> getRemoteUrls() {
+        final List<String> urls = new ArrayList<String>();
+        for (String scmUrl : gitScmUrl.split(",")) {
+            if (scmUrl.trim().length() > 0) {
+                urls.add(scmUrl.trim().substring(SCM_PREFIX.length()));
+            }
+        }
+        return urls;
+    }
+
+    private static List<String> splitList(String list) {
+        final List<String> items = new ArrayList<String>();
+        for (String item : list.split(",")) {
+            if (item.trim().length() > 0) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
+    List<String> getProtectedRoots() {
+        final List<String> protectedRoots = new ArrayList<String>();
+        protectedRoots.add(".git");
+        //TODO: should we care about exclussions only when rendering the root site?
+        for (StringTokenizer tok = new StringTokenizer(roots, ","); tok.hasMoreTokens(); ) {
+            protectedRoots.add(tok.nextToken());
+        }
+        return protectedRoots;
+    }
+
+    DeployMetrics createMetrics(List<Deployment> batch) {
+        final List<String> subcontexts = new ArrayList<String>();
+        for (Deployment deployment : batch) {
+            subcontexts.add(deployment.getSubcontext());
+        }
+        final DeployMetrics metrics = new DeployMetrics();
+        metrics.setAttribute("commitMode", commitMode);
+        metrics.setAttribute("gitBackend", gitBackend);
+        metrics.setAttribute("gitBranch", gitBranch);
+        metrics.setAttribute("subcontext", StringUtils.join(subcontexts.iterator(), ","));
+        return metrics;
+    }
+
+    /**
+     * @return the <code>deployments</code>, or the single <code>inputDirectory</code> and <code>subcontext</code> if there are none
+     */
+    List<Deployment> getDeployments() {
+        if (deployments != null && !deployments.isEmpty()) {
+            return deployments;
+        }
+        return Collections.singletonList(new Deployment(inputDirectory, subcontext));
+    }
+
+    static List<String> subcontextPaths(List<Deployment> batch) {
+        final List<String> subcontextPaths = new ArrayList<String>();
+        for (Deployment deployment : batch) {
+            subcontextPaths.add(trimSlashes(deployment.getSubcontext()));
+        }
+        return subcontextPaths;
+    }
+
+    static void validateDeployments(List<Deployment> batch, List<String> protectedRoots) throws MojoExecutionException {
+        for (int i = 0; i < batch.size(); i++) {
+            final String path = trimSlashes(batch.get(i).getSubcontext());
+            if (batch.get(i).getInputDirectory() == null) {
+                throw new MojoExecutionException("Deployment without inputDirectory: " + batch.get(i));
+            }
+            for (int j = i + 1; j < batch.size(); j++) {
+                final String otherPath = trimSlashes(batch.get(j).getSubcontext());
+                if (path.equals(otherPath)) {
+                    throw new MojoExecutionException(String.format("Subcontext '%s' is deployed more than once", path));
+                }
+                final String outer = otherPath.length() < path.length() ? otherPath : path;
+                final String inner = outer == path ? otherPath : path;
+                final String relative = relativeToTarget(inner, outer);
+                if (relative != null && !(outer.length() == 0 && protectedRoots.contains(relative.split("/")[0]))) {
+                    throw new MojoExecutionException(String.format("Subcontext '%s' is nested in subcontext '%s'", inner, outer));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the precompression configured by the <code>precompress*</code> parameters; null if <code>precompress</code> is disabled
+     */
+    Precompression createPrecompression(ShellExecutor shell, ForkJoinPool pool, List<String> protectedRoots) throws CommandLineException {
+        if (!precompress) {
+            return null;
+        }
+        return Precompression.create(shell, pool, splitList(precompressFormats), splitList(precompressTypes), precompressMinSize, protectedRoots, getLog());
+    }
+
+    void reportMetrics(DeployMetrics metrics, boolean success) {
+        metrics.finish(success);
+        for (String line : metrics.getSummary()) {
+            getLog().info(line);
+        }
+        try {
+            metrics.writeJson(metricsFile);
+        } catch (IOException e) {
+            getLog().warn("Cannot write metrics to " + metricsFile, e);
+        }
+    }
+
+    GitOperations createGitOperations(ShellExecutor shell) {
+        return GIT_BACKEND_JGIT.equals(gitBackend) ? new JGitOperations() : new CliGitOperations(shell);
+    }
+
+    /**
+     * @return push into the <code>gitBranch</code> and the mirrors, with retries, chunks and retention as configured
+     */
+    BranchPush createBranchPush() {
+        final List<String> remoteUrls = getRemoteUrls();
+        final BranchPush branchPush = new BranchPush(gitBranch, getLog());
+        branchPush.setMirrors(remoteUrls.subList(1, remoteUrls.size()), mirrorPushTimeout, mirrorsRequired);
+        branchPush.setRetries(pushAttempts, pushRetryDelay);
+        branchPush.setChunks(new ChunkedCommit(pushChunkBytes, pushChunkFiles), squashChunks);
+        branchPush.setRetention(new HistoryRetention(historyCommits, historyDays));
+        return branchPush;
+    }
+
+    /**
+     * Starts preparing the work clone in a background thread; {@link #deployWithWorkTree} picks it up later.
+     * If the build ends without deploying, the clone is abandoned and, unless cached, deleted.
+     */
+    private void startPrefetch() {
+        abandonPrefetch();
+        if (COMMIT_MODE_FAST_IMPORT.equals(commitMode)) {
+            getLog().warn(String.format("Prefetch is not supported with commitMode '%s' - ignoring", commitMode));
+            return;
+        }
+        final String gitRemoteUrl = getRemoteUrls().get(0);
+        final List<String> subcontextPaths = subcontextPaths(getDeployments());
+        // the deployment takes this log over, so that the logfile is written by one instance only
+        final AsyncFileLog fileLog = new AsyncFileLog(logfile, logfileMaxSize, getLog());
+        final GitOperations git = createGitOperations(getShellExecutor(fileLog));
+        final File workDirToClean = cacheDirectory == null ? new File(inputDirectory.getAbsolutePath() + ".work") : null;
+        putSessionAttribute(PREFETCH_ATTRIBUTE, WorkClonePrefetch.start(new Callable<WorkClone>() {
+            public WorkClone call() throws Exception {
+                return prepareWorkClone(git, gitRemoteUrl, subcontextPaths);
+            }
+        }, fileLog, workDirToClean, getLog()));
+        getLog().info(String.format("Preparing work clone of '%s' in background", gitBranch));
+    }
+
+    /**
+     * Abandons the background preparation of the work clone, unless the deployment has taken it already; this releases the lock of a cached clone.
+     */
+    void abandonPrefetch() {
+        final WorkClonePrefetch prefetch = sessionData == null ? null : (WorkClonePrefetch) removeSessionAttribute(PREFETCH_ATTRIBUTE);
+        if (prefetch != null) {
+            getLog().info("Abandoning the work clone being prepared in background");
+            prefetch.abandon();
+        }
+    }
+
+    /**
+     * @return the log of the background preparation of the work clone, if there is one, or a new log of the <code>logfile</code>; the caller closes it
+     */
+    AsyncFileLog openFileLog() {
+        final WorkClonePrefetch prefetch = sessionData == null ? null : (WorkClonePrefetch) getSessionAttribute(PREFETCH_ATTRIBUTE);
+        return prefetch == null ? new AsyncFileLog(logfile, logfileMaxSize, getLog()) : prefetch.getFileLog();
+    }
+
+    /**
+     * @return work clone prepared in background by the root module, or null if there is none
+     */
+    WorkClone takePrefetched() throws IOException, CommandLineException {
+        if (sessionData == null) {
+            return null;
+        }
+        final WorkClonePrefetch prefetched = (WorkClonePrefetch) removeSessionAttribute(PREFETCH_ATTRIBUTE);
+        if (prefetched == null) {
+            return null;
+        }
+        getLog().info("Waiting for the work clone being prepared in background");
+        return prefetched.take();
+    }
+
+    /**
+     * Clones the site branch, or refreshes the cached clone; creates an empty repository if the branch does not exist yet.
+     * A cached clone stays locked against other builds until {@link WorkClone#release() released}.
+     */
+    WorkClone prepareWorkClone(GitOperations git, String gitRemoteUrl, List<String> subcontextPaths) throws IOException {
+        boolean sparse = sparseCheckout && !subcontextPaths.contains("");
+        if (sparseCheckout && !sparse) {
+            getLog().warn("Sparse checkout is ignored when deploying to the root of the site");
+        }
+        if (sparse && GIT_BACKEND_JGIT.equals(gitBackend)) {
+            getLog().warn(String.format("Sparse checkout is not supported by gitBackend '%s' - ignoring", gitBackend));
+            sparse = false;
+        }
+        final WorkCloneCache workCloneCache = cacheDirectory == null ? null : new WorkCloneCache(cacheDirectory, git, getLog());
+        final File workDir = workCloneCache == null
+            ? new File(inputDirectory.getAbsolutePath() + ".work")
+            : workCloneCache.getWorkDir(gitRemoteUrl, gitBranch, sparse ? StringUtils.join(subcontextPaths.iterator(), ",") : null);
+        final Closeable lock = workCloneCache == null ? null : workCloneCache.lock(workDir);
+        boolean prepared = false;
+        try {
+            final WorkClone workClone = cloneOrRefresh(git, workCloneCache, workDir, gitRemoteUrl, subcontextPaths, sparse);
+            workClone.setLock(lock);
+            prepared = true;
+            return workClone;
+        } finally {
+            if (!prepared) {
+                unlock(lock);
+            }
+        }
+    }
+
+    private WorkClone cloneOrRefresh(GitOperations git, WorkCloneCache workCloneCache, File workDir, String gitRemoteUrl, List<String> subcontextPaths, boolean sparse) throws IOException {
+        // clone or init site.wc
+        if (workCloneCache != null && workCloneCache.refresh(workDir, gitRemoteUrl, gitBranch)) {
+            return new WorkClone(workDir, gitBranch, false, sparse);
+        }
+        workDir.mkdirs();
+        List<String> sparsePaths = null;
+        if (sparse) {
+            sparsePaths = new ArrayList<String>();
+            for (String subcontextPath : subcontextPaths) {
+                sparsePaths.add(subcontextPath + "/");
+            }
+            sparsePaths.add(index);
+            sparsePaths.add(".gitattributes");
+        }
+        if (git.cloneBranch(gitRemoteUrl, gitBranch, workDir, sparsePaths)) {
+            return new WorkClone(workDir, gitBranch, false, sparse);
+        }
+        getLog().info(String.format("Branch '%s' does not exist in '%s' - will be created", gitBranch, gitRemoteUrl));
+        git.init(workDir, gitRemoteUrl, "master");
+        return new WorkClone(workDir, "master", true, sparse);
+    }
+
+    /**
+     * Synchronizes the sites into the work clone, commits and pushes them.
+     *
+     * @param changes for each deployment to synchronize, the paths changed since the previous call with the same work clone;
+     * deployments not listed are left as they are. Null to synchronize all deployments completely.
+     */
+    void deployWithWorkTree(ShellExecutor shell, GitOperations git, DeployMetrics metrics, ForkJoinPool pool, Precompression precompression, WorkClone workClone, List<Deployment> batch, List<String> protectedRoots, Map<Deployment, Collection<String>> changes) throws CommandLineException, IOException {
+        final File workDir = workClone.getWorkDir();
+        final boolean sparse = workClone.isSparse();
+        final String localBranch = workClone.getLocalBranch();
+        final boolean pushForce = !keepHistory || workClone.isBranchCreated();
+        final BranchPush branchPush = createBranchPush();
+
+        for (int attempt = 1; ; attempt++) {
+            if (attempt > 1) {
+                // replay on top of the new tip of the remote branch
+                metrics.phase("refresh");
+                git.fetch(workDir, gitBranch);
+                git.checkoutRemote(workDir, gitBranch);
+            }
+
+            // move sites to their subcontexts
+            metrics.phase("sync");
+            final List<String> subcontexts = new ArrayList<String>();
+            final StatCache cache = statCache ? StatCache.open(new File(workDir, ".git/" + STAT_CACHE_FILE)) : null;
+            // after a refresh, the work tree is no longer what the changes were observed against
+            final boolean incremental = changes != null && attempt == 1;
+            int fileCount = incremental ? workClone.getFileCount() : 0;
+            final List<Deployment> synced = new ArrayList<Deployment>();
+            for (Deployment deployment : batch) {
+                final File targetArea = new File(workDir, deployment.getSubcontext()).getCanonicalFile();
+                subcontexts.add(deployment.getSubcontext());
+                if (incremental && !changes.containsKey(deployment)) {
+                    continue;
+                }
+                targetArea.mkdirs();
+                getLog().debug("Moving site into " + targetArea);
+                final List<String> keptRoots = new ArrayList<String>(protectedRoots);
+                if (trimSlashes(deployment.getSubcontext()).length() == 0) {
+                    // the index still lists the other subcontexts; it is updated below, like in the fast-import mode
+                    keptRoots.add(index);
+                    keptRoots.add(".gitattributes");
+                }
+                final SiteSync siteSync = new SiteSync(keptRoots, pool);
+                siteSync.setStatCache(cache, trimSlashes(deployment.getSubcontext()));
+                if (precompression != null) {
+                    siteSync.setSiblingExtensions(precompression.getFormats());
+                }
+                final SiteSync.Stats syncStats = incremental
+                    ? siteSync.sync(deployment.getInputDirectory(), targetArea, changes.get(deployment))
+                    : siteSync.sync(deployment.getInputDirectory(), targetArea);
+                getLog().info(String.format("Synchronized site into %s: %s - excluded %s", targetArea, syncStats, keptRoots));
+                metrics.count("filesAdded", syncStats.getAdded());
+                metrics.count("filesChanged", syncStats.getChanged());
+                metrics.count("filesDeleted", syncStats.getDeleted());
+                metrics.count("filesUnchanged", syncStats.getUnchanged());
+                metrics.count("bytesWritten", syncStats.getBytesWritten());
+                metrics.count("files", syncStats.getFileCount());
+                metrics.count("bytes", syncStats.getBytes());
+                metrics.count("statCacheHits", syncStats.getStatHits());
+                fileCount += incremental ? syncStats.getAdded() - syncStats.getDeleted() : syncStats.getFileCount();
+                synced.add(deployment);
+            }
+            workClone.setFileCount(fileCount);
+            if (precompression != null) {
+                metrics.phase("precompress");
+                for (Deployment deployment : synced) {
+                    // siblings are generated from the work tree, next to the files to be committed
+                    final File targetArea = new File(workDir, deployment.getSubcontext()).getCanonicalFile();
+                    precompression.compress(targetArea, targetArea, trimSlashes(deployment.getSubcontext()), metrics);
+                }
+            }
+            saveStatCache(cache);
 
             // update subcontext index
-            updateIndex(new File(workDir, index), subcontext);
+            metrics.phase("index");
+            final File indexFile = new File(workDir, index);
+            final String indexContent = indexFile.exists() ? FileUtils.fileRead(indexFile, "UTF-8") : "";
+            Set<String> subcontextsInTree = null;
+            if (sparse) {
+                shell.setWorkingDirectory(workDir);
+                subcontextsInTree = listSubcontextsInTree(shell, "HEAD", indexContent);
+            }
+            FileUtils.fileWrite(indexFile.getAbsolutePath(), "UTF-8", updateIndex(indexContent, subcontexts, workDir, subcontextsInTree));
 
             // commit
+            metrics.phase("add");
             FileUtils.fileWrite(new File(workDir, ".gitattributes").getAbsolutePath(), "* text=auto\n");
-            shell.exec("git", "add", "-A", ".");
-            final int fileCount = FileUtils.getFiles(inputDirectory, null, null, false).size();
-            final ShellExecutor.Result commitResult = shell.execWithResult("git", "commit", "-am", String.format(commitMessage, fileCount));
-            if (commitResult.getExitCode() == 0) {
-                // push or push-force
-                if (pushForce) {
-                    shell.exec("git", "push", "origin", localBranch + ":" + gitBranch, "--force", "--set-upstream");
-                } else {
-                    shell.exec("git", "push", "origin", localBranch + ":" + gitBranch);
-                }
-            } else if (commitResult.stdoutContains(Pattern.compile("nothing to commit.*"))) {
+            git.addAll(workDir);
+            metrics.phase("commit");
+            if (!git.commit(workDir, String.format(commitMessage, fileCount))) {
                 getLog().info("Nothing to commit");
-            } else {
-                throw new MojoExecutionException(String.format("git commit exited with code %d", commitResult.getExitCode()));
+                return;
             }
+            if (!pushForce && branchPush.getRetention().isEnabled()) {
+                metrics.phase("retention");
+                shell.setWorkingDirectory(workDir);
+                if (branchPush.collapseHistory(shell, metrics, "HEAD", "refs/heads/" + localBranch)) {
+                    metrics.phase("push");
+                    final String expected = gitOutput(shell, "rev-parse", "refs/remotes/origin/" + gitBranch);
+                    if (branchPush.pushRewritten(shell, metrics, localBranch, expected)) {
+                        return;
+                    }
+                    branchPush.awaitRetry(attempt, metrics);
+                    continue;
+                }
+            }
+            // push or push-force
+            metrics.phase("push");
+            shell.setWorkingDirectory(workDir);
+            if (workClone.isBranchCreated() && branchPush.pushInChunks(shell, metrics, "refs/heads/" + localBranch, String.format(commitMessage, fileCount))) {
+                return;
+            }
+            if (git.push(workDir, localBranch, gitBranch, pushForce)) {
+                shell.setWorkingDirectory(workDir);
+                branchPush.pushMirrors(shell, metrics, "refs/heads/" + localBranch);
+                return;
+            }
+            branchPush.awaitRetry(attempt, metrics);
+        }
+    }
+
+    /**
+     * Builds the commit in a bare repository, streaming the site through <code>git fast-import</code>.
+     * Only the tip commit and its trees are fetched; blobs of the other subcontexts are neither downloaded nor checked out.
+     */
+    void deployWithFastImport(ShellExecutor shell, GitOperations git, DeployMetrics metrics, Precompression precompression, String gitRemoteUrl, List<Deployment> batch, List<String> protectedRoots) throws MojoExecutionException, CommandLineException, IOException {
+        metrics.phase("init");
+        final File gitDir = getBareRepositoryDir(git, gitRemoteUrl);
+        final Closeable lock = lockCacheEntry(git, gitDir);
+        try {
+            initBareRepository(shell, gitDir, gitRemoteUrl);
+            final BranchPush branchPush = createBranchPush();
+            for (int attempt = 1; ; attempt++) {
+                if (fastImportAttempt(shell, metrics, branchPush, precompression, gitRemoteUrl, gitDir, batch, protectedRoots)) {
+                    return;
+                }
+                branchPush.awaitRetry(attempt, metrics);
+            }
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * @return the bare repository for <code>fast-import</code>
+     */
+    File getBareRepositoryDir(GitOperations git, String gitRemoteUrl) {
+        return cacheDirectory == null
+            ? new File(inputDirectory.getAbsolutePath() + ".git")
+            : new File(new WorkCloneCache(cacheDirectory, git, getLog()).getWorkDir(gitRemoteUrl, gitBranch, null).getAbsolutePath() + ".git");
+    }
+
+    /**
+     * With <code>cacheDirectory</code>, waits until no other build uses given entry of the cache, and locks it.
+     *
+     * @return the lock, to be passed to {@link #unlock}; null without <code>cacheDirectory</code>
+     */
+    Closeable lockCacheEntry(GitOperations git, File entry) throws IOException {
+        return cacheDirectory == null ? null : new WorkCloneCache(cacheDirectory, git, getLog()).lock(entry);
+    }
+
+    static void unlock(Closeable lock) throws IOException {
+        if (lock != null) {
+            lock.close();
+        }
+    }
 
+    /**
+     * Creates the bare repository for <code>fast-import</code>, unless it exists already, and makes the shell work in it.
+     */
+    void initBareRepository(ShellExecutor shell, File gitDir, String gitRemoteUrl) throws CommandLineException, IOException {
+        if (!new File(gitDir, "HEAD").isFile()) {
+            gitDir.mkdirs();
+            shell.setWorkingDirectory(gitDir);
+            shell.exec("git", "init", "--bare");
+        }
+        shell.setWorkingDirectory(gitDir);
+        if (shell.execWithResult("git", "remote", "set-url", "origin", gitRemoteUrl).getExitCode() != 0) {
+            shell.exec("git", "remote", "add", "origin", gitRemoteUrl);
+        }
+    }
+
+    /**
+     * Fetches the remote branch into the bare repository, without blobs.
+     *
+     * @param wholeHistory false to only fetch the tip commit
+     * @return the tip of the branch, or null if the branch does not exist
+     */
+    String fetchWithoutBlobs(ShellExecutor shell, boolean wholeHistory) throws MojoExecutionException, CommandLineException {
+        final String remoteRef = "refs/remotes/origin/" + gitBranch;
+        final Pattern remoteRefNotFound = Pattern.compile(".*couldn't find remote ref.*");
+        final ShellExecutor.Result fetchResult = new ShellExecutor.Result(CliGitOperations.TAIL_LINES).watchStderr(remoteRefNotFound);
+        if (wholeHistory) {
+            shell.execWithResult(fetchResult, "git", "fetch", "--filter=blob:none", "origin", "+refs/heads/" + gitBranch + ":" + remoteRef);
+        } else {
+            shell.execWithResult(fetchResult, "git", "fetch", "--depth", "1", "--filter=blob:none", "origin", "+refs/heads/" + gitBranch + ":" + remoteRef);
+        }
+        if (fetchResult.getExitCode() == 0) {
+            return gitOutput(shell, "rev-parse", "--verify", remoteRef);
+        }
+        if (fetchResult.stderrContains(remoteRefNotFound)) {
+            return null;
+        }
+        throw new MojoExecutionException(String.format("git fetch exited with code %d", fetchResult.getExitCode()));
+    }
+
+    /**
+     * Builds the commit on top of the current tip of the remote branch, and pushes it.
+     *
+     * @return false if the push was rejected because the remote branch has moved on meanwhile
+     */
+    private boolean fastImportAttempt(ShellExecutor shell, DeployMetrics metrics, BranchPush branchPush, Precompression precompression, String gitRemoteUrl, File gitDir, List<Deployment> batch, List<String> protectedRoots) throws MojoExecutionException, CommandLineException, IOException {
+        metrics.phase("fetch");
+        shell.setWorkingDirectory(gitDir);
+        boolean pushForce = !keepHistory;
+
+        // fetch the tip, without blobs; retention needs the whole history
+        final String parent = fetchWithoutBlobs(shell, branchPush.getRetention().isEnabled());
+        if (parent == null) {
+            getLog().info(String.format("Branch '%s' does not exist in '%s' - will be created", gitBranch, gitRemoteUrl));
+            pushForce = true;
+        }
+
+        final File precompressedDir = new File(gitDir, PRECOMPRESSED_DIR);
+        if (precompression != null) {
+            metrics.phase("precompress");
+            for (Deployment deployment : batch) {
+                final String subcontextPath = trimSlashes(deployment.getSubcontext());
+                precompression.compress(deployment.getInputDirectory(), Precompression.getSiblingsDir(precompressedDir, subcontextPath), subcontextPath, metrics);
+            }
+        }
+
+        metrics.phase("prepare");
+        int fileCount = 0;
+        for (Deployment deployment : batch) {
+            final SiteScan siteScan = SiteScan.of(deployment.getInputDirectory());
+            fileCount += siteScan.getFiles();
+            metrics.count("files", siteScan.getFiles());
+            metrics.count("bytes", siteScan.getBytes());
+        }
+        final FastImportCommit commit = new FastImportCommit(DEPLOY_REF, gitOutput(shell, "var", "GIT_COMMITTER_IDENT"), String.format(commitMessage, fileCount));
+        if (parent != null) {
+            commit.setParent(parent);
+            // replace the target areas, except for protected roots
+            for (Deployment deployment : batch) {
+                final String subcontextPath = trimSlashes(deployment.getSubcontext());
+                final List<String> lsTreeArgs = new ArrayList<String>(Arrays.asList("-c", "core.quotePath=false", "ls-tree", "--name-only", parent));
+                if (subcontextPath.length() > 0) {
+                    lsTreeArgs.add(subcontextPath + "/");
+                }
+                for (String path : shell.execWithResult("git", lsTreeArgs.toArray(new String[lsTreeArgs.size()])).getStdoutLines()) {
+                    final String name = path.substring(path.lastIndexOf('/') + 1);
+                    if (!protectedRoots.contains(name)) {
+                        commit.delete(path);
+                        metrics.count("pathsReplaced", 1);
+                    }
+                }
+            }
+        }
+        final String indexContent = readIndex(shell, parent);
+        final List<String> subcontexts = new ArrayList<String>();
+        for (Deployment deployment : batch) {
+            subcontexts.add(deployment.getSubcontext());
+        }
+        final Set<String> existingSubcontexts = subcontextsAfterDeployment(shell, parent, indexContent, batch, protectedRoots);
+        final File cacheFile = new File(gitDir, STAT_CACHE_FILE);
+        final StatCache cache = statCache ? StatCache.open(cacheFile) : null;
+        commit.setStatCache(cache);
+        for (Deployment deployment : batch) {
+            commit.addDirectory(deployment.getInputDirectory(), trimSlashes(deployment.getSubcontext()));
+            if (precompression != null) {
+                commit.addDirectory(Precompression.getSiblingsDir(precompressedDir, trimSlashes(deployment.getSubcontext())), trimSlashes(deployment.getSubcontext()));
+            }
+            if (cache != null) {
+                cache.expire(trimSlashes(deployment.getSubcontext()), protectedRoots);
+            }
+        }
+        commit.add(index, updateIndex(indexContent, subcontexts, null, existingSubcontexts));
+        commit.add(".gitattributes", "* text=auto\n");
+        getLog().info(String.format("Streaming %d files from %s into %s", fileCount, batch, gitDir));
+        metrics.phase("fast-import");
+        try {
+            shell.execWithInput(commit.openStream(), "git", "fast-import", "--quiet", "--done", "--force");
+            metrics.count("statCacheHits", commit.getReusedBlobs());
+            saveStatCache(cache);
         } catch (CommandLineException e) {
-            throw new MojoExecutionException("git publishing error", e);
-        } catch (IOException e) {
-            throw new MojoExecutionException("git publishing error", e);
+            if (commit.getReusedBlobs() == 0) {
+                throw e;
+            }
+            // some cached blob id is not in the repository anymore
+            getLog().warn(String.format("git fast-import failed with %d cached blob ids - retrying without %s", commit.getReusedBlobs(), cacheFile));
+            FileUtils.fileDelete(cacheFile.getAbsolutePath());
+            commit.setStatCache(null);
+            shell.execWithInput(commit.openStream(), "git", "fast-import", "--quiet", "--done", "--force");
+        }
+
+        if (parent != null && gitOutput(shell, "rev-parse", DEPLOY_REF + "^{tree}").equals(gitOutput(shell, "rev-parse", parent + "^{tree}"))) {
+            getLog().info("Nothing to commit");
+            return true;
+        }
+        if (pushForce) {
+            metrics.phase("push");
+            if (parent == null && branchPush.pushInChunks(shell, metrics, DEPLOY_REF, String.format(commitMessage, fileCount))) {
+                return true;
+            }
+            return branchPush.push(shell, metrics, DEPLOY_REF, "--force");
+        }
+        if (branchPush.getRetention().isEnabled()) {
+            metrics.phase("retention");
+            if (branchPush.collapseHistory(shell, metrics, DEPLOY_REF, DEPLOY_REF)) {
+                metrics.phase("push");
+                return branchPush.pushRewritten(shell, metrics, DEPLOY_REF, parent);
+            }
         }
+        metrics.phase("push");
+        return branchPush.push(shell, metrics, DEPLOY_REF);
     }
 
-    private static void updateIndex(File indexFile, String newSubcontext) throws IOException {
-        final String content = indexFile.exists() ? FileUtils.fileRead(indexFile, "UTF-8") : "";
-        final List<String> subdirIndex = new ArrayList<String>(Arrays.asList(content.split("\n")));
-        subdirIndex.add(newSubcontext);
-        System.out.println("newSubcontext = " + newSubcontext);
-        System.out.println("subdirIndex = " + subdirIndex);
-        Collections.sort(subdirIndex);
-        final BufferedWriter wr = new BufferedWriter(new FileWriter(indexFile));
+    /**
+     * @param commit the commit to read from; null for none
+     * @return content of the <code>index</code> in given commit; empty if there is none
+     */
+    String readIndex(ShellExecutor shell, String commit) throws CommandLineException {
+        if (commit == null) {
+            return "";
+        }
+        final ShellExecutor.Result indexResult = shell.execWithResult("git", "cat-file", "blob", commit + ":" + index);
+        return indexResult.getExitCode() == 0 ? joinLines(indexResult.getStdoutLines()) : "";
+    }
+
+    /**
+     * When the tree is not checked out, this tells which subcontexts will exist after the deployment.
+     *
+     * @param parent the commit that the deployment builds on; null if the branch is being created
+     * @return subcontexts of the parent outside of the replaced parts of the target areas, and subcontexts present in the deployed sites
+     */
+    Set<String> subcontextsAfterDeployment(ShellExecutor shell, String parent, String indexContent, List<Deployment> batch, List<String> protectedRoots) throws CommandLineException {
+        final Set<String> existingSubcontexts = new HashSet<String>();
+        if (parent != null) {
+            // subcontexts survive unless they are in the replaced part of some target area
+            for (String existing : listSubcontextsInTree(shell, parent, indexContent)) {
+                boolean replaced = false;
+                for (Deployment deployment : batch) {
+                    final String relative = relativeToTarget(trimSlashes(existing), trimSlashes(deployment.getSubcontext()));
+                    if (relative != null && !protectedRoots.contains(relative.split("/")[0])) {
+                        replaced = true;
+                    }
+                }
+                if (!replaced) {
+                    existingSubcontexts.add(existing);
+                }
+            }
+        }
+        final List<String> subcontexts = new ArrayList<String>();
+        for (Deployment deployment : batch) {
+            subcontexts.add(deployment.getSubcontext());
+        }
+        for (String candidate : (indexContent + "\n" + joinLines(subcontexts)).split("\n")) {
+            for (Deployment deployment : batch) {
+                final String relative = relativeToTarget(trimSlashes(candidate.trim()), trimSlashes(deployment.getSubcontext()));
+                if (relative != null && new File(deployment.getInputDirectory(), relative).isDirectory()) {
+                    existingSubcontexts.add(candidate);
+                }
+            }
+        }
+        return existingSubcontexts;
+    }
+
+    private void saveStatCache(StatCache cache) {
+        if (cache == null) {
+            return;
+        }
         try {
-            for (String subcontext : subdirIndex) {
-                if(subcontext.trim().length() == 0) continue;
-                final File subdirVerify = new File(indexFile.getParentFile(), "." + subcontext).getCanonicalFile();
-                if (subdirVerify.isDirectory()) {
-                    wr.write(subcontext);
-                    wr.newLine();
-                } else {
-                    System.err.printf("WARN: removing %s from index%n", subcontext);
+            cache.save();
+        } catch (IOException e) {
+            getLog().warn("Cannot save the stat cache - next deployment will compare all files", e);
+        }
+    }
+
+    /**
+     * @return path relative to the target area, or null if the path is outside of it
+     */
+    static String relativeToTarget(String path, String targetPath) {
+        if (targetPath.length() == 0) {
+            return path;
+        }
+        if (path.equals(targetPath)) {
+            return "";
+        }
+        return path.startsWith(targetPath + "/") ? path.substring(targetPath.length() + 1) : null;
+    }
+
+    private static String gitOutput(ShellExecutor shell, String... args) throws CommandLineException {
+        final ShellExecutor.Result result = shell.execWithResult("git", args);
+        if (result.getExitCode() != 0 || result.getStdoutLines().isEmpty()) {
+            throw new CommandLineException(String.format("git %s exited with code %d", args[0], result.getExitCode()));
+        }
+        return result.getStdoutLines().get(0).trim();
+    }
+
+    private static String joinLines(List<String> lines) {
+        final StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * When subcontexts are not present on disk (sparse checkout, fast-import), this asks the git tree instead.
+     *
+     * @return those subcontexts listed in the index, which exist as directories in the tree
+     */
+    private static Set<String> listSubcontextsInTree(ShellExecutor shell, String treeish, String indexContent) throws CommandLineException {
+        final Set<String> result = new HashSet<String>();
+        final Map<String, String> subcontextsByPath = new HashMap<String, String>();
+        final List<String> args = new ArrayList<String>(Arrays.asList("ls-tree", "-d", "--name-only", treeish, "--"));
+        for (String subcontext : indexContent.split("\n")) {
+            final String path = trimSlashes(subcontext.trim());
+            if (path.length() > 0) {
+                subcontextsByPath.put(path, subcontext);
+                args.add(path);
+            }
+        }
+        if (subcontextsByPath.isEmpty()) {
+            return result;
+        }
+        final ShellExecutor.Result lsTreeResult = shell.execWithResult("git", args.toArray(new String[args.size()]));
+        if (lsTreeResult.getExitCode() == 0) {
+            for (String line : lsTreeResult.getStdoutLines()) {
+                final String subcontext = subcontextsByPath.get(line);
+                if (subcontext != null) {
+                    result.add(subcontext);
                 }
             }
-        } finally {
-            wr.close();
         }
+        return result;
+    }
+
+    static String trimSlashes(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
     }
 
-    private ShellExecutor getShellExecutor() {
+    /**
+     * Same as {@link #mergeIndex}, logging the subcontexts that get removed from the index.
+     */
+    private String updateIndex(String content, Collection<String> newSubcontexts, File baseDir, Set<String> subcontextsInTree) throws IOException {
+        final List<String> removed = new ArrayList<String>();
+        final String merged = mergeIndex(content, newSubcontexts, baseDir, subcontextsInTree, removed);
+        for (String subcontext : removed) {
+            getLog().warn(String.format("Removing %s from index - it does not exist anymore", subcontext));
+        }
+        return merged;
+    }
+
+    /**
+     * @param baseDir the work tree where subcontexts are checked for existence; null to not check the disk
+     * @param subcontextsInTree subcontexts known to exist in the git tree even if not present on disk; null to only check the disk
+     * @param removed collects the subcontexts that are left out because they do not exist; null if not interested
+     * @return new content of the index
+     */
+    static String mergeIndex(String content, Collection<String> newSubcontexts, File baseDir, Set<String> subcontextsInTree, Collection<String> removed) throws IOException {
+        // sorted, and a redeployed subcontext is listed only once
+        final Set<String> subdirIndex = new TreeSet<String>(Arrays.asList(content.split("\n")));
+        subdirIndex.addAll(newSubcontexts);
+        final StringBuilder sb = new StringBuilder();
+        for (String subcontext : subdirIndex) {
+            if(subcontext.trim().length() == 0) continue;
+            final boolean onDisk = baseDir != null && new File(baseDir, "." + subcontext).getCanonicalFile().isDirectory();
+            if (onDisk || (subcontextsInTree != null && subcontextsInTree.contains(subcontext))) {
+                sb.append(subcontext).append("\n");
+            } else if (removed != null) {
+                removed.add(subcontext);
+            }
+        }
+        return sb.toString();
+    }
+
+    ShellExecutor getShellExecutor(final AsyncFileLog fileLog) {
         final ShellExecutor shell = new ShellExecutor();
         shell.setInfo(new StreamConsumer() {
             public void consumeLine(String line) {
                 getLog().info(line);
-                filelog("INFO", line);
+                fileLog.log("INFO", line);
             }
         });
         shell.setStderr(new StreamConsumer() {
             public void consumeLine(String line) {
                 getLog().error(line);
-                filelog("ERROR", line);
+                fileLog.log("ERROR", line);
             }
         });
         shell.setStdout(new StreamConsumer() {
             public void consumeLine(String line) {
                 getLog().warn(line);
-                filelog("WARN", line);
+                fileLog.log("WARN", line);
             }
         });
         shell.setWorkingDirectory(inputDirectory);
         return shell;
     }
-
-    private void filelog(String severity, String line) {
-        try {
-            FileUtils.fileAppend(logfile.getAbsolutePath(), String.format("%6s %s%n", severity, line));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
 }
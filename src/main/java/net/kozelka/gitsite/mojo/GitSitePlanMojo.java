@@ -0,0 +1,132 @@
+package net.kozelka.gitsite.mojo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import net.kozelka.gitsite.git.GitOperations;
+import net.kozelka.gitsite.sync.Precompression;
+import net.kozelka.gitsite.sync.SitePlan;
+import net.kozelka.gitsite.sync.StatCache;
+import net.kozelka.gitsite.utils.AsyncFileLog;
+import net.kozelka.gitsite.utils.ShellExecutor;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Tells what the <code>deploy</code> goal would change in the site branch, without changing anything.
+ * <p>
+ * Only the tip commit of the branch and its trees are fetched, into the bare repository used by the <code>fast-import</code> commit mode;
+ * the site files are hashed locally and compared with the branch by blob id. No work tree is written, and nothing is pushed.
+ * Precompressed siblings are not written either; with <code>precompress</code> enabled, they are listed as pending.
+ * The plan is printed to the build log and written as JSON into <code>planFile</code>.
+ * </p>
+ *
+ * @author Petr Kozelka
+ * @since 0.1.3
+ */
+@Mojo(name = "plan")
+public class GitSitePlanMojo extends GitSiteDeployMojo {
+    private static final int MAX_LOGGED_PATHS = 50;
+
+    /**
+     * Where to write the plan as JSON, with the counts and paths of added, changed and deleted files,
+     * the files kept under protected roots, and the changes of the <code>index</code>.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "${project.build.directory}/gitsite-plan.json", property = "gitsite.planFile")
+    File planFile;
+
+    @Override
+    protected void executeInRootModule() throws MojoExecutionException, MojoFailureException {
+        // there is no work clone to prepare
+        prefetch = false;
+        super.executeInRootModule();
+    }
+
+    @Override
+    protected void executeInLastModule() throws MojoExecutionException, MojoFailureException {
+        getLog().debug("LAST MODULE - executionRootDirectory = " + executionRootDirectory);
+        loadParameters();
+        gitSitePlan();
+    }
+
+    SitePlan gitSitePlan() throws MojoExecutionException, MojoFailureException {
+        final String gitRemoteUrl = getRemoteUrls().get(0);
+        subcontext = subcontext == null ? "" : subcontext;
+        final List<String> protectedRoots = getProtectedRoots();
+        final List<Deployment> batch = getDeployments();
+        validateDeployments(batch, protectedRoots);
+        final AsyncFileLog fileLog = new AsyncFileLog(logfile, logfileMaxSize, getLog());
+        final ShellExecutor shell = getShellExecutor(fileLog);
+        final GitOperations git = createGitOperations(shell);
+        Closeable lock = null;
+        try {
+            final File gitDir = getBareRepositoryDir(git, gitRemoteUrl);
+            lock = lockCacheEntry(git, gitDir);
+            initBareRepository(shell, gitDir, gitRemoteUrl);
+            final String tip = fetchWithoutBlobs(shell, false);
+            final SitePlan plan = new SitePlan();
+            // the worktree mode commits with "* text=auto"; fast-import takes the files as they are
+            plan.setTextNormalization(!COMMIT_MODE_FAST_IMPORT.equals(commitMode));
+            if (tip == null) {
+                getLog().info(String.format("Branch '%s' does not exist in '%s' - would be created", gitBranch, gitRemoteUrl));
+            } else {
+                // without sizes, which would make git fetch the missing blobs
+                final ShellExecutor.Result lsTree = shell.execWithResult("git", "-c", "core.quotePath=false", "ls-tree", "-r", "--full-tree", tip);
+                if (lsTree.getExitCode() != 0) {
+                    throw new CommandLineException(String.format("git ls-tree exited with code %d", lsTree.getExitCode()));
+                }
+                // <mode> SP <type> SP <object> TAB <path>
+                for (String line : lsTree.getStdoutLines()) {
+                    final int tab = line.indexOf('\t');
+                    final String[] fields = line.substring(0, tab).split(" ");
+                    final String path = line.substring(tab + 1);
+                    // both are rewritten by every deployment
+                    if ("blob".equals(fields[1]) && !path.equals(index) && !path.equals(".gitattributes")) {
+                        plan.addRemoteFile(path, fields[2]);
+                    }
+                }
+            }
+
+            final StatCache cache = statCache ? StatCache.open(new File(gitDir, STAT_CACHE_FILE)) : null;
+            final Precompression precompression = createPrecompression(shell, null, protectedRoots);
+            final List<String> subcontexts = new ArrayList<String>();
+            for (Deployment deployment : batch) {
+                final String prefix = trimSlashes(deployment.getSubcontext());
+                plan.compare(deployment.getInputDirectory(), prefix, protectedRoots, cache);
+                if (precompression != null) {
+                    // the siblings are part of the deployed site, but compressing them is left to the deployment
+                    plan.addPending(prefix, precompression.listSiblings(deployment.getInputDirectory(), prefix));
+                }
+                subcontexts.add(deployment.getSubcontext());
+            }
+            plan.finish();
+            final String indexContent = readIndex(shell, tip);
+            plan.setIndex(index, indexContent, mergeIndex(indexContent, subcontexts, null, subcontextsAfterDeployment(shell, tip, indexContent, batch, protectedRoots), null));
+
+            getLog().info(String.format("Plan for branch '%s' of %s:", gitBranch, gitRemoteUrl));
+            for (String line : plan.getSummary(MAX_LOGGED_PATHS)) {
+                getLog().info(line);
+            }
+            plan.writeJson(planFile);
+            getLog().info("Plan written to " + planFile);
+            return plan;
+        } catch (CommandLineException e) {
+            throw new MojoExecutionException("git plan error", e);
+        } catch (IOException e) {
+            throw new MojoExecutionException("git plan error", e);
+        } finally {
+            try {
+                unlock(lock);
+            } catch (IOException e) {
+                getLog().warn("Cannot unlock " + cacheDirectory, e);
+            }
+            fileLog.close();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package net.kozelka.gitsite.mojo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import net.kozelka.gitsite.git.GitOperations;
+import net.kozelka.gitsite.git.WorkClone;
+import net.kozelka.gitsite.sync.Precompression;
+import net.kozelka.gitsite.sync.SiteWatcher;
+import net.kozelka.gitsite.utils.AsyncFileLog;
+import net.kozelka.gitsite.utils.DeployMetrics;
+import net.kozelka.gitsite.utils.ShellExecutor;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Publishes the site like the <code>deploy</code> goal, and then keeps watching the site directories and republishing their changes, until stopped.
+ * <p>
+ * The work clone stays checked out between publications, and only the changed paths are synchronized into it;
+ * changes are collected for at least <code>watchInterval</code>, and then committed and pushed together.
+ * Useful for previewing documentation while it is being written, with <code>mvn site</code> running repeatedly in another terminal.
+ * </p>
+ *
+ * @author Petr Kozelka
+ * @since 0.1.3
+ */
+@Mojo(name = "watch")
+public class GitSiteWatchMojo extends GitSiteDeployMojo {
+
+    /**
+     * Minimal time between two publications, in milliseconds; all changes made meanwhile are published with one commit.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "10000", property = "gitsite.watchInterval")
+    long watchInterval;
+
+    /**
+     * How long the site directories must stay unchanged, in milliseconds, before a burst of changes is considered complete.
+     * @since 0.1.3
+     */
+    @Parameter(defaultValue = "500", property = "gitsite.watchDebounce")
+    long watchDebounce;
+
+    @Override
+    protected void executeInLastModule() throws MojoExecutionException, MojoFailureException {
+        getLog().debug("LAST MODULE - executionRootDirectory = " + executionRootDirectory);
+        loadParameters();
+        try {
+            gitSiteWatch();
+        } finally {
+            abandonPrefetch();
+        }
+    }
+
+    /**
+     * Publishes the site, and then its changes, until the thread is interrupted.
+     * A failure of the first publication fails the goal; later failures are logged, and the site is completely republished after the next interval.
+     */
+    void gitSiteWatch() throws MojoExecutionException, MojoFailureException {
+        final String gitRemoteUrl = getRemoteUrls().get(0);
+        subcontext = subcontext == null ? "" : subcontext;
+        final List<String> protectedRoots = getProtectedRoots();
+        final List<Deployment> batch = getDeployments();
+        validateDeployments(batch, protectedRoots);
+        final List<File> inputDirectories = new ArrayList<File>();
+        for (Deployment deployment : batch) {
+            inputDirectories.add(deployment.getInputDirectory());
+        }
+        final AsyncFileLog fileLog = openFileLog();
+        final ShellExecutor shell = getShellExecutor(fileLog);
+        final GitOperations git = createGitOperations(shell);
+        final ForkJoinPool pool = createPool();
+        SiteWatcher watcher = null;
+        Watch watch = null;
+        try {
+            // watch before the first publication, so that no change made during it is missed
+            watcher = new SiteWatcher(inputDirectories);
+            watch = new Watch(shell, git, pool, createPrecompression(shell, pool, protectedRoots), gitRemoteUrl, batch, protectedRoots);
+            watch.publish();
+            getLog().info(String.format("Watching %s for changes, publishing them at most every %d ms", inputDirectories, watchInterval));
+            while (true) {
+                final long now = System.currentTimeMillis();
+                final long due = watch.lastPublished + watchInterval;
+                if (watch.hasPending() && now >= due) {
+                    try {
+                        watch.publish();
+                    } catch (MojoExecutionException e) {
+                        watch.failed(e);
+                    } catch (CommandLineException e) {
+                        watch.failed(e);
+                    } catch (IOException e) {
+                        watch.failed(e);
+                    }
+                    continue;
+                }
+                final List<Set<String>> changes = watcher.poll(watch.hasPending() ? due - now : -1, watchDebounce);
+                for (int i = 0; i < batch.size(); i++) {
+                    watch.addChanges(batch.get(i), changes.get(i));
+                }
+            }
+        } catch (InterruptedException e) {
+            getLog().info("Watching stopped");
+            Thread.currentThread().interrupt();
+        } catch (CommandLineException e) {
+            throw new MojoExecutionException("git publishing error", e);
+        } catch (IOException e) {
+            throw new MojoExecutionException("git publishing error", e);
+        } finally {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    getLog().warn("Cannot stop watching", e);
+                }
+            }
+            if (watch != null && watch.workClone != null) {
+                try {
+                    watch.workClone.release();
+                } catch (IOException e) {
+                    getLog().warn("Cannot unlock the work clone", e);
+                }
+            }
+            if (pool != null) {
+                pool.shutdown();
+            }
+            fileLog.close();
+        }
+    }
+
+    /**
+     * State kept between publications.
+     */
+    private class Watch {
+        private final ShellExecutor shell;
+        private final GitOperations git;
+        private final ForkJoinPool pool;
+        private final Precompression precompression;
+        private final String gitRemoteUrl;
+        private final List<Deployment> batch;
+        private final List<String> protectedRoots;
+        private WorkClone workClone;
+        /**
+         * Changed paths per deployment, or null when everything must be synchronized.
+         */
+        private Map<Deployment, Collection<String>> pending;
+        private boolean refresh;
+        private long lastPublished;
+
+        Watch(ShellExecutor shell, GitOperations git, ForkJoinPool pool, Precompression precompression, String gitRemoteUrl, List<Deployment> batch, List<String> protectedRoots) {
+            this.shell = shell;
+            this.git = git;
+            this.pool = pool;
+            this.precompression = precompression;
+            this.gitRemoteUrl = gitRemoteUrl;
+            this.batch = batch;
+            this.protectedRoots = protectedRoots;
+        }
+
+        boolean hasPending() {
+            return pending == null || !pending.isEmpty();
+        }
+
+        void addChanges(Deployment deployment, Set<String> paths) {
+            if (pending == null || paths.isEmpty()) {
+                return;
+            }
+            Collection<String> deploymentPending = pending.get(deployment);
+            if (deploymentPending == null) {
+                deploymentPending = new HashSet<String>();
+                pending.put(deployment, deploymentPending);
+            }
+            deploymentPending.addAll(paths);
+        }
+
+        void publish() throws MojoExecutionException, CommandLineException, IOException {
+            lastPublished = System.currentTimeMillis();
+            final Map<Deployment, Collection<String>> changes = pending;
+            pending = new LinkedHashMap<Deployment, Collection<String>>();
+            if (changes != null) {
+                int changedPaths = 0;
+                for (Collection<String> paths : changes.values()) {
+                    changedPaths += paths.size();
+                }
+                getLog().info(String.format("Publishing %d changed paths", changedPaths));
+            }
+            final DeployMetrics metrics = createMetrics(batch);
+            shell.setProcessListener(metrics);
+            boolean success = false;
+            try {
+                if (COMMIT_MODE_FAST_IMPORT.equals(commitMode)) {
+                    // the bare repository stays, and the stat cache spares reading the unchanged files
+                    deployWithFastImport(shell, git, metrics, precompression, gitRemoteUrl, batch, protectedRoots);
+                } else {
+                    if (workClone == null) {
+                        metrics.phase("clone");
+                        workClone = takePrefetched();
+                        if (workClone == null) {
+                            workClone = prepareWorkClone(git, gitRemoteUrl, subcontextPaths(batch));
+                        }
+                    } else if (refresh && git.fetch(workClone.getWorkDir(), gitBranch)) {
+                        metrics.phase("refresh");
+                        git.checkoutRemote(workClone.getWorkDir(), gitBranch);
+                    }
+                    refresh = false;
+                    deployWithWorkTree(shell, git, metrics, pool, precompression, workClone, batch, protectedRoots, changes);
+                    if (workClone.isBranchCreated() && git.fetch(workClone.getWorkDir(), gitBranch)) {
+                        // continue on the published branch, as if it was cloned
+                        git.checkoutRemote(workClone.getWorkDir(), gitBranch);
+                        workClone = workClone.published(gitBranch);
+                    }
+                }
+                success = true;
+            } finally {
+                reportMetrics(metrics, success);
+            }
+        }
+
+        void failed(Exception e) {
+            getLog().error(String.format("Publishing failed - will publish the whole site again in %d ms", watchInterval), e);
+            pending = null;
+            refresh = true;
+        }
+    }
+}
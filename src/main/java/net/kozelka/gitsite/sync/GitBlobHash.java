@@ -0,0 +1,172 @@
+package net.kozelka.gitsite.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes content hashes the same way as <code>git hash-object</code> does, so that they can be used as git blob ids.
+ *
+ * @author Petr Kozelka
+ */
+public final class GitBlobHash {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private GitBlobHash() {
+    }
+
+    /**
+     * @return git blob id of the file's content, as 40 hex digits
+     */
+    public static String hash(File file) throws IOException {
+        final MessageDigest digest = newDigest(file.length());
+        final InputStream is = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Same as {@link #hash}, but for the content that git stores with the <code>text=auto</code> attribute:
+     * CRLF line endings of a text file are converted to LF. A file is binary, and taken as it is,
+     * if it contains a NUL byte, a CR not followed by LF, or too many other control characters - the same heuristic as git uses.
+     *
+     * @return git blob id of the normalized content, as 40 hex digits
+     */
+    public static String hashText(File file) throws IOException {
+        final long crlf = countConvertibleCrlf(file);
+        if (crlf == 0) {
+            return hash(file);
+        }
+        final MessageDigest digest = newDigest(file.length() - crlf);
+        final InputStream is = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            boolean pendingCr = false;
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                int start = 0;
+                if (pendingCr && buffer[0] != '\n') {
+                    digest.update((byte) '\r');
+                }
+                pendingCr = false;
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] != '\r') {
+                        continue;
+                    }
+                    digest.update(buffer, start, i - start);
+                    start = i + 1;
+                    if (i + 1 == n) {
+                        // decided by the next buffer
+                        pendingCr = true;
+                    } else if (buffer[i + 1] != '\n') {
+                        digest.update((byte) '\r');
+                    }
+                }
+                digest.update(buffer, start, n - start);
+            }
+            if (pendingCr) {
+                digest.update((byte) '\r');
+            }
+        } finally {
+            is.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Gathers the statistics of git's <code>convert.c</code>.
+     *
+     * @return number of CRLF pairs to convert; 0 for binary files
+     */
+    private static long countConvertibleCrlf(File file) throws IOException {
+        long crlf = 0;
+        long printable = 0;
+        long nonPrintable = 0;
+        int last = -1;
+        boolean pendingCr = false;
+        final InputStream is = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    final int c = buffer[i] & 0xff;
+                    last = c;
+                    if (pendingCr) {
+                        pendingCr = false;
+                        if (c == '\n') {
+                            crlf++;
+                            continue;
+                        }
+                        // lone CR
+                        return 0;
+                    }
+                    if (c == '\r') {
+                        pendingCr = true;
+                    } else if (c == 0) {
+                        return 0;
+                    } else if (c == 127) {
+                        nonPrintable++;
+                    } else if (c < 32 && c != '\n' && c != '\b' && c != '\t' && c != 033 && c != 014) {
+                        nonPrintable++;
+                    } else if (c != '\n') {
+                        printable++;
+                    }
+                }
+            }
+        } finally {
+            is.close();
+        }
+        if (pendingCr) {
+            return 0;
+        }
+        if (last == 032) {
+            // a trailing EOF character does not count
+            nonPrintable--;
+        }
+        return (printable >> 7) < nonPrintable ? 0 : crlf;
+    }
+
+    /**
+     * @return digest already fed with the blob header, ready to be updated with the content of given size
+     */
+    public static MessageDigest newDigest(long size) {
+        final MessageDigest digest = newDigest();
+        final String header = "blob " + size + "\0";
+        for (int i = 0; i < header.length(); i++) {
+            digest.update((byte) header.charAt(i));
+        }
+        return digest;
+    }
+
+    /**
+     * @return the bytes as lowercase hex digits
+     */
+    public static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
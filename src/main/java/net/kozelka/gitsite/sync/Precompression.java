@@ -0,0 +1,104 @@
+package net.kozelka.gitsite.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import net.kozelka.gitsite.utils.DeployMetrics;
+import net.kozelka.gitsite.utils.ShellExecutor;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Precompression of the deployed sites: which of their files get siblings, and where the siblings are kept.
+ * <p>
+ * When deploying into the root of the site, its top-level protected roots hold the other subcontexts, and are left out.
+ * With a work tree, the siblings are written next to the files in it; without one, they are kept in a directory per subcontext,
+ * see {@link #getSiblingsDir}, so that the input directories are never written.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class Precompression {
+    private final Precompressor precompressor;
+    private final List<String> protectedRoots;
+    private final Log log;
+
+    private Precompression(Precompressor precompressor, List<String> protectedRoots, Log log) {
+        this.precompressor = precompressor;
+        this.protectedRoots = protectedRoots;
+        this.log = log;
+    }
+
+    /**
+     * Formats whose program is not available are skipped with a warning.
+     *
+     * @param shell executor to look for the programs with, and to run them
+     * @param pool pool to compress files in; null does everything in the calling thread
+     * @see Precompressor
+     */
+    public static Precompression create(ShellExecutor shell, ForkJoinPool pool, Collection<String> formats, Collection<String> extensions, long minSize, List<String> protectedRoots, Log log) throws CommandLineException {
+        final List<String> available = new ArrayList<String>(formats);
+        if (available.contains(Precompressor.BROTLI) && shell.execWithResult("brotli", "--version").getExitCode() != 0) {
+            log.warn("Program 'brotli' not found - skipping the brotli compression");
+            available.remove(Precompressor.BROTLI);
+        }
+        final Precompressor precompressor = new Precompressor(available, extensions, minSize, pool);
+        precompressor.setShell(shell);
+        return new Precompression(precompressor, protectedRoots, log);
+    }
+
+    /**
+     * @return extensions of the written siblings
+     */
+    public List<String> getFormats() {
+        return precompressor.getFormats();
+    }
+
+    /**
+     * Lists the siblings of given site deployed into given subcontext, without writing them.
+     *
+     * @param subcontextPath the subcontext, without leading and trailing slashes
+     * @return paths of the siblings relative to the site, separated by '/'
+     */
+    public List<String> listSiblings(File site, String subcontextPath) throws IOException {
+        return precompressor.listSiblings(site, excludedRoots(subcontextPath));
+    }
+
+    /**
+     * Writes missing and outdated siblings of the files of given site into the target directory, and counts them in the metrics.
+     *
+     * @param target the site itself, or a separate directory
+     * @param subcontextPath the subcontext that the site is deployed into, without leading and trailing slashes
+     */
+    public void compress(File source, File target, String subcontextPath, DeployMetrics metrics) throws IOException {
+        final Precompressor.Stats stats = precompressor.compress(source, target, excludedRoots(subcontextPath));
+        log.info(String.format("Precompressed %s into %s: %s", source, target, stats));
+        metrics.count("filesPrecompressed", stats.getWritten().size());
+        metrics.count("precompressedUpToDate", stats.getUpToDate());
+        metrics.count("bytesPrecompressed", stats.getBytesWritten());
+    }
+
+    /**
+     * @return top-level directories of the site deployed into given subcontext, which are left out
+     */
+    private Collection<String> excludedRoots(String subcontextPath) {
+        // other subcontexts are deployed under the roots
+        return subcontextPath.length() == 0 ? protectedRoots : Collections.<String>emptyList();
+    }
+
+    /**
+     * @param baseDir directory keeping the siblings of all subcontexts
+     * @param subcontextPath the subcontext, without leading and trailing slashes
+     * @return directory keeping the siblings of given subcontext
+     */
+    public static File getSiblingsDir(File baseDir, String subcontextPath) throws UnsupportedEncodingException {
+        // one flat entry per subcontext, so that the root site does not contain the others
+        return new File(baseDir, URLEncoder.encode("/" + subcontextPath, "UTF-8"));
+    }
+}
@@ -0,0 +1,301 @@
+package net.kozelka.gitsite.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import net.kozelka.gitsite.utils.ShellExecutor;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Writes precompressed siblings of site files, like <code>app.js.gz</code> next to <code>app.js</code>,
+ * for web servers that serve them directly instead of compressing each response (nginx <code>gzip_static</code>, <code>brotli_static</code>).
+ * <p>
+ * The siblings are written next to the files, or into a separate directory at the same relative paths, so that the site itself is left untouched.
+ * Gzip is done in-process, at the best compression level; its output does not depend on the time, so an unchanged file always gives the same sibling.
+ * The JDK has no brotli encoder, so <code>br</code> siblings are written by the external <code>brotli</code> program, one process per file.
+ * Each sibling gets the modification time of its source; a sibling with the same modification time as its source is up to date and is not written again.
+ * </p>
+ * <p>
+ * The site is walked once, in the calling thread; the files to compress are then spread over a fork-join pool, owned by the caller.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class Precompressor {
+    public static final String GZIP = "gz";
+    public static final String BROTLI = "br";
+
+    private final List<String> formats;
+    private final Set<String> extensions = new HashSet<String>();
+    private final long minSize;
+    private final ForkJoinPool pool;
+    private ShellExecutor shell;
+
+    /**
+     * @param formats extensions of the siblings to write, {@link #GZIP} and/or {@link #BROTLI}
+     * @param extensions extensions of the files to compress, without the dot
+     * @param minSize smaller files are not compressed
+     * @param pool pool to compress files in; null does everything in the calling thread
+     */
+    public Precompressor(Collection<String> formats, Collection<String> extensions, long minSize, ForkJoinPool pool) {
+        this.formats = new ArrayList<String>(formats);
+        for (String extension : extensions) {
+            this.extensions.add(extension.toLowerCase(Locale.ROOT));
+        }
+        this.minSize = minSize;
+        this.pool = pool;
+    }
+
+    /**
+     * @param shell executor to run the <code>brotli</code> program with; required for {@link #BROTLI}
+     */
+    public void setShell(ShellExecutor shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * @return extensions of the written siblings
+     */
+    public List<String> getFormats() {
+        return formats;
+    }
+
+    /**
+     * Lists the siblings that {@link #compress} would keep for given site, without writing them.
+     *
+     * @return paths of the siblings relative to the site, separated by '/'
+     */
+    public List<String> listSiblings(File source, Collection<String> excludedRoots) throws IOException {
+        final Path sourceRoot = source.toPath();
+        final List<String> siblings = new ArrayList<String>();
+        for (Path file : findFiles(sourceRoot, excludedRoots, true)) {
+            for (String format : formats) {
+                siblings.add(relativize(sourceRoot, siblingOf(file, format)));
+            }
+        }
+        return siblings;
+    }
+
+    /**
+     * Writes missing and outdated siblings next to the files of given site.
+     *
+     * @param excludedRoots names of top-level directories of the site to leave out
+     */
+    public Stats compress(File site, Collection<String> excludedRoots) throws IOException {
+        return compress(site, site, excludedRoots);
+    }
+
+    /**
+     * Writes missing and outdated siblings of the files of given site into the target directory, at their relative paths.
+     * When the target is a separate directory, any other files in it, like siblings of files deleted from the site meanwhile, are deleted.
+     *
+     * @param excludedRoots names of top-level directories of the site to leave out; the same ones are left alone in the target
+     */
+    public Stats compress(File source, File target, final Collection<String> excludedRoots) throws IOException {
+        final Stats stats = new Stats();
+        final Path sourceRoot = source.toPath();
+        final Path targetRoot = target.toPath();
+        final Set<Path> expected = new HashSet<Path>();
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Path file : findFiles(sourceRoot, excludedRoots, true)) {
+            final FileTime mtime = Files.getLastModifiedTime(file);
+            for (final String format : formats) {
+                final String siblingPath = relativize(sourceRoot, siblingOf(file, format));
+                final Path sibling = targetRoot.resolve(siblingPath);
+                expected.add(sibling);
+                if (Files.isRegularFile(sibling) && Files.getLastModifiedTime(sibling).equals(mtime)) {
+                    stats.upToDate();
+                    continue;
+                }
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        Files.createDirectories(sibling.getParent());
+                        compressFile(file, sibling, format);
+                        Files.setLastModifiedTime(sibling, mtime);
+                        stats.compressed(siblingPath, Files.size(file), Files.size(sibling));
+                        return null;
+                    }
+                });
+            }
+        }
+        if (!targetRoot.equals(sourceRoot) && Files.isDirectory(targetRoot)) {
+            for (Path file : findFiles(targetRoot, excludedRoots, false)) {
+                if (!expected.contains(file)) {
+                    Files.delete(file);
+                    stats.removed();
+                }
+            }
+        }
+
+        if (pool == null || tasks.size() <= 1) {
+            for (Callable<Void> task : tasks) {
+                call(task);
+            }
+            return stats;
+        }
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing files", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Cannot compress files", e.getCause());
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @param compressible true for only the files to compress, false for all
+     */
+    private List<Path> findFiles(final Path root, final Collection<String> excludedRoots, final boolean compressible) throws IOException {
+        final List<Path> files = new ArrayList<Path>();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                final boolean excluded = root.equals(dir.getParent()) && excludedRoots.contains(dir.getFileName().toString());
+                return excluded ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!compressible || attrs.size() >= minSize && extensions.contains(extensionOf(file.getFileName().toString()))) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private static String relativize(Path root, Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private static void call(Callable<Void> task) throws IOException {
+        try {
+            task.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Cannot compress files", e);
+        }
+    }
+
+    private void compressFile(Path file, Path sibling, String format) throws IOException, CommandLineException {
+        if (BROTLI.equals(format)) {
+            final ShellExecutor.Result result = new ShellExecutor.Result();
+            shell.fork().execWithResult(result, "brotli", "--force", "--best", "--output=" + sibling, file.toString());
+            if (result.getExitCode() != 0) {
+                throw new IOException(String.format("brotli exited with code %d on %s", result.getExitCode(), file));
+            }
+            return;
+        }
+        final InputStream in = Files.newInputStream(file);
+        try {
+            final OutputStream out = new GZIPOutputStream(Files.newOutputStream(sibling)) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
+            try {
+                final byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static String extensionOf(String name) {
+        final int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static Path siblingOf(Path file, String format) {
+        return file.resolveSibling(file.getFileName() + "." + format);
+    }
+
+    /**
+     * Counts of siblings processed by one compression.
+     */
+    public static class Stats {
+        private final List<String> written = new ArrayList<String>();
+        private int upToDate;
+        private int removed;
+        private long bytesRead;
+        private long bytesWritten;
+
+        private synchronized void compressed(String path, long size, long compressedSize) {
+            written.add(path);
+            bytesRead += size;
+            bytesWritten += compressedSize;
+        }
+
+        private synchronized void upToDate() {
+            upToDate++;
+        }
+
+        private synchronized void removed() {
+            removed++;
+        }
+
+        /**
+         * @return paths of the written siblings, relative to the site, separated by '/'
+         */
+        public List<String> getWritten() {
+            return written;
+        }
+
+        public int getUpToDate() {
+            return upToDate;
+        }
+
+        /**
+         * @return number of siblings deleted from a separate target directory, because their file is gone or no longer compressed
+         */
+        public int getRemoved() {
+            return removed;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d written, %d up to date, %d removed (%d bytes compressed into %d)", written.size(), upToDate, removed, bytesRead, bytesWritten);
+        }
+    }
+}
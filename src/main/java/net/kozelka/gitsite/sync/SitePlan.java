@@ -0,0 +1,322 @@
+package net.kozelka.gitsite.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import net.kozelka.gitsite.utils.DeployMetrics;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * What a deployment would change in the site branch, computed without checking the branch out.
+ * <p>
+ * The files of the branch are given by their paths and blob ids, as listed by <code>git ls-tree</code>;
+ * the site files are hashed locally, or taken from a {@link StatCache}, and compared by blob id.
+ * With text normalization, files are hashed the way git stores them with the <code>text=auto</code> attribute.
+ * Files of the branch within a target area that are missing in the site are deleted, unless they are under a protected root of that area.
+ * Files that only the deployment produces, like precompressed siblings, are pending: they are neither compared nor deleted.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class SitePlan {
+    private final Map<String, String> remoteFiles = new HashMap<String, String>();
+    private final Set<String> remoteBlobs = new HashSet<String>();
+    private final Set<String> seen = new HashSet<String>();
+    private final Set<String> pushedBlobs = new HashSet<String>();
+    private final Map<String, Collection<String>> areas = new TreeMap<String, Collection<String>>();
+    private final Set<String> added = new TreeSet<String>();
+    private final Set<String> changed = new TreeSet<String>();
+    private final Set<String> deleted = new TreeSet<String>();
+    private final Set<String> pending = new TreeSet<String>();
+    private final Map<String, Integer> protectedFiles = new TreeMap<String, Integer>();
+    private int unchanged;
+    private long bytes;
+    private long bytesToPush;
+    private String indexPath;
+    private final Set<String> indexAdded = new TreeSet<String>();
+    private final Set<String> indexRemoved = new TreeSet<String>();
+    private boolean textNormalization;
+
+    /**
+     * Registers a file of the branch, before any site is compared.
+     */
+    public void addRemoteFile(String path, String blobId) {
+        remoteFiles.put(path, blobId);
+        remoteBlobs.add(blobId);
+    }
+
+    /**
+     * @param textNormalization whether the deployment commits the files with the <code>text=auto</code> attribute, converting CRLF line endings of text files to LF
+     */
+    public void setTextNormalization(boolean textNormalization) {
+        this.textNormalization = textNormalization;
+    }
+
+    /**
+     * Compares a site with the target area of the branch.
+     *
+     * @param prefix path of the target area, "" for the root of the site
+     * @param protectedRoots names of top-level directories of the target area that are kept
+     * @param statCache known blob ids of the site files, as they are; null to hash all of them. Not used with text normalization.
+     */
+    public void compare(File source, final String prefix, Collection<String> protectedRoots, final StatCache statCache) throws IOException {
+        areas.put(prefix, protectedRoots);
+        final Path sourceRoot = source.toPath();
+        Files.walkFileTree(sourceRoot, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final String relativePath = sourceRoot.relativize(file).toString().replace(File.separatorChar, '/');
+                final String path = prefix.length() == 0 ? relativePath : prefix + "/" + relativePath;
+                if (textNormalization) {
+                    fileCompared(path, GitBlobHash.hashText(file.toFile()), attrs.size());
+                    return FileVisitResult.CONTINUE;
+                }
+                final StatCache.Entry cached = statCache == null ? null : statCache.lookup(path);
+                final String blobId = cached != null && cached.getBlobId() != null && cached.matches(attrs.size(), attrs.lastModifiedTime().toMillis())
+                    ? cached.getBlobId()
+                    : GitBlobHash.hash(file.toFile());
+                fileCompared(path, blobId, attrs.size());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Registers files that the deployment writes into a target area, but which cannot be compared before.
+     *
+     * @param prefix path of the target area, "" for the root of the site
+     * @param relativePaths paths of the files within the area
+     */
+    public void addPending(String prefix, Collection<String> relativePaths) {
+        for (String relativePath : relativePaths) {
+            final String path = prefix.length() == 0 ? relativePath : prefix + "/" + relativePath;
+            if (seen.add(path)) {
+                pending.add(path);
+            }
+        }
+    }
+
+    private void fileCompared(String path, String blobId, long size) {
+        seen.add(path);
+        bytes += size;
+        final String remoteBlobId = remoteFiles.get(path);
+        if (blobId.equals(remoteBlobId)) {
+            unchanged++;
+            return;
+        }
+        if (remoteBlobId == null) {
+            added.add(path);
+        } else {
+            changed.add(path);
+        }
+        if (!remoteBlobs.contains(blobId) && pushedBlobs.add(blobId)) {
+            bytesToPush += size;
+        }
+    }
+
+    /**
+     * Determines deleted and protected files of the branch, once all sites are compared.
+     */
+    public void finish() {
+        for (String path : remoteFiles.keySet()) {
+            if (seen.contains(path)) {
+                continue;
+            }
+            String protectedRoot = null;
+            boolean inArea = false;
+            boolean kept = true;
+            for (Map.Entry<String, Collection<String>> area : areas.entrySet()) {
+                final String prefix = area.getKey();
+                final String relative = prefix.length() == 0 ? path : path.startsWith(prefix + "/") ? path.substring(prefix.length() + 1) : null;
+                if (relative == null) {
+                    continue;
+                }
+                inArea = true;
+                final int slash = relative.indexOf('/');
+                final String name = slash < 0 ? relative : relative.substring(0, slash);
+                if (area.getValue().contains(name)) {
+                    protectedRoot = prefix.length() == 0 ? name : prefix + "/" + name;
+                } else {
+                    kept = false;
+                }
+            }
+            if (!inArea) {
+                continue;
+            }
+            if (!kept) {
+                deleted.add(path);
+            } else if (protectedRoot != null) {
+                final Integer count = protectedFiles.get(protectedRoot);
+                protectedFiles.put(protectedRoot, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    /**
+     * Records the update of the subcontext index.
+     */
+    public void setIndex(String path, String before, String after) {
+        indexPath = path;
+        final Set<String> beforeLines = new TreeSet<String>(Arrays.asList(before.split("\n")));
+        final Set<String> afterLines = new TreeSet<String>(Arrays.asList(after.split("\n")));
+        beforeLines.remove("");
+        afterLines.remove("");
+        for (String line : afterLines) {
+            if (!beforeLines.contains(line)) {
+                indexAdded.add(line);
+            }
+        }
+        for (String line : beforeLines) {
+            if (!afterLines.contains(line)) {
+                indexRemoved.add(line);
+            }
+        }
+    }
+
+    public Set<String> getAdded() {
+        return added;
+    }
+
+    public Set<String> getChanged() {
+        return changed;
+    }
+
+    public Set<String> getDeleted() {
+        return deleted;
+    }
+
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return paths of the files that the deployment produces, without knowing whether they change
+     */
+    public Set<String> getPending() {
+        return pending;
+    }
+
+    /**
+     * @return number of kept files, per protected root
+     */
+    public Map<String, Integer> getProtectedFiles() {
+        return protectedFiles;
+    }
+
+    /**
+     * @return size of the new content that the branch does not have yet, before compression
+     */
+    public long getBytesToPush() {
+        return bytesToPush;
+    }
+
+    public Set<String> getIndexAdded() {
+        return indexAdded;
+    }
+
+    public Set<String> getIndexRemoved() {
+        return indexRemoved;
+    }
+
+    public boolean hasChanges() {
+        return !added.isEmpty() || !changed.isEmpty() || !deleted.isEmpty() || !indexAdded.isEmpty() || !indexRemoved.isEmpty();
+    }
+
+    /**
+     * @param maxPaths how many paths of each kind to list
+     */
+    public List<String> getSummary(int maxPaths) {
+        final List<String> lines = new ArrayList<String>();
+        lines.add(String.format("%d added, %d changed, %d deleted, %d unchanged; %d bytes of new content to push",
+            added.size(), changed.size(), deleted.size(), unchanged, bytesToPush));
+        listPaths(lines, "A ", added, maxPaths);
+        listPaths(lines, "M ", changed, maxPaths);
+        listPaths(lines, "D ", deleted, maxPaths);
+        if (!pending.isEmpty()) {
+            lines.add(String.format("%d pending, to be written by the deployment itself:", pending.size()));
+            listPaths(lines, "P ", pending, maxPaths);
+        }
+        for (Map.Entry<String, Integer> entry : protectedFiles.entrySet()) {
+            lines.add(String.format("Protected %s: %d files kept", entry.getKey(), entry.getValue()));
+        }
+        if (indexAdded.isEmpty() && indexRemoved.isEmpty()) {
+            lines.add(String.format("Index %s: unchanged", indexPath));
+        } else {
+            lines.add(String.format("Index %s: added %s, removed %s", indexPath, indexAdded, indexRemoved));
+        }
+        return lines;
+    }
+
+    private static void listPaths(List<String> lines, String mark, Set<String> paths, int maxPaths) {
+        int listed = 0;
+        for (String path : paths) {
+            if (listed++ == maxPaths) {
+                lines.add(String.format("  ... and %d more", paths.size() - maxPaths));
+                break;
+            }
+            lines.add("  " + mark + path);
+        }
+    }
+
+    public String toJson() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"hasChanges\": ").append(hasChanges()).append(",\n");
+        sb.append("  \"counters\": {\n");
+        sb.append("    \"added\": ").append(added.size()).append(",\n");
+        sb.append("    \"changed\": ").append(changed.size()).append(",\n");
+        sb.append("    \"deleted\": ").append(deleted.size()).append(",\n");
+        sb.append("    \"unchanged\": ").append(unchanged).append(",\n");
+        sb.append("    \"pending\": ").append(pending.size()).append(",\n");
+        sb.append("    \"bytes\": ").append(bytes).append(",\n");
+        sb.append("    \"bytesToPush\": ").append(bytesToPush).append("\n");
+        sb.append("  },\n");
+        sb.append("  \"added\": ").append(jsonArray(added)).append(",\n");
+        sb.append("  \"changed\": ").append(jsonArray(changed)).append(",\n");
+        sb.append("  \"deleted\": ").append(jsonArray(deleted)).append(",\n");
+        sb.append("  \"pending\": ").append(jsonArray(pending)).append(",\n");
+        sb.append("  \"protected\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Integer> entry : protectedFiles.entrySet()) {
+            sb.append(separator).append("    ").append(DeployMetrics.quote(entry.getKey())).append(": ").append(entry.getValue());
+            separator = ",\n";
+        }
+        sb.append(protectedFiles.isEmpty() ? "" : "\n  ").append("},\n");
+        sb.append("  \"index\": {\"path\": ").append(DeployMetrics.quote(String.valueOf(indexPath)))
+            .append(", \"added\": ").append(jsonArray(indexAdded))
+            .append(", \"removed\": ").append(jsonArray(indexRemoved)).append("}\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String jsonArray(Collection<String> values) {
+        final StringBuilder sb = new StringBuilder("[");
+        String separator = "";
+        for (String value : values) {
+            sb.append(separator).append(DeployMetrics.quote(value));
+            separator = ", ";
+        }
+        return sb.append(']').toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        FileUtils.fileWrite(file.getAbsolutePath(), "UTF-8", toJson());
+    }
+}
@@ -0,0 +1,42 @@
+package net.kozelka.gitsite.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+
+/**
+ * Number and total size of files in a directory tree, computed by a single streaming walk.
+ *
+ * @author Petr Kozelka
+ */
+public class SiteScan {
+    private int files;
+    private long bytes;
+
+    public static SiteScan of(File dir) throws IOException {
+        final SiteScan scan = new SiteScan();
+        Files.walkFileTree(dir.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                scan.files++;
+                scan.bytes += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return scan;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
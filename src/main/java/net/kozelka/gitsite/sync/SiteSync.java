@@ -0,0 +1,420 @@
+package net.kozelka.gitsite.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Makes the target directory contain the same files as the source directory, touching only what differs.
+ * <p>
+ * Files are compared by size first, and by content hash when sizes match; identical files are left untouched,
+ * so that their timestamps remain and git does not need to rehash them.
+ * With a {@link StatCache}, files whose size and modification time are the same as when they were last synchronized,
+ * and whose copy was not touched since, are not compared at all.
+ * Top-level entries of the target listed as protected (like <code>.git</code> or version roots) are never deleted.
+ * Siblings generated in the target, like those of {@link Precompressor}, are kept as long as their file exists in the source.
+ * </p>
+ * <p>
+ * Both trees are traversed in a single streaming pass, so memory use does not depend on the number of files.
+ * Comparing and copying of files can be spread over a fork-join pool, owned by the caller so that it serves a whole deployment,
+ * while the walk itself, including deletions and directory creation, stays in the calling thread - each directory exists before any of its files is copied.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class SiteSync {
+    /**
+     * Files of at least this size are copied with {@link FileChannel#transferTo}, letting the kernel move the data.
+     */
+    static final long TRANSFER_THRESHOLD = 256 * 1024;
+    /**
+     * How many files per thread may wait for comparing or copying; keeps memory constant while the walk runs ahead.
+     */
+    private static final int PENDING_FILES_PER_THREAD = 64;
+
+    private final Set<String> protectedRoots;
+    private final ForkJoinPool pool;
+    private final Set<String> siblingExtensions = new HashSet<String>();
+    private StatCache statCache;
+    private String statCachePrefix;
+
+    /**
+     * @param protectedRoots names of top-level entries in the target that must be kept even if missing in the source
+     */
+    public SiteSync(Collection<String> protectedRoots) {
+        this(protectedRoots, null);
+    }
+
+    /**
+     * @param pool pool to compare and copy files in; null does everything in the calling thread
+     */
+    public SiteSync(Collection<String> protectedRoots, ForkJoinPool pool) {
+        this.protectedRoots = new HashSet<String>(protectedRoots);
+        this.pool = pool;
+    }
+
+    /**
+     * @param prefix path of the target directory within the cache, "" for its root
+     */
+    public void setStatCache(StatCache statCache, String prefix) {
+        this.statCache = statCache;
+        this.statCachePrefix = prefix;
+    }
+
+    /**
+     * @param extensions extensions of siblings generated in the target, like <code>gz</code> for <code>app.js.gz</code> generated from <code>app.js</code>
+     */
+    public void setSiblingExtensions(Collection<String> extensions) {
+        siblingExtensions.clear();
+        siblingExtensions.addAll(extensions);
+    }
+
+    public Stats sync(File source, File target) throws IOException {
+        final Stats stats = new Stats();
+        final Path sourceRoot = source.toPath();
+        final Path targetRoot = target.toPath();
+        Files.createDirectories(targetRoot);
+        if (statCache != null) {
+            statCache.expire(statCachePrefix, protectedRoots);
+        }
+        syncTree(sourceRoot, targetRoot, sourceRoot, stats);
+        return stats;
+    }
+
+    /**
+     * Synchronizes only given paths, as reported by a {@link SiteWatcher}; the rest of the target is assumed to be in sync already.
+     * A path missing in the source is deleted from the target, unless it is a protected top-level entry; a directory is synchronized as a whole.
+     *
+     * @param changedPaths paths relative to the source, separated by '/'; "" stands for the whole source
+     */
+    public Stats sync(File source, File target, Collection<String> changedPaths) throws IOException {
+        if (changedPaths.contains("")) {
+            return sync(source, target);
+        }
+        final Stats stats = new Stats();
+        final Path sourceRoot = source.toPath();
+        final Path targetRoot = target.toPath();
+        Files.createDirectories(targetRoot);
+        String covered = null;
+        for (String path : new TreeSet<String>(changedPaths)) {
+            if (covered != null && path.startsWith(covered + "/")) {
+                // already synchronized with its parent directory
+                continue;
+            }
+            final Path sourcePath = sourceRoot.resolve(path);
+            final Path targetPath = targetRoot.resolve(path);
+            if (Files.isDirectory(sourcePath)) {
+                covered = path;
+                if (Files.exists(targetPath, LinkOption.NOFOLLOW_LINKS) && !Files.isDirectory(targetPath, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.delete(targetPath);
+                    stats.filesDeleted(1);
+                }
+                syncTree(sourceRoot, targetRoot, sourcePath, stats);
+            } else if (Files.isRegularFile(sourcePath)) {
+                if (Files.isDirectory(targetPath, LinkOption.NOFOLLOW_LINKS)) {
+                    stats.filesDeleted(deleteTree(targetPath));
+                }
+                Files.createDirectories(targetPath.getParent());
+                syncFile(sourcePath, Files.readAttributes(sourcePath, BasicFileAttributes.class), targetPath, path, stats);
+            } else if (path.indexOf('/') >= 0 || !protectedRoots.contains(path)) {
+                covered = path;
+                if (Files.isDirectory(targetPath, LinkOption.NOFOLLOW_LINKS)) {
+                    stats.filesDeleted(deleteTree(targetPath));
+                } else if (!isSibling(sourcePath.getParent(), targetPath.getFileName().toString()) && Files.deleteIfExists(targetPath)) {
+                    stats.filesDeleted(1);
+                    for (String extension : siblingExtensions) {
+                        Files.deleteIfExists(targetPath.resolveSibling(targetPath.getFileName() + "." + extension));
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Walks the source from given directory, which is either the source root or a directory below it.
+     */
+    private void syncTree(final Path sourceRoot, final Path targetRoot, Path start, final Stats stats) throws IOException {
+        final int maxPending = pool == null ? 0 : pool.getParallelism() * PENDING_FILES_PER_THREAD;
+        final Semaphore pending = new Semaphore(maxPending);
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        try {
+            // single pass over the source, in this thread; deletions and directory creation are done per directory,
+            // before any of its files is handed over to the pool
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    final Path targetDir = targetRoot.resolve(sourceRoot.relativize(dir).toString());
+                    if (Files.isDirectory(targetDir)) {
+                        deleteRemoved(dir, targetDir, dir.equals(sourceRoot), stats);
+                    } else {
+                        Files.createDirectories(targetDir);
+                    }
+                    return failure.get() == null ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                    final Path targetFile = targetRoot.resolve(sourceRoot.relativize(file).toString());
+                    if (pool == null) {
+                        syncFile(file, attrs, targetFile, sourceRoot.relativize(file).toString(), stats);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    pending.acquireUninterruptibly();
+                    pool.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                syncFile(file, attrs, targetFile, sourceRoot.relativize(file).toString(), stats);
+                            } catch (IOException e) {
+                                failure.compareAndSet(null, e);
+                            } catch (RuntimeException e) {
+                                failure.compareAndSet(null, new IOException("Cannot synchronize " + file, e));
+                            } finally {
+                                pending.release();
+                            }
+                        }
+                    });
+                    return failure.get() == null ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+            });
+        } finally {
+            if (pool != null) {
+                // wait for all files handed over to the pool
+                pending.acquireUninterruptibly(maxPending);
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private void syncFile(Path file, BasicFileAttributes attrs, Path targetFile, String relativePath, Stats stats) throws IOException {
+        final long size = attrs.size();
+        final long mtime = attrs.lastModifiedTime().toMillis();
+        final String key = statCachePrefix == null || statCachePrefix.length() == 0
+            ? relativePath.replace(File.separatorChar, '/')
+            : statCachePrefix + "/" + relativePath.replace(File.separatorChar, '/');
+        final StatCache.Entry cached = statCache == null ? null : statCache.lookup(key);
+        final BasicFileAttributes targetAttrs;
+        try {
+            targetAttrs = Files.readAttributes(targetFile, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            copy(file, size, targetFile);
+            stats.fileAdded(size);
+            record(key, size, mtime, targetFile, null);
+            return;
+        }
+        if (cached != null && cached.matches(size, mtime)
+            && targetAttrs.size() == size && targetAttrs.lastModifiedTime().toMillis() == cached.getTargetMtime()) {
+            statCache.retain(key, cached);
+            stats.fileUnchangedByStat(size);
+            return;
+        }
+        String blobId = null;
+        if (size != targetAttrs.size()
+            || !(blobId = GitBlobHash.hash(file.toFile())).equals(GitBlobHash.hash(targetFile.toFile()))) {
+            copy(file, size, targetFile);
+            stats.fileChanged(size);
+        } else {
+            stats.fileUnchanged(size);
+        }
+        record(key, size, mtime, targetFile, blobId);
+    }
+
+    private void record(String key, long size, long mtime, Path targetFile, String blobId) throws IOException {
+        if (statCache != null) {
+            statCache.put(key, size, mtime, Files.getLastModifiedTime(targetFile).toMillis(), blobId);
+        }
+    }
+
+    private static void copy(Path source, long size, Path target) throws IOException {
+        if (size < TRANSFER_THRESHOLD) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        final FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            final FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                long position = 0;
+                while (position < size) {
+                    final long transferred = in.transferTo(position, size - position, out);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes entries of the target directory that do not exist in the source directory, or whose type (file/directory) differs.
+     * Only this directory level is examined; subdirectories present on both sides are handled when the walk gets to them.
+     */
+    private void deleteRemoved(Path sourceDir, Path targetDir, boolean topLevel, Stats stats) throws IOException {
+        final DirectoryStream<Path> entries = Files.newDirectoryStream(targetDir);
+        try {
+            for (Path targetEntry : entries) {
+                final String name = targetEntry.getFileName().toString();
+                if (topLevel && protectedRoots.contains(name)) {
+                    continue;
+                }
+                final Path sourceEntry = sourceDir.resolve(name);
+                if (Files.isDirectory(targetEntry, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!Files.isDirectory(sourceEntry)) {
+                        stats.filesDeleted(deleteTree(targetEntry));
+                    }
+                } else if (!Files.isRegularFile(sourceEntry) && !isSibling(sourceDir, name)) {
+                    Files.delete(targetEntry);
+                    stats.filesDeleted(1);
+                }
+            }
+        } finally {
+            entries.close();
+        }
+    }
+
+    /**
+     * @return true if given name is a generated sibling of a file in the source directory
+     */
+    private boolean isSibling(Path sourceDir, String name) {
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 && siblingExtensions.contains(name.substring(dot + 1)) && Files.isRegularFile(sourceDir.resolve(name.substring(0, dot)));
+    }
+
+    /**
+     * @return number of deleted files
+     */
+    private static int deleteTree(Path dir) throws IOException {
+        final int[] count = new int[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                count[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Counts of files processed by one synchronization.
+     */
+    public static class Stats {
+        private int added;
+        private int changed;
+        private int deleted;
+        private int unchanged;
+        private long bytesWritten;
+        private long bytes;
+        private int statHits;
+
+        private synchronized void fileAdded(long size) {
+            added++;
+            bytes += size;
+            bytesWritten += size;
+        }
+
+        private synchronized void fileChanged(long size) {
+            changed++;
+            bytes += size;
+            bytesWritten += size;
+        }
+
+        private synchronized void fileUnchanged(long size) {
+            unchanged++;
+            bytes += size;
+        }
+
+        private synchronized void fileUnchangedByStat(long size) {
+            unchanged++;
+            statHits++;
+            bytes += size;
+        }
+
+        private synchronized void filesDeleted(int count) {
+            deleted += count;
+        }
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getChanged() {
+            return changed;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * @return number of unchanged files recognized by the stat cache, without comparing their content
+         */
+        public int getStatHits() {
+            return statHits;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * @return total size of files present in the source
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return number of files present in the source
+         */
+        public int getFileCount() {
+            return added + changed + unchanged;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d added, %d changed, %d deleted, %d unchanged (%d bytes written)",
+                added, changed, deleted, unchanged, bytesWritten);
+        }
+    }
+}
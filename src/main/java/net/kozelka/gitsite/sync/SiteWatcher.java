@@ -0,0 +1,197 @@
+package net.kozelka.gitsite.sync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches site directories for changes, and reports the changed paths in debounced batches.
+ * <p>
+ * Every directory of the watched trees is registered with a {@link WatchService}; directories created later are registered as they appear,
+ * and reported as changed as a whole. When events are lost (overflow), or a watched root is deleted and created again,
+ * the whole root is reported as changed, as an empty path.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class SiteWatcher implements Closeable {
+    /**
+     * While some root does not exist, it is looked for this often.
+     */
+    private static final long MISSING_ROOT_CHECK_MILLIS = 1000;
+
+    private final List<Path> roots = new ArrayList<Path>();
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+    private final boolean[] rootWatched;
+
+    /**
+     * Starts watching given directories; those that do not exist yet are watched as soon as they appear.
+     */
+    public SiteWatcher(List<File> roots) throws IOException {
+        for (File root : roots) {
+            this.roots.add(root.getAbsoluteFile().toPath());
+        }
+        this.rootWatched = new boolean[roots.size()];
+        this.watchService = FileSystems.getDefault().newWatchService();
+        for (int i = 0; i < this.roots.size(); i++) {
+            rootWatched[i] = registerTree(this.roots.get(i));
+        }
+    }
+
+    /**
+     * Waits for changes, and then until there are no more changes for the debounce time.
+     *
+     * @param timeoutMillis how long to wait for the first change; negative to wait for ever
+     * @param debounceMillis how long the trees must stay unchanged, after the first change, to finish the batch
+     * @return for each root, in order, the changed paths relative to it, separated by '/'; all empty if nothing changed before the timeout
+     */
+    public List<Set<String>> poll(long timeoutMillis, long debounceMillis) throws IOException, InterruptedException {
+        final List<Set<String>> changes = new ArrayList<Set<String>>();
+        for (int i = 0; i < roots.size(); i++) {
+            changes.add(new LinkedHashSet<String>());
+        }
+        final long deadline = timeoutMillis < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMillis;
+        boolean changed = false;
+        while (true) {
+            changed |= registerMissingRoots(changes);
+            final long now = System.currentTimeMillis();
+            long wait = changed ? debounceMillis : deadline - now;
+            if (!changed && wait <= 0) {
+                return changes;
+            }
+            if (hasMissingRoot()) {
+                wait = Math.min(wait, MISSING_ROOT_CHECK_MILLIS);
+            }
+            final WatchKey key;
+            try {
+                key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+            } catch (ClosedWatchServiceException e) {
+                return changes;
+            }
+            if (key == null) {
+                if (changed) {
+                    return changes;
+                }
+                continue;
+            }
+            changed |= processEvents(key, changes);
+        }
+    }
+
+    private boolean processEvents(WatchKey key, List<Set<String>> changes) throws IOException {
+        final Path dir = watchedDirs.get(key);
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost; only a full synchronization is safe
+                for (int i = 0; i < roots.size(); i++) {
+                    changes.get(i).add("");
+                }
+                changed = true;
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            final Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                registerTree(path);
+            }
+            changed |= addChange(path, changes);
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+            if (dir != null) {
+                for (int i = 0; i < roots.size(); i++) {
+                    if (dir.equals(roots.get(i))) {
+                        // the root itself is gone; watch for it to appear again
+                        rootWatched[i] = false;
+                        changes.get(i).add("");
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    private boolean addChange(Path path, List<Set<String>> changes) {
+        boolean added = false;
+        for (int i = 0; i < roots.size(); i++) {
+            final Path root = roots.get(i);
+            if (path.startsWith(root) && !path.equals(root)) {
+                changes.get(i).add(root.relativize(path).toString().replace(File.separatorChar, '/'));
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    private boolean registerMissingRoots(List<Set<String>> changes) throws IOException {
+        boolean registered = false;
+        for (int i = 0; i < roots.size(); i++) {
+            if (!rootWatched[i] && registerTree(roots.get(i))) {
+                rootWatched[i] = true;
+                changes.get(i).add("");
+                registered = true;
+            }
+        }
+        return registered;
+    }
+
+    private boolean hasMissingRoot() {
+        for (boolean watched : rootWatched) {
+            if (!watched) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the directory does not exist
+     */
+    private boolean registerTree(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return false;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                watchedDirs.put(subdir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), subdir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // deleted while walking; its parent reports that
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return true;
+    }
+
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,338 @@
+package net.kozelka.gitsite.sync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers size and modification time of files, together with their git blob ids, between deployments;
+ * a file whose size and time did not change does not need to be read and hashed again.
+ * <p>
+ * The cache is a single binary file, memory-mapped for lookups: a header, a table of entry offsets sorted by path, and the entries.
+ * Entries recorded during a deployment are kept in memory and merged into a new file by {@link #save()}, which replaces the old one atomically.
+ * A missing, unreadable or outdated file is treated as an empty cache, so it is always safe to delete it.
+ * </p>
+ * <p>
+ * Like git's index, the cache does not trust modification times too close to the time when it was opened,
+ * as the file could still change within the same tick of the file system clock.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class StatCache {
+    private static final int MAGIC = 0x47535343; // "GSSC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int BLOB_ID_SIZE = 20;
+    private static final int MAX_PATH_LENGTH = 0xffff;
+    /**
+     * Modification times at most this old, when the cache is opened, are not trusted.
+     */
+    static final long RACY_MILLIS = 2000;
+    /**
+     * Time that never matches a file, used for untrusted or unknown times.
+     */
+    public static final long UNKNOWN = -1;
+
+    private final File file;
+    private final ByteBuffer mapped;
+    private final int count;
+    private final long racyAfter;
+    private final Map<String, Entry> updates = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, Collection<String>> expired = new ConcurrentHashMap<String, Collection<String>>();
+
+    private StatCache(File file, ByteBuffer mapped, int count) {
+        this.file = file;
+        this.mapped = mapped;
+        this.count = count;
+        this.racyAfter = System.currentTimeMillis() - RACY_MILLIS;
+    }
+
+    /**
+     * Maps the cache file; starts with an empty cache if it does not exist or is not valid.
+     */
+    public static StatCache open(File file) {
+        if (file.isFile()) {
+            try {
+                final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                try {
+                    final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    if (buffer.capacity() >= HEADER_SIZE && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+                        final int count = buffer.getInt(8);
+                        if (count >= 0 && HEADER_SIZE + 4L * count <= buffer.capacity()) {
+                            return new StatCache(file, buffer, count);
+                        }
+                    }
+                } finally {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // unreadable cache is no cache
+            }
+        }
+        return new StatCache(file, null, 0);
+    }
+
+    /**
+     * @return the entry recorded for given path, or null if there is none
+     */
+    public Entry lookup(String path) {
+        final Entry updated = updates.get(path);
+        if (updated != null) {
+            return updated;
+        }
+        if (mapped == null) {
+            return null;
+        }
+        final byte[] key = utf8(path);
+        int low = 0;
+        int high = count - 1;
+        try {
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int offset = mapped.getInt(HEADER_SIZE + 4 * middle);
+                final int cmp = comparePath(offset, key);
+                if (cmp < 0) {
+                    low = middle + 1;
+                } else if (cmp > 0) {
+                    high = middle - 1;
+                } else {
+                    return readEntry(offset);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // corrupted file; behave as a miss
+        }
+        return null;
+    }
+
+    /**
+     * Records the state of a file; entries are kept for the next run only after {@link #save()}.
+     *
+     * @param sourceMtime modification time of the file, in milliseconds
+     * @param targetMtime modification time of its copy, or {@link #UNKNOWN}
+     * @param blobId git blob id of the content, or null if not known
+     */
+    public void put(String path, long size, long sourceMtime, long targetMtime, String blobId) {
+        updates.put(path, new Entry(size, sourceMtime < racyAfter ? sourceMtime : UNKNOWN, targetMtime, blobId));
+    }
+
+    /**
+     * Records a file found unchanged, with the entry returned by {@link #lookup}.
+     */
+    public void retain(String path, Entry entry) {
+        updates.put(path, entry);
+    }
+
+    /**
+     * Announces that all files under given path are being recorded again; entries under it which are not put anew are dropped on save.
+     *
+     * @param prefix path of a directory, "" for all entries
+     * @param protectedRoots names of its top-level directories whose entries are kept anyway
+     */
+    public void expire(String prefix, Collection<String> protectedRoots) {
+        expired.put(prefix, new HashSet<String>(protectedRoots));
+    }
+
+    /**
+     * Writes all valid entries into a new file, replacing the old one.
+     */
+    public void save() throws IOException {
+        final List<Object[]> entries = new ArrayList<Object[]>();
+        try {
+            for (int i = 0; i < count; i++) {
+                final int offset = mapped.getInt(HEADER_SIZE + 4 * i);
+                final String path = readPath(offset);
+                if (!updates.containsKey(path) && !isExpired(path)) {
+                    entries.add(new Object[] {utf8(path), readEntry(offset)});
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // corrupted file; only the new entries survive
+            entries.clear();
+        }
+        for (Map.Entry<String, Entry> update : updates.entrySet()) {
+            final byte[] path = utf8(update.getKey());
+            if (path.length <= MAX_PATH_LENGTH) {
+                entries.add(new Object[] {path, update.getValue()});
+            }
+        }
+        Collections.sort(entries, new Comparator<Object[]>() {
+            public int compare(Object[] o1, Object[] o2) {
+                return compareBytes((byte[]) o1[0], (byte[]) o2[0]);
+            }
+        });
+
+        file.getParentFile().mkdirs();
+        final File tmp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            int offset = HEADER_SIZE + 4 * entries.size();
+            for (Object[] entry : entries) {
+                out.writeInt(offset);
+                offset += 2 + ((byte[]) entry[0]).length + 3 * 8 + BLOB_ID_SIZE;
+            }
+            for (Object[] entry : entries) {
+                final byte[] path = (byte[]) entry[0];
+                final Entry e = (Entry) entry[1];
+                out.writeShort(path.length);
+                out.write(path);
+                out.writeLong(e.size);
+                out.writeLong(e.sourceMtime);
+                out.writeLong(e.targetMtime);
+                out.write(e.blobId == null ? new byte[BLOB_ID_SIZE] : e.blobId);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean isExpired(String path) {
+        for (Map.Entry<String, Collection<String>> expiredPrefix : expired.entrySet()) {
+            final String prefix = expiredPrefix.getKey();
+            final String relative;
+            if (prefix.length() == 0) {
+                relative = path;
+            } else if (path.startsWith(prefix + "/")) {
+                relative = path.substring(prefix.length() + 1);
+            } else {
+                continue;
+            }
+            final int slash = relative.indexOf('/');
+            if (slash < 0 || !expiredPrefix.getValue().contains(relative.substring(0, slash))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int comparePath(int offset, byte[] key) {
+        final int length = mapped.getShort(offset) & 0xffff;
+        final int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            final int cmp = (mapped.get(offset + 2 + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private String readPath(int offset) {
+        final byte[] bytes = new byte[mapped.getShort(offset) & 0xffff];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mapped.get(offset + 2 + i);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Entry readEntry(int offset) {
+        final int position = offset + 2 + (mapped.getShort(offset) & 0xffff);
+        final byte[] blobId = new byte[BLOB_ID_SIZE];
+        boolean known = false;
+        for (int i = 0; i < BLOB_ID_SIZE; i++) {
+            blobId[i] = mapped.get(position + 24 + i);
+            known |= blobId[i] != 0;
+        }
+        return new Entry(mapped.getLong(position), mapped.getLong(position + 8), mapped.getLong(position + 16), known ? blobId : null);
+    }
+
+    static int compareBytes(byte[] a, byte[] b) {
+        final int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            final int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Recorded state of one file.
+     */
+    public static final class Entry {
+        private final long size;
+        private final long sourceMtime;
+        private final long targetMtime;
+        private final byte[] blobId;
+
+        private Entry(long size, long sourceMtime, long targetMtime, byte[] blobId) {
+            this.size = size;
+            this.sourceMtime = sourceMtime;
+            this.targetMtime = targetMtime;
+            this.blobId = blobId;
+        }
+
+        private Entry(long size, long sourceMtime, long targetMtime, String blobId) {
+            this(size, sourceMtime, targetMtime, blobId == null ? null : fromHex(blobId));
+        }
+
+        /**
+         * @return true if the file still has the recorded size and modification time
+         */
+        public boolean matches(long size, long sourceMtime) {
+            return this.size == size && this.sourceMtime == sourceMtime && sourceMtime != UNKNOWN;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getSourceMtime() {
+            return sourceMtime;
+        }
+
+        public long getTargetMtime() {
+            return targetMtime;
+        }
+
+        /**
+         * @return git blob id as 40 hex digits, or null if not known
+         */
+        public String getBlobId() {
+            return blobId == null ? null : GitBlobHash.toHex(blobId);
+        }
+
+        private static byte[] fromHex(String hex) {
+            final byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package net.kozelka.gitsite.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Appends lines to a log file from a background thread, through a single open, buffered channel.
+ * <p>
+ * Callers only enqueue the line, so that threads draining process output are never slowed down by file I/O.
+ * The file is opened on first line, and buffered content is written out whenever the queue runs empty.
+ * When the file grows over the maximum size, it is renamed to <code>NAME.1</code> (replacing the previous one) and a new file is started.
+ * </p>
+ * <p>
+ * A failure to write, like a full disk, is reported once to the build log; the following lines are dropped, so that the deployment goes on.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class AsyncFileLog implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int QUEUE_CAPACITY = 10000;
+
+    private final File file;
+    private final long maxSize;
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(QUEUE_CAPACITY);
+    private final Log log;
+    private final Thread writerThread;
+    private volatile boolean closed;
+    private volatile boolean failed;
+
+    /**
+     * @param maxSize size in bytes after which the file is rotated; 0 means no limit
+     * @param log where a failure to write the file is reported
+     */
+    public AsyncFileLog(File file, long maxSize, Log log) {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.log = log;
+        this.writerThread = new Thread(new Writing(), "gitsite-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Enqueues given line; waits while the queue is full, unless the file has failed or the background thread is gone, which drops the line.
+     */
+    public void log(String severity, String line) {
+        final String entry = String.format("%6s %s%n", severity, line);
+        try {
+            while (!closed && !failed && writerThread.isAlive()) {
+                if (queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until all lines logged so far are written to the file.
+     */
+    public void flush() {
+        await(new Marker(false));
+    }
+
+    /**
+     * Writes all pending lines, closes the file and stops the background thread. Further lines are ignored.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        await(new Marker(true));
+    }
+
+    private void await(Marker marker) {
+        if (!writerThread.isAlive()) {
+            return;
+        }
+        try {
+            queue.put(marker);
+            marker.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Marker {
+        private final boolean close;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Marker(boolean close) {
+            this.close = close;
+        }
+    }
+
+    private class Writing implements Runnable {
+        private OutputStream out;
+        /**
+         * Size of the file in bytes, including the buffered ones.
+         */
+        private long size;
+
+        public void run() {
+            while (true) {
+                final Object item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    closeFile();
+                    return;
+                }
+                if (item instanceof Marker) {
+                    final Marker marker = (Marker) item;
+                    if (marker.close) {
+                        closeFile();
+                    } else {
+                        flushFile();
+                    }
+                    marker.done.countDown();
+                    if (marker.close) {
+                        return;
+                    }
+                    continue;
+                }
+                write((String) item);
+                if (queue.isEmpty()) {
+                    flushFile();
+                }
+            }
+        }
+
+        private void write(String entry) {
+            if (failed) {
+                return;
+            }
+            try {
+                if (out != null && maxSize > 0 && size >= maxSize) {
+                    closeFile();
+                    Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                if (out == null) {
+                    openFile();
+                }
+                final byte[] bytes = entry.getBytes(UTF8);
+                out.write(bytes);
+                size += bytes.length;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void openFile() throws IOException {
+            final File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            size = channel.size();
+            out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+        }
+
+        private void flushFile() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void closeFile() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+            out = null;
+        }
+
+        private void fail(IOException e) {
+            // like a full disk, this must not break the deployment; report once and stop logging to file
+            if (failed) {
+                return;
+            }
+            failed = true;
+            log.warn(String.format("Cannot write to %s: %s - further lines are dropped", file, e));
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package net.kozelka.gitsite.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Collects timing and counters of a single deployment: wall time of consecutive phases, arbitrary counters,
+ * and the number, duration and exit codes of executed processes, per command.
+ * <p>
+ * Phases are sequential - starting a phase ends the previous one. The result is available as JSON report and as a short summary.
+ * </p>
+ *
+ * @author Petr Kozelka
+ */
+public class DeployMetrics implements ShellExecutor.ProcessListener {
+    private final long startNanos = System.nanoTime();
+    private final Map<String, String> attributes = new LinkedHashMap<String, String>();
+    private final List<String> phaseNames = new ArrayList<String>();
+    private final List<Long> phaseMillis = new ArrayList<Long>();
+    private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    private final Map<String, ProcessStats> processes = new TreeMap<String, ProcessStats>();
+    private String currentPhase;
+    private long currentPhaseStart;
+    private long totalMillis = -1;
+    private boolean success;
+
+    public synchronized void setAttribute(String name, String value) {
+        attributes.put(name, value);
+    }
+
+    /**
+     * Ends the current phase, if any, and starts a new one.
+     */
+    public synchronized void phase(String name) {
+        endPhase();
+        currentPhase = name;
+        currentPhaseStart = System.nanoTime();
+    }
+
+    public synchronized void count(String name, long delta) {
+        final Long value = counters.get(name);
+        counters.put(name, value == null ? delta : value + delta);
+    }
+
+    public synchronized void processFinished(String executable, String[] args, int exitCode, long millis) {
+        final String command = commandName(executable, args);
+        ProcessStats stats = processes.get(command);
+        if (stats == null) {
+            stats = new ProcessStats();
+            processes.put(command, stats);
+        }
+        stats.count++;
+        stats.millis += millis;
+        final Integer exitCodeCount = stats.exitCodes.get(exitCode);
+        stats.exitCodes.put(exitCode, exitCodeCount == null ? 1 : exitCodeCount + 1);
+    }
+
+    /**
+     * Ends the last phase and stops the clock.
+     */
+    public synchronized void finish(boolean success) {
+        endPhase();
+        this.success = success;
+        totalMillis = millisSince(startNanos);
+    }
+
+    private void endPhase() {
+        if (currentPhase != null) {
+            phaseNames.add(currentPhase);
+            phaseMillis.add(millisSince(currentPhaseStart));
+            currentPhase = null;
+        }
+    }
+
+    /**
+     * @return executable with its subcommand, like <code>git push</code>; options are skipped
+     */
+    static String commandName(String executable, String[] args) {
+        final String name = new File(executable).getName();
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("-c") || arg.equals("-C")) {
+                i++;
+            } else if (!arg.startsWith("-")) {
+                return name + " " + arg;
+            }
+        }
+        return name;
+    }
+
+    public synchronized List<String> getSummary() {
+        final List<String> lines = new ArrayList<String>();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Deployment %s in %s", success ? "succeeded" : "failed", seconds(totalMillis)));
+        for (int i = 0; i < phaseNames.size(); i++) {
+            sb.append(i == 0 ? ": " : ", ");
+            sb.append(String.format("%s %s", phaseNames.get(i), seconds(phaseMillis.get(i))));
+        }
+        lines.add(sb.toString());
+        if (!counters.isEmpty()) {
+            lines.add("Counters: " + counters);
+        }
+        for (Map.Entry<String, ProcessStats> entry : processes.entrySet()) {
+            final ProcessStats stats = entry.getValue();
+            lines.add(String.format("Processes: %dx %s in %s, exit codes %s", stats.count, entry.getKey(), seconds(stats.millis), stats.exitCodes));
+        }
+        return lines;
+    }
+
+    public synchronized String toJson() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"success\": ").append(success).append(",\n");
+        sb.append("  \"totalMillis\": ").append(totalMillis).append(",\n");
+        sb.append("  \"attributes\": {");
+        String separator = "\n";
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            sb.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(quote(entry.getValue()));
+            separator = ",\n";
+        }
+        sb.append(attributes.isEmpty() ? "" : "\n  ").append("},\n");
+        sb.append("  \"phases\": [");
+        separator = "\n";
+        for (int i = 0; i < phaseNames.size(); i++) {
+            sb.append(separator).append(String.format("    {\"name\": %s, \"millis\": %d}", quote(phaseNames.get(i)), phaseMillis.get(i)));
+            separator = ",\n";
+        }
+        sb.append(phaseNames.isEmpty() ? "" : "\n  ").append("],\n");
+        sb.append("  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            sb.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(entry.getValue());
+            separator = ",\n";
+        }
+        sb.append(counters.isEmpty() ? "" : "\n  ").append("},\n");
+        sb.append("  \"processes\": [");
+        separator = "\n";
+        for (Map.Entry<String, ProcessStats> entry : processes.entrySet()) {
+            final ProcessStats stats = entry.getValue();
+            sb.append(separator).append(String.format("    {\"command\": %s, \"count\": %d, \"millis\": %d, \"exitCodes\": {", quote(entry.getKey()), stats.count, stats.millis));
+            String codeSeparator = "";
+            for (Map.Entry<Integer, Integer> exitCode : stats.exitCodes.entrySet()) {
+                sb.append(codeSeparator).append(quote(exitCode.getKey().toString())).append(": ").append(exitCode.getValue());
+                codeSeparator = ", ";
+            }
+            sb.append("}}");
+            separator = ",\n";
+        }
+        sb.append(processes.isEmpty() ? "" : "\n  ").append("]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        FileUtils.fileWrite(file.getAbsolutePath(), "UTF-8", toJson());
+    }
+
+    private static long millisSince(long nanos) {
+        return (System.nanoTime() - nanos) / 1000000L;
+    }
+
+    private static String seconds(long millis) {
+        return String.format("%d.%03d s", millis / 1000, millis % 1000);
+    }
+
+    /**
+     * @return the string as a JSON string literal
+     */
+    public static String quote(String s) {
+        final StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static class ProcessStats {
+        private int count;
+        private long millis;
+        private final Map<Integer, Integer> exitCodes = new TreeMap<Integer, Integer>();
+    }
+}
@@ -1,8 +1,14 @@
 package net.kozelka.gitsite.utils;
 
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.codehaus.plexus.util.cli.CommandLineException;
@@ -16,6 +22,8 @@ public class ShellExecutor {
     private StreamConsumer info = new DefaultConsumer();
     private StreamConsumer stdout = new DefaultConsumer();
     private StreamConsumer stderr = new DefaultConsumer();
+    private ProcessListener processListener;
+    private int timeoutSeconds;
 
     public void setWorkingDirectory(File workingDirectory) {
         this.workingDirectory = workingDirectory;
@@ -33,6 +41,31 @@ public class ShellExecutor {
         this.stderr = stderr;
     }
 
+    public void setProcessListener(ProcessListener processListener) {
+        this.processListener = processListener;
+    }
+
+    /**
+     * @param timeoutSeconds how long a process may run before it is killed, and {@link org.codehaus.plexus.util.cli.CommandLineTimeOutException} thrown; 0 for no limit
+     */
+    public void setTimeout(int timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * @return new executor with the same settings, to be used in another thread
+     */
+    public ShellExecutor fork() {
+        final ShellExecutor fork = new ShellExecutor();
+        fork.workingDirectory = workingDirectory;
+        fork.info = info;
+        fork.stdout = stdout;
+        fork.stderr = stderr;
+        fork.processListener = processListener;
+        fork.timeoutSeconds = timeoutSeconds;
+        return fork;
+    }
+
     public void exec(String executable, String... args) throws CommandLineException {
         final Commandline cl = new Commandline();
         if (workingDirectory != null) {
@@ -42,12 +75,60 @@ public class ShellExecutor {
         cl.addArguments(args);
         final int clHash = cl.toString().hashCode();
         info.consumeLine(String.format("Executing: %s [#%x]", cl.toString(), clHash));
-        final int exitCode = CommandLineUtils.executeCommandLine(cl, stdout, stderr);
+        final long start = System.nanoTime();
+        final int exitCode = CommandLineUtils.executeCommandLine(cl, stdout, stderr, timeoutSeconds);
+        processFinished(start, exitCode, executable, args);
         if (exitCode != 0) {
             throw new CommandLineException(String.format("%s [#%x] returned with exit code '%d'", executable, clHash, exitCode));
         }
     }
 
+    /**
+     * Same as {@link #exec(String, String...)}, but feeds the process with given input.
+     * A failure to read the input ends the input and fails the call, even if the process succeeds.
+     */
+    public void execWithInput(InputStream input, String executable, String... args) throws CommandLineException {
+        final IOException[] inputFailure = new IOException[1];
+        // the stdin feeder of plexus swallows exceptions
+        final InputStream systemIn = new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch (IOException e) {
+                    inputFailure[0] = e;
+                    throw e;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return super.read(b, off, len);
+                } catch (IOException e) {
+                    inputFailure[0] = e;
+                    throw e;
+                }
+            }
+        };
+        final Commandline cl = new Commandline();
+        if (workingDirectory != null) {
+            cl.setWorkingDirectory(workingDirectory);
+        }
+        cl.setExecutable(executable);
+        cl.addArguments(args);
+        info.consumeLine(String.format("Executing: %s < (input)", cl));
+        final long start = System.nanoTime();
+        final int exitCode = CommandLineUtils.executeCommandLine(cl, systemIn, stdout, stderr, timeoutSeconds);
+        processFinished(start, exitCode, executable, args);
+        if (inputFailure[0] != null) {
+            throw new CommandLineException(String.format("%s input failed: %s", executable, inputFailure[0].getMessage()), inputFailure[0]);
+        }
+        if (exitCode != 0) {
+            throw new CommandLineException(String.format("%s returned with exit code '%d'", executable, exitCode));
+        }
+    }
+
     public Result execWithResult(String executable, String... args) throws CommandLineException {
         final Result result = new Result();
         execWithResult(result, executable, args);
@@ -60,48 +141,145 @@ public class ShellExecutor {
         cl.setExecutable(executable);
         cl.addArguments(args);
         info.consumeLine(String.format("Executing: %s", cl));
+        final long start = System.nanoTime();
         result.exitCode = CommandLineUtils.executeCommandLine(cl,
             new StreamConsumer() {
                 public void consumeLine(String line) {
                     stdout.consumeLine(line);
-                    result.stdoutLines.add(line);
+                    result.consumeStdout(line);
                 }
             },
             new StreamConsumer() {
                 public void consumeLine(String line) {
                     stderr.consumeLine(line);
-                    result.stderrLines.add(line);
+                    result.consumeStderr(line);
                 }
-            });
+            },
+            timeoutSeconds);
+        processFinished(start, result.exitCode, executable, args);
         info.consumeLine(String.format("%s exited with code %d", executable, result.exitCode));
     }
 
+    private void processFinished(long startNanos, int exitCode, String executable, String[] args) {
+        if (processListener != null) {
+            processListener.processFinished(executable, args, exitCode, (System.nanoTime() - startNanos) / 1000000L);
+        }
+    }
+
+    /**
+     * Gets notified about each finished process.
+     */
+    public interface ProcessListener {
+        void processFinished(String executable, String[] args, int exitCode, long millis);
+    }
+
+    /**
+     * Output of an executed command.
+     * <p>
+     * By default, all lines are kept. A result created with a line limit keeps only that many most recent lines of each stream,
+     * which is enough for diagnostics; patterns registered with {@link #watchStdout(Pattern)} or {@link #watchStderr(Pattern)}
+     * before execution are matched while the lines stream in, so that they are reliable regardless of the limit.
+     * </p>
+     */
     public static class Result {
         private int exitCode;
-        private final List<String> stdoutLines = new ArrayList<String>();
-        private final List<String> stderrLines = new ArrayList<String>();
+        private final Capture stdoutCapture;
+        private final Capture stderrCapture;
+
+        public Result() {
+            this(0);
+        }
+
+        /**
+         * @param maxLines how many most recent lines of each stream to keep; 0 means all
+         */
+        public Result(int maxLines) {
+            stdoutCapture = new Capture(maxLines);
+            stderrCapture = new Capture(maxLines);
+        }
+
+        /**
+         * Registers pattern to be matched against each stdout line as it arrives.
+         */
+        public Result watchStdout(Pattern message) {
+            stdoutCapture.watched.add(message);
+            return this;
+        }
+
+        /**
+         * Registers pattern to be matched against each stderr line as it arrives.
+         */
+        public Result watchStderr(Pattern message) {
+            stderrCapture.watched.add(message);
+            return this;
+        }
 
         public int getExitCode() {
             return exitCode;
         }
 
         public List<String> getStdoutLines() {
-            return stdoutLines;
+            return stdoutCapture.lines;
         }
 
         public List<String> getStderrLines() {
-            return stderrLines;
+            return stderrCapture.lines;
         }
 
+        /**
+         * @return true if any line matches; for unwatched patterns, only the kept lines are searched
+         */
         public boolean stdoutContains(Pattern message) {
-            return contains(stdoutLines, message);
+            return stdoutCapture.contains(message);
         }
 
+        /**
+         * @return true if any line matches; for unwatched patterns, only the kept lines are searched
+         */
         public boolean stderrContains(Pattern message) {
-            return contains(stderrLines, message);
+            return stderrCapture.contains(message);
+        }
+
+        void consumeStdout(String line) {
+            stdoutCapture.consume(line);
+        }
+
+        void consumeStderr(String line) {
+            stderrCapture.consume(line);
         }
+    }
 
-        private boolean contains(List<String> lines, Pattern message) {
+    private static class Capture {
+        private final int maxLines;
+        private final List<String> lines;
+        private final List<Pattern> watched = new ArrayList<Pattern>();
+        private final Set<Pattern> matched = new HashSet<Pattern>();
+
+        Capture(int maxLines) {
+            this.maxLines = maxLines;
+            // the linked list serves as ring buffer: removing its first element is cheap
+            this.lines = maxLines > 0 ? new LinkedList<String>() : new ArrayList<String>();
+        }
+
+        void consume(String line) {
+            if (matched.size() < watched.size()) {
+                final String lline = line.toLowerCase();
+                for (Pattern pattern : watched) {
+                    if (!matched.contains(pattern) && pattern.matcher(lline).matches()) {
+                        matched.add(pattern);
+                    }
+                }
+            }
+            lines.add(line);
+            if (maxLines > 0 && lines.size() > maxLines) {
+                lines.remove(0);
+            }
+        }
+
+        boolean contains(Pattern message) {
+            if (watched.contains(message)) {
+                return matched.contains(message);
+            }
             for (String line : lines) {
                 final String lline = line.toLowerCase();
                 final Matcher matcher = message.matcher(lline);
@@ -111,6 +289,5 @@ public class ShellExecutor {
             }
             return false;
         }
-
     }
 }
@@ -0,0 +1,22 @@
+package it;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Deploys into a local bare repository, once with each git backend.
+ */
+public class BareRemoteIT {
+    public static boolean prepare(File basedir, List<String> branchNames, Map<String,String> context) throws CommandLineException, IOException {
+        final File bareRepo = new File(basedir, "target/gitsiterepo.git");
+        IntegrationTestUtils.createBareGitRepo(bareRepo, branchNames);
+        return true;
+    }
+
+    public static boolean verify(File basedir, List<String> branchNames, Map<String,String> context) throws CommandLineException {
+        return IntegrationTestUtils.containsSite(new File(basedir, "target/gitsiterepo.git"), branchNames);
+    }
+}
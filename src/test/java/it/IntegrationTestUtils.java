@@ -2,14 +2,16 @@ package it;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import net.kozelka.gitsite.utils.ShellExecutor;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.cli.CommandLineException;
 
 class IntegrationTestUtils {
 
-    static void createGitRepo(File gitwc, String branchToPrefill) throws CommandLineException, IOException {
+    static void createGitRepo(File gitwc, List<String> branchesToPrefill) throws CommandLineException, IOException {
         final ShellExecutor shell = new ShellExecutor();
         shell.exec("git", "init", gitwc.getAbsolutePath());
         final File helloTxtFile = new File(gitwc, "Hello.txt");
@@ -17,13 +19,42 @@ class IntegrationTestUtils {
         shell.setWorkingDirectory(gitwc);
         shell.exec("git", "add", "-A");
         shell.exec("git", "commit", "-am", "initial commit");
-        shell.exec("git", "checkout", "-b", branchToPrefill);
-        for (int i=1; i<=5; i++) {
-            FileUtils.fileAppend(helloTxtFile.getAbsolutePath(),
-                String.format("%s commit %d into %s%n",
-                    new Date(), i, branchToPrefill));
-            shell.exec("git", "commit", "-am", "commit no." + i);
+        for (String branchToPrefill : branchesToPrefill) {
+            shell.exec("git", "checkout", "-b", branchToPrefill);
+            for (int i=1; i<=5; i++) {
+                FileUtils.fileAppend(helloTxtFile.getAbsolutePath(),
+                    String.format("%s commit %d into %s%n",
+                        new Date(), i, branchToPrefill));
+                shell.exec("git", "commit", "-am", "commit no." + i);
+            }
         }
         shell.exec("git", "config", "receive.denyCurrentBranch", "warn");
     }
+
+    static void createBareGitRepo(File bareRepo, List<String> branchesToPrefill) throws CommandLineException, IOException {
+        final File gitwc = new File(bareRepo.getParentFile(), bareRepo.getName() + ".wc");
+        createGitRepo(gitwc, branchesToPrefill);
+        new ShellExecutor().exec("git", "clone", "--bare", gitwc.getAbsolutePath(), bareRepo.getAbsolutePath());
+    }
+
+    static List<String> listBranchFiles(File gitDir, String branch) throws CommandLineException {
+        final ShellExecutor shell = new ShellExecutor();
+        shell.setWorkingDirectory(gitDir);
+        final ShellExecutor.Result result = shell.execWithResult("git", "ls-tree", "-r", "--name-only", branch);
+        return result.getExitCode() == 0 ? result.getStdoutLines() : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return true if each of given branches contains the deployed site
+     */
+    static boolean containsSite(File gitDir, List<String> branches) throws CommandLineException {
+        for (String branch : branches) {
+            final List<String> files = listBranchFiles(gitDir, branch);
+            System.out.println(branch + ": files = " + files);
+            if (!files.contains("index.html") || !files.contains(".gitsite.index.txt")) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -2,6 +2,7 @@ package it;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import org.codehaus.plexus.util.cli.CommandLineException;
 
@@ -9,13 +10,13 @@ import org.codehaus.plexus.util.cli.CommandLineException;
  * Created by Petr Kozelka.
  */
 public class SingleModuleIT {
-    public static boolean prepare(File basedir, File localRepositoryPath, String branchName, Map<String,String> context) throws CommandLineException, IOException {
+    public static boolean prepare(File basedir, File localRepositoryPath, List<String> branchNames, Map<String,String> context) throws CommandLineException, IOException {
         final File gitwc = new File(basedir, "target/gitsiterepo");
-        IntegrationTestUtils.createGitRepo(gitwc, branchName);
+        IntegrationTestUtils.createGitRepo(gitwc, branchNames);
         return true;
     }
 
-    public static boolean verify(File basedir, File localRepositoryPath, Map<String,String> context) {
-        return true;
+    public static boolean verify(File basedir, File localRepositoryPath, List<String> branchNames, Map<String,String> context) throws CommandLineException {
+        return IntegrationTestUtils.containsSite(new File(basedir, "target/gitsiterepo"), branchNames);
     }
 }
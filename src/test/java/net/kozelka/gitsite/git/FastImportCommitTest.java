@@ -0,0 +1,106 @@
+package net.kozelka.gitsite.git;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FastImportCommitTest {
+    @Test
+    public void streamsAnnouncedSize() throws Exception {
+        final File site = prepareSite("streamsAnnouncedSize");
+        final String stream = IOUtil.toString(openCommit(site).openStream(), "UTF-8");
+        Assert.assertTrue(stream, stream.contains("M 100644 inline index.html\ndata 5\nfirstM 100644 inline page.html\ndata 4\npage\ndone\n"));
+    }
+
+    @Test
+    public void executableFile() throws Exception {
+        final File site = prepareSite("executableFile");
+        final File script = new File(site, "run.sh");
+        FileUtils.fileWrite(script, "exit");
+        Assert.assertTrue(script.setExecutable(true, true));
+        final String stream = IOUtil.toString(openCommit(site).openStream(), "UTF-8");
+        Assert.assertTrue(stream, stream.contains("M 100644 inline page.html\ndata 4\npageM 100755 inline run.sh\ndata 4\nexit\ndone\n"));
+    }
+
+    @Test
+    public void symbolicLinks() throws Exception {
+        final File site = prepareSite("symbolicLinks");
+        new File(site, "sub").mkdirs();
+        FileUtils.fileWrite(new File(site, "sub/inner.html"), "inner");
+        Files.createSymbolicLink(new File(site, "latest.html").toPath(), Paths.get("page.html"));
+        Files.createSymbolicLink(new File(site, "current").toPath(), Paths.get("sub"));
+        final String stream = IOUtil.toString(openCommit(site).openStream(), "UTF-8");
+        Assert.assertTrue(stream, stream.contains("M 120000 inline current\ndata 3\nsub\n"));
+        Assert.assertTrue(stream, stream.contains("M 120000 inline latest.html\ndata 9\npage.html\n"));
+        Assert.assertTrue("the linked directory is not walked: " + stream, !stream.contains("current/"));
+    }
+
+    @Test
+    public void fileGrowingWhileStreamed() throws Exception {
+        final File site = prepareSite("fileGrowingWhileStreamed");
+        final InputStream stream = openCommit(site).openStream();
+        readUntil(stream, "data 5\n");
+        final FileOutputStream out = new FileOutputStream(new File(site, "index.html"), true);
+        try {
+            out.write("-grown".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertFailsToRead(stream);
+    }
+
+    @Test
+    public void fileShrinkingWhileStreamed() throws Exception {
+        final File site = prepareSite("fileShrinkingWhileStreamed");
+        final InputStream stream = openCommit(site).openStream();
+        readUntil(stream, "data 5\n");
+        final RandomAccessFile file = new RandomAccessFile(new File(site, "index.html"), "rw");
+        try {
+            file.setLength(2);
+        } finally {
+            file.close();
+        }
+        assertFailsToRead(stream);
+    }
+
+    private static File prepareSite(String name) throws Exception {
+        final File site = new File("target/test-work/FastImportCommitTest/" + name).getAbsoluteFile();
+        FileUtils.deleteDirectory(site);
+        site.mkdirs();
+        FileUtils.fileWrite(new File(site, "index.html"), "first");
+        FileUtils.fileWrite(new File(site, "page.html"), "page");
+        return site;
+    }
+
+    private static FastImportCommit openCommit(File site) {
+        final FastImportCommit commit = new FastImportCommit("refs/heads/test", "Tester <tester@example.com> 0 +0000", "test");
+        commit.addDirectory(site, "");
+        return commit;
+    }
+
+    private static void readUntil(InputStream stream, String end) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        while (!sb.toString().endsWith(end)) {
+            final int b = stream.read();
+            Assert.assertTrue("unexpected end of stream", b >= 0);
+            sb.append((char) b);
+        }
+    }
+
+    private static void assertFailsToRead(InputStream stream) {
+        try {
+            IOUtil.toString(stream, "UTF-8");
+            Assert.fail("a file changing its size must fail the stream");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("index.html changed its size"));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package net.kozelka.gitsite.git;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WorkCloneCacheTest {
+    @Test
+    public void buildsTakeTurns() throws Exception {
+        final File cacheDirectory = new File("target/test-work/WorkCloneCacheTest").getAbsoluteFile();
+        FileUtils.deleteDirectory(cacheDirectory);
+        final WorkCloneCache cache = new WorkCloneCache(cacheDirectory, null, new SystemStreamLog());
+        final File workDir = cache.getWorkDir("file:///remote.git", "gh-pages", null);
+
+        final Closeable first = cache.lock(workDir);
+        final AtomicReference<Closeable> second = new AtomicReference<Closeable>();
+        final Thread other = new Thread("other build") {
+            @Override
+            public void run() {
+                try {
+                    second.set(cache.lock(workDir));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        other.start();
+        other.join(1000);
+        Assert.assertTrue("the other build must wait", other.isAlive());
+        Assert.assertNull(second.get());
+
+        first.close();
+        other.join(10000);
+        Assert.assertNotNull(second.get());
+        second.get().close();
+        // other entries are not affected
+        cache.lock(cache.getWorkDir("file:///remote.git", "other", null)).close();
+    }
+}
@@ -0,0 +1,74 @@
+package net.kozelka.gitsite.git;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.kozelka.gitsite.utils.AsyncFileLog;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WorkClonePrefetchTest {
+    @Test
+    public void abandonWaitsForPreparationToStop() throws Exception {
+        final File testDir = new File("target/test-work/WorkClonePrefetchTest/stop").getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        final File workDir = new File(testDir, "site.work");
+        final WorkClonePrefetch prefetch = WorkClonePrefetch.start(new Callable<WorkClone>() {
+            public WorkClone call() throws Exception {
+                workDir.mkdirs();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    // like a dying git process, still writing a while after the interrupt
+                    Thread.sleep(200);
+                    FileUtils.fileWrite(new File(workDir, "late"), "late");
+                    throw e;
+                }
+                return new WorkClone(workDir, "gitsite", false, false);
+            }
+        }, new AsyncFileLog(new File(testDir, "deploy.log"), 0, new SystemStreamLog()), workDir, new SystemStreamLog());
+        while (!workDir.isDirectory()) {
+            Thread.sleep(10);
+        }
+
+        prefetch.abandon();
+        Assert.assertFalse(workDir.exists());
+    }
+
+    @Test
+    public void abandonReleasesCloneCompletedAfterCancel() throws Exception {
+        final File testDir = new File("target/test-work/WorkClonePrefetchTest/release").getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        final AtomicBoolean started = new AtomicBoolean();
+        final AtomicBoolean released = new AtomicBoolean();
+        final WorkClonePrefetch prefetch = WorkClonePrefetch.start(new Callable<WorkClone>() {
+            public WorkClone call() throws Exception {
+                started.set(true);
+                final long end = System.currentTimeMillis() + 300;
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        // like a library that does not react to interrupts
+                    }
+                }
+                final WorkClone workClone = new WorkClone(testDir, "gitsite", false, false);
+                workClone.setLock(new Closeable() {
+                    public void close() {
+                        released.set(true);
+                    }
+                });
+                return workClone;
+            }
+        }, new AsyncFileLog(new File(testDir, "deploy.log"), 0, new SystemStreamLog()), null, new SystemStreamLog());
+        while (!started.get()) {
+            Thread.sleep(10);
+        }
+
+        prefetch.abandon();
+        Assert.assertTrue("the lock of the cached clone must be released", released.get());
+    }
+}
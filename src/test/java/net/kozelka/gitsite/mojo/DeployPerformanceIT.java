@@ -0,0 +1,286 @@
+package net.kozelka.gitsite.mojo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.eclipse.aether.DefaultSessionData;
+import org.eclipse.aether.SessionData;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * End-to-end deployment scenarios against a local bare repository, measuring wall time, peak RSS and size of the work clone.
+ * <p>
+ * Each measured deployment runs in a separate JVM, so that its peak RSS is not affected by preparing the scenario.
+ * Results are written to <code>target/perf/results.properties</code>; when <code>perf.baseline</code> points to results of a previous run,
+ * any metric exceeding its baseline by more than <code>perf.threshold</code> (a fraction, default 0.25) fails the scenario.
+ * Run with <code>mvn -Pperf test</code>; see the profile for other settings.
+ * </p>
+ */
+public class DeployPerformanceIT {
+    private static final int SITE_FILES = Integer.getInteger("perf.siteFiles", 2000);
+    private static final int SUBCONTEXTS = 200;
+    private static final int DELTA_DEPLOYS = 5;
+    private static final int DELTA_FILES = 10;
+    private static final String COMMIT_MODE = System.getProperty("perf.commitMode", "worktree");
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("perf.threshold", "0.25"));
+    private static final Properties RESULTS = new Properties();
+
+    @Test
+    public void firstDeployWithoutHistory() throws Exception {
+        final File testDir = GitSiteDeployMojoTest.prepareTestDir("perf-first");
+        final File remote = GitSiteDeployMojoTest.createBareRepo(new File(testDir, "remote.git"));
+        writeSite(new File(testDir, "staging"), SITE_FILES, 0);
+
+        measure("firstDeploy", testDir);
+        Assert.assertEquals("1", GitSiteDeployMojoTest.git(remote, "rev-list", "--count", "gitsite"));
+    }
+
+    @Test
+    public void smallDeltas() throws Exception {
+        final File testDir = GitSiteDeployMojoTest.prepareTestDir("perf-deltas");
+        final File remote = GitSiteDeployMojoTest.createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        writeSite(staging, SITE_FILES, 0);
+        createMojo(testDir).gitSiteDeploy();
+
+        measure("smallDeltas", testDir);
+        Assert.assertEquals(String.valueOf(1 + DELTA_DEPLOYS), GitSiteDeployMojoTest.git(remote, "rev-list", "--count", "gitsite"));
+    }
+
+    @Test
+    public void oneOfManySubcontexts() throws Exception {
+        final File testDir = GitSiteDeployMojoTest.prepareTestDir("perf-subcontexts");
+        final File remote = GitSiteDeployMojoTest.createBareRepo(new File(testDir, "remote.git"));
+        // the existing subcontexts are committed directly, not deployed one by one
+        final File wc = new File(testDir, "remote.wc");
+        final StringBuilder index = new StringBuilder();
+        for (int i = 0; i < SUBCONTEXTS; i++) {
+            writeSite(new File(wc, "VERSION/1." + i), SITE_FILES / SUBCONTEXTS + 1, i);
+            index.append("/VERSION/1.").append(i).append("\n");
+        }
+        FileUtils.fileWrite(new File(wc, ".gitsite.index.txt").getAbsolutePath(), "UTF-8", index.toString());
+        GitSiteDeployMojoTest.git(wc, "init");
+        GitSiteDeployMojoTest.git(wc, "checkout", "-b", "gitsite");
+        GitSiteDeployMojoTest.git(wc, "add", "-A", ".");
+        GitSiteDeployMojoTest.git(wc, "commit", "-m", "existing subcontexts");
+        GitSiteDeployMojoTest.git(wc, "push", remote.getAbsolutePath(), "gitsite");
+        writeSite(new File(testDir, "staging"), SITE_FILES, SUBCONTEXTS);
+
+        measure("oneOfManySubcontexts", testDir);
+        Assert.assertEquals(SUBCONTEXTS, GitSiteDeployMojoTest.git(remote, "show", "gitsite:.gitsite.index.txt").split("\n").length);
+    }
+
+    @Test
+    public void multiModuleReactor() throws Exception {
+        final File testDir = GitSiteDeployMojoTest.prepareTestDir("perf-reactor");
+        final File remote = GitSiteDeployMojoTest.createBareRepo(new File(testDir, "remote.git"));
+        writeSite(new File(testDir, "staging"), SITE_FILES, 0);
+
+        measure("multiModuleReactor", testDir);
+        Assert.assertEquals("1", GitSiteDeployMojoTest.git(remote, "rev-list", "--count", "gitsite"));
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        final File resultsFile = new File("target/perf/results.properties");
+        resultsFile.getParentFile().mkdirs();
+        final OutputStream os = new FileOutputStream(resultsFile);
+        try {
+            RESULTS.store(os, String.format("siteFiles=%d commitMode=%s", SITE_FILES, COMMIT_MODE));
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Runs the scenario in a new JVM, records its metrics and checks them against the baseline.
+     */
+    private static void measure(String scenario, File testDir) throws Exception {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dperf.commitMode=" + COMMIT_MODE);
+        command.add("-Dperf.siteFiles=" + SITE_FILES);
+        command.add(Scenario.class.getName());
+        command.add(scenario);
+        command.add(testDir.getAbsolutePath());
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        final File outputFile = new File(testDir, "scenario.log");
+        final Properties measured = new Properties();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        final OutputStream output = new FileOutputStream(outputFile);
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                output.write((line + "\n").getBytes("UTF-8"));
+                if (line.startsWith(Scenario.RESULT_PREFIX)) {
+                    for (String pair : line.substring(Scenario.RESULT_PREFIX.length()).trim().split(" ")) {
+                        final String[] keyValue = pair.split("=");
+                        measured.setProperty(keyValue[0], keyValue[1]);
+                    }
+                }
+            }
+        } finally {
+            output.close();
+            reader.close();
+        }
+        Assert.assertEquals("scenario failed, see " + outputFile, 0, process.waitFor());
+        measured.setProperty("workSizeKb", String.valueOf((directorySize(new File(testDir, "staging.work")) + directorySize(new File(testDir, "staging.git"))) / 1024));
+        System.out.printf("%s: %s%n", scenario, measured);
+
+        final Properties baseline = loadBaseline();
+        final List<String> regressions = new ArrayList<String>();
+        for (String metric : measured.stringPropertyNames()) {
+            final long value = Long.parseLong(measured.getProperty(metric));
+            RESULTS.setProperty(scenario + "." + metric, String.valueOf(value));
+            final String baselineValue = baseline.getProperty(scenario + "." + metric);
+            if (baselineValue == null || value < 0) {
+                continue;
+            }
+            final long limit = (long) (Long.parseLong(baselineValue) * (1 + THRESHOLD));
+            if (value > limit) {
+                regressions.add(String.format("%s=%d exceeds baseline %s by more than %.0f%%", metric, value, baselineValue, THRESHOLD * 100));
+            }
+        }
+        Assert.assertTrue(scenario + ": " + regressions, regressions.isEmpty());
+    }
+
+    private static Properties loadBaseline() throws IOException {
+        final Properties baseline = new Properties();
+        final String baselinePath = System.getProperty("perf.baseline");
+        if (baselinePath != null && new File(baselinePath).isFile()) {
+            final InputStream is = new FileInputStream(baselinePath);
+            try {
+                baseline.load(is);
+            } finally {
+                is.close();
+            }
+        }
+        return baseline;
+    }
+
+    private static long directorySize(File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+        long size = 0;
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += directorySize(child);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes a site of html pages of 0.5 to 8 kB, 50 per directory; different variants differ in content of all files.
+     */
+    static void writeSite(File dir, int files, int variant) throws IOException {
+        for (int i = 0; i < files; i++) {
+            final File file = new File(dir, String.format("d%d/page%d.html", i / 50, i));
+            file.getParentFile().mkdirs();
+            final StringBuilder sb = new StringBuilder();
+            final int size = 512 + (i * 7919) % 7680;
+            while (sb.length() < size) {
+                sb.append(String.format("<p>variant %d, page %d</p>\n", variant, i));
+            }
+            FileUtils.fileWrite(file.getAbsolutePath(), "UTF-8", sb.toString());
+        }
+    }
+
+    static GitSiteDeployMojo createMojo(File testDir) {
+        final GitSiteDeployMojo mojo = GitSiteDeployMojoTest.createMojo(new File(testDir, "staging"), new File(testDir, "remote.git"));
+        mojo.commitMode = COMMIT_MODE;
+        return mojo;
+    }
+
+    /**
+     * The measured part of each scenario, executed in a separate JVM; prints metrics as a line starting with {@link #RESULT_PREFIX}.
+     */
+    public static class Scenario {
+        static final String RESULT_PREFIX = "PERF-RESULT";
+
+        public static void main(String[] args) throws Exception {
+            final String scenario = args[0];
+            final File testDir = new File(args[1]);
+            final long start = System.nanoTime();
+            if ("firstDeploy".equals(scenario)) {
+                final GitSiteDeployMojo mojo = createMojo(testDir);
+                mojo.keepHistory = false;
+                mojo.gitSiteDeploy();
+            } else if ("smallDeltas".equals(scenario)) {
+                final GitSiteDeployMojo mojo = createMojo(testDir);
+                for (int deploy = 1; deploy <= DELTA_DEPLOYS; deploy++) {
+                    // like 'mvn clean site-deploy'; without cacheDirectory, the work clone does not survive between builds
+                    FileUtils.deleteDirectory(new File(mojo.inputDirectory.getAbsolutePath() + ".work"));
+                    for (int i = 0; i < DELTA_FILES; i++) {
+                        final File page = new File(mojo.inputDirectory, String.format("delta/page%d.html", i));
+                        page.getParentFile().mkdirs();
+                        FileUtils.fileWrite(page.getAbsolutePath(), "UTF-8", String.format("<p>delta %d</p>%n", deploy));
+                    }
+                    mojo.gitSiteDeploy();
+                }
+            } else if ("oneOfManySubcontexts".equals(scenario)) {
+                final GitSiteDeployMojo mojo = createMojo(testDir);
+                mojo.subcontext = "/VERSION/1." + (SUBCONTEXTS / 2);
+                mojo.gitSiteDeploy();
+            } else if ("multiModuleReactor".equals(scenario)) {
+                deployReactor(testDir);
+            } else {
+                throw new IllegalArgumentException("Unknown scenario: " + scenario);
+            }
+            final long wallMillis = (System.nanoTime() - start) / 1000000L;
+            System.out.printf("%s wallMillis=%d peakRssKb=%d%n", RESULT_PREFIX, wallMillis, peakRssKb());
+        }
+
+        private static void deployReactor(File testDir) throws Exception {
+            final List<MavenProject> reactorProjects = new ArrayList<MavenProject>();
+            final MavenProject root = GitSiteDeployMojoTest.createProject("root");
+            root.setExecutionRoot(true);
+            reactorProjects.add(root);
+            for (int i = 0; i < 9; i++) {
+                reactorProjects.add(GitSiteDeployMojoTest.createProject("module-" + i));
+            }
+            final SessionData sessionData = new DefaultSessionData();
+            for (MavenProject project : reactorProjects) {
+                final GitSiteDeployMojo mojo = createMojo(testDir);
+                mojo.project = project;
+                mojo.reactorProjects = reactorProjects;
+                mojo.mojoExecution = new MojoExecution((Plugin) project.getBuildPlugins().get(0), "deploy", "gitsite-deploy");
+                mojo.execute(testDir.getPath(), sessionData);
+            }
+        }
+
+        /**
+         * @return peak resident set size of this JVM, or -1 where it is not available (outside of Linux)
+         */
+        private static long peakRssKb() throws IOException {
+            final File status = new File("/proc/self/status");
+            if (!status.isFile()) {
+                return -1;
+            }
+            for (String line : Arrays.asList(FileUtils.fileRead(status).split("\n"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -1,8 +1,22 @@
 package net.kozelka.gitsite.mojo;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
 import java.util.List;
+import net.kozelka.gitsite.sync.StatCache;
+import net.kozelka.gitsite.utils.ShellExecutor;
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.util.FileUtils;
+import org.eclipse.aether.DefaultSessionData;
+import org.eclipse.aether.SessionData;
+import org.junit.Assert;
 import org.junit.Test;
 
 /**
@@ -18,4 +32,659 @@ public class GitSiteDeployMojoTest {
             System.out.println("file = " + file);
         }
     }
+
+    @Test
+    public void cachedWorkClone() throws Exception {
+        final File testDir = prepareTestDir("cachedWorkClone");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        FileUtils.fileWrite(new File(staging, "index.html"), "first");
+
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.cacheDirectory = new File(testDir, "cache");
+        mojo.gitSiteDeploy();
+        Assert.assertEquals("first", git(remote, "show", "gitsite:index.html"));
+
+        FileUtils.fileWrite(new File(staging, "index.html"), "second");
+        mojo.gitSiteDeploy();
+        Assert.assertEquals("second", git(remote, "show", "gitsite:index.html"));
+        Assert.assertEquals("2", git(remote, "rev-list", "--count", "gitsite"));
+        // one clone, with its lock file
+        Assert.assertEquals(2, mojo.cacheDirectory.list().length);
+        final String metrics = FileUtils.fileRead(mojo.metricsFile);
+        Assert.assertTrue(metrics, metrics.contains("\"success\": true"));
+        Assert.assertTrue(metrics, metrics.contains("{\"name\": \"push\""));
+        Assert.assertTrue(metrics, metrics.contains("{\"command\": \"git push\", \"count\": 1"));
+    }
+
+    @Test
+    public void sparseCheckout() throws Exception {
+        final File testDir = prepareTestDir("sparseCheckout");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        FileUtils.fileWrite(new File(staging, "index.html"), "1.0");
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.subcontext = "/VERSION/1.0";
+        mojo.gitSiteDeploy();
+
+        FileUtils.fileWrite(new File(staging, "index.html"), "2.0");
+        final GitSiteDeployMojo sparseMojo = createMojo(staging, remote);
+        sparseMojo.subcontext = "/VERSION/2.0";
+        sparseMojo.sparseCheckout = true;
+        sparseMojo.cacheDirectory = new File(testDir, "cache");
+        sparseMojo.gitSiteDeploy();
+
+        Assert.assertEquals("1.0", git(remote, "show", "gitsite:VERSION/1.0/index.html"));
+        Assert.assertEquals("2.0", git(remote, "show", "gitsite:VERSION/2.0/index.html"));
+        Assert.assertEquals("/VERSION/1.0\n/VERSION/2.0", git(remote, "show", "gitsite:.gitsite.index.txt"));
+        final File workDir = sparseMojo.cacheDirectory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        })[0];
+        Assert.assertFalse(new File(workDir, "VERSION/1.0").exists());
+    }
+
+    @Test
+    public void fastImport() throws Exception {
+        final File testDir = prepareTestDir("fastImport");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        git(remote, "config", "uploadpack.allowFilter", "true");
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        FileUtils.fileWrite(new File(staging, "index.html"), "1.0");
+        FileUtils.fileWrite(new File(staging, "old.html"), "old");
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.commitMode = "fast-import";
+        mojo.subcontext = "/VERSION/1.0";
+        mojo.gitSiteDeploy();
+        mojo.subcontext = "";
+        mojo.gitSiteDeploy();
+
+        FileUtils.fileDelete(new File(staging, "old.html").getAbsolutePath());
+        new File(staging, "sub").mkdirs();
+        FileUtils.fileWrite(new File(staging, "sub/page.html"), "root");
+        mojo.gitSiteDeploy();
+        mojo.gitSiteDeploy();
+
+        Assert.assertEquals("3", git(remote, "rev-list", "--count", "gitsite"));
+        Assert.assertEquals(".gitattributes\n.gitsite.index.txt\nVERSION/1.0/index.html\nVERSION/1.0/old.html\nindex.html\nsub/page.html",
+            git(remote, "ls-tree", "-r", "--name-only", "gitsite"));
+        Assert.assertEquals("/VERSION/1.0", git(remote, "show", "gitsite:.gitsite.index.txt"));
+        Assert.assertFalse(new File(testDir, "staging.work").exists());
+    }
+
+    @Test
+    public void redeployedSubcontextListedOnce() throws Exception {
+        final File testDir = prepareTestDir("redeployedSubcontextListedOnce");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.subcontext = "/VERSION/1.0";
+        mojo.cacheDirectory = new File(testDir, "cache");
+        for (String commitMode : Arrays.asList("worktree", "worktree", "fast-import")) {
+            mojo.commitMode = commitMode;
+            FileUtils.fileWrite(new File(staging, "index.html"), "deployed with " + commitMode + " at " + System.nanoTime());
+            mojo.gitSiteDeploy();
+            Assert.assertEquals(commitMode, "/VERSION/1.0", git(remote, "show", "gitsite:.gitsite.index.txt"));
+        }
+        Assert.assertEquals("3", git(remote, "rev-list", "--count", "gitsite"));
+    }
+
+    @Test
+    public void rootSubcontextKeepsIndex() throws Exception {
+        final File testDir = prepareTestDir("rootSubcontextKeepsIndex");
+        for (String commitMode : Arrays.asList("worktree", "fast-import")) {
+            final File remote = createBareRepo(new File(testDir, commitMode + ".git"));
+            final File staging = new File(testDir, commitMode);
+            staging.mkdirs();
+            FileUtils.fileWrite(new File(staging, "index.html"), "site");
+            final GitSiteDeployMojo mojo = createMojo(staging, remote);
+            mojo.commitMode = commitMode;
+            mojo.cacheDirectory = new File(testDir, "cache");
+            mojo.subcontext = "/VERSION/1.0";
+            mojo.gitSiteDeploy();
+            mojo.subcontext = "";
+            mojo.gitSiteDeploy();
+            FileUtils.fileWrite(new File(staging, "index.html"), "root site changed");
+            mojo.gitSiteDeploy();
+
+            Assert.assertEquals(commitMode, "/VERSION/1.0", git(remote, "show", "gitsite:.gitsite.index.txt"));
+            Assert.assertEquals(commitMode, "* text=auto", git(remote, "show", "gitsite:.gitattributes"));
+            Assert.assertEquals(commitMode, ".gitattributes\n.gitsite.index.txt\nVERSION/1.0/index.html\nindex.html",
+                git(remote, "ls-tree", "-r", "--name-only", "gitsite"));
+        }
+    }
+
+    @Test
+    public void batchDeployment() throws Exception {
+        final File testDir = prepareTestDir("batchDeployment");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File root = new File(testDir, "root");
+        final File v1 = new File(testDir, "v1");
+        final File v2 = new File(testDir, "v2");
+        for (File staging : Arrays.asList(root, v1, v2)) {
+            staging.mkdirs();
+            FileUtils.fileWrite(new File(staging, "index.html"), staging.getName());
+        }
+        final GitSiteDeployMojo mojo = createMojo(root, remote);
+        mojo.deployments = Arrays.asList(new Deployment(root, ""), new Deployment(v1, "/VERSION/1.0"), new Deployment(v2, "/VERSION/2.0"));
+        mojo.gitSiteDeploy();
+
+        Assert.assertEquals("1", git(remote, "rev-list", "--count", "gitsite"));
+        Assert.assertEquals("root", git(remote, "show", "gitsite:index.html"));
+        Assert.assertEquals("v1", git(remote, "show", "gitsite:VERSION/1.0/index.html"));
+        Assert.assertEquals("v2", git(remote, "show", "gitsite:VERSION/2.0/index.html"));
+        Assert.assertEquals("/VERSION/1.0\n/VERSION/2.0", git(remote, "show", "gitsite:.gitsite.index.txt"));
+        final String metrics = FileUtils.fileRead(mojo.metricsFile);
+        Assert.assertTrue(metrics, metrics.contains("{\"command\": \"git push\", \"count\": 1"));
+
+        FileUtils.fileWrite(new File(v1, "index.html"), "v1 fixed");
+        FileUtils.fileWrite(new File(v2, "index.html"), "v2 fixed");
+        mojo.commitMode = "fast-import";
+        mojo.deployments = Arrays.asList(new Deployment(v1, "/VERSION/1.0"), new Deployment(v2, "/VERSION/2.0"));
+        mojo.gitSiteDeploy();
+
+        Assert.assertEquals("2", git(remote, "rev-list", "--count", "gitsite"));
+        Assert.assertEquals("root", git(remote, "show", "gitsite:index.html"));
+        Assert.assertEquals("v1 fixed", git(remote, "show", "gitsite:VERSION/1.0/index.html"));
+        Assert.assertEquals("v2 fixed", git(remote, "show", "gitsite:VERSION/2.0/index.html"));
+        Assert.assertEquals("/VERSION/1.0\n/VERSION/2.0", git(remote, "show", "gitsite:.gitsite.index.txt"));
+
+        mojo.deployments = Arrays.asList(new Deployment(v1, "/docs"), new Deployment(v2, "/docs/2.0"));
+        try {
+            mojo.gitSiteDeploy();
+            Assert.fail("nested subcontexts must be rejected");
+        } catch (MojoExecutionException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("nested"));
+        }
+    }
+
+    @Test
+    public void concurrentPublisher() throws Exception {
+        final File testDir = prepareTestDir("concurrentPublisher");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        FileUtils.fileWrite(new File(staging, "index.html"), "1.0");
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.subcontext = "/VERSION/1.0";
+        mojo.cacheDirectory = new File(testDir, "cache");
+        mojo.pushAttempts = 3;
+        mojo.pushRetryDelay = 10;
+        mojo.gitSiteDeploy();
+
+        // another publisher's commit lands on the branch right before each of our pushes is received
+        final File other = new File(testDir, "other");
+        new ShellExecutor().exec("git", "clone", "--branch", "gitsite", remote.getAbsolutePath(), other.getAbsolutePath());
+        for (String version : Arrays.asList("2.0", "3.0")) {
+            new File(other, "VERSION/" + version).mkdirs();
+            FileUtils.fileWrite(new File(other, "VERSION/" + version + "/index.html"), version);
+            FileUtils.fileWrite(new File(other, ".gitsite.index.txt"), FileUtils.fileRead(new File(other, ".gitsite.index.txt")) + "/VERSION/" + version + "\n");
+            git(other, "add", "-A", ".");
+            git(other, "commit", "-m", "other publisher " + version);
+            git(other, "push", "origin", "HEAD:refs/heads/other-" + version);
+        }
+        final File hook = new File(remote, "hooks/pre-receive");
+        FileUtils.fileWrite(hook, "#!/bin/sh\n"
+            + "cat >/dev/null\n"
+            + "if [ -f ../concurrent-push ]; then\n"
+            + "  env -u GIT_QUARANTINE_PATH git update-ref refs/heads/gitsite $(cat ../concurrent-push)\n"
+            + "  rm ../concurrent-push\n"
+            + "fi\n");
+        hook.setExecutable(true);
+
+        final File concurrentPush = new File(testDir, "concurrent-push");
+        FileUtils.fileWrite(concurrentPush, "refs/heads/other-2.0");
+        FileUtils.fileWrite(new File(staging, "index.html"), "4.0");
+        mojo.subcontext = "/VERSION/4.0";
+        mojo.gitSiteDeploy();
+        Assert.assertEquals("1.0", git(remote, "show", "gitsite:VERSION/1.0/index.html"));
+        Assert.assertEquals("2.0", git(remote, "show", "gitsite:VERSION/2.0/index.html"));
+        Assert.assertEquals("4.0", git(remote, "show", "gitsite:VERSION/4.0/index.html"));
+        Assert.assertEquals("/VERSION/1.0\n/VERSION/2.0\n/VERSION/4.0", git(remote, "show", "gitsite:.gitsite.index.txt"));
+        Assert.assertTrue(FileUtils.fileRead(mojo.metricsFile).contains("\"pushRetries\": 1"));
+
+        FileUtils.fileWrite(concurrentPush, "refs/heads/other-3.0");
+        FileUtils.fileWrite(new File(staging, "index.html"), "5.0");
+        mojo.commitMode = "fast-import";
+        mojo.subcontext = "/VERSION/5.0";
+        mojo.gitSiteDeploy();
+        Assert.assertEquals("3.0", git(remote, "show", "gitsite:VERSION/3.0/index.html"));
+        Assert.assertEquals("5.0", git(remote, "show", "gitsite:VERSION/5.0/index.html"));
+        Assert.assertEquals("/VERSION/1.0\n/VERSION/2.0\n/VERSION/3.0\n/VERSION/5.0", git(remote, "show", "gitsite:.gitsite.index.txt"));
+        Assert.assertTrue(FileUtils.fileRead(mojo.metricsFile).contains("\"pushRetries\": 1"));
+
+        mojo.pushAttempts = 1;
+        FileUtils.fileWrite(new File(staging, "index.html"), "5.1");
+        FileUtils.fileWrite(concurrentPush, "refs/heads/other-2.0");
+        try {
+            mojo.gitSiteDeploy();
+            Assert.fail("push rejected with no attempts left must fail");
+        } catch (MojoExecutionException e) {
+            Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("rejected 1 times"));
+        }
+    }
+
+    @Test
+    public void historyRetention() throws Exception {
+        final File testDir = prepareTestDir("historyRetention");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.cacheDirectory = new File(testDir, "cache");
+        mojo.historyCommits = 2;
+        final String[] expectedCounts = {"1", "2", "3", "2", "3", "2"};
+        for (int i = 0; i < expectedCounts.length; i++) {
+            if (i == 4) {
+                mojo.commitMode = "fast-import";
+            }
+            FileUtils.fileWrite(new File(staging, "index.html"), "deployment " + i);
+            mojo.commitMessage = "Deployment " + i + " with %d files";
+            mojo.gitSiteDeploy();
+            Assert.assertEquals("deployment " + i, expectedCounts[i], git(remote, "rev-list", "--count", "gitsite"));
+        }
+        Assert.assertEquals("deployment 5", git(remote, "show", "gitsite:index.html"));
+        Assert.assertEquals("deployment 4", git(remote, "show", "gitsite~1:index.html"));
+        Assert.assertEquals("Deployment 5 with 1 files", git(remote, "log", "-1", "--format=%s", "gitsite"));
+        Assert.assertTrue(git(remote, "log", "-1", "--format=%B", "gitsite~1").contains("Collapsed 2 older commits of the site history."));
+        Assert.assertTrue(FileUtils.fileRead(mojo.metricsFile).contains("\"commitsCollapsed\": 2"));
+    }
+
+    @Test
+    public void chunkedPush() throws Exception {
+        final File testDir = prepareTestDir("chunkedPush");
+        final File staging = new File(testDir, "staging");
+        new File(staging, "apidocs").mkdirs();
+        for (int i = 0; i < 10; i++) {
+            FileUtils.fileWrite(new File(staging, "apidocs/page" + i + ".html"), "page " + i);
+        }
+
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.pushChunkFiles = 3;
+        mojo.squashChunks = true;
+        mojo.gitSiteDeploy();
+        Assert.assertEquals("1", git(remote, "rev-list", "--count", "gitsite"));
+        Assert.assertEquals("12", git(remote, "ls-tree", "-r", "--name-only", "gitsite").split("\n").length + "");
+        Assert.assertTrue(FileUtils.fileRead(mojo.metricsFile).contains("\"pushChunks\": 4"));
+
+        final File unsquashedRemote = createBareRepo(new File(testDir, "unsquashed.git"));
+        final GitSiteDeployMojo unsquashed = createMojo(staging, unsquashedRemote);
+        unsquashed.commitMode = "fast-import";
+        unsquashed.pushChunkBytes = 14;
+        unsquashed.squashChunks = false;
+        unsquashed.gitSiteDeploy();
+        Assert.assertEquals(git(remote, "rev-parse", "gitsite^{tree}"), git(unsquashedRemote, "rev-parse", "gitsite^{tree}"));
+        Assert.assertEquals("Publishing test site with 10 files (part 1 of 6)", git(unsquashedRemote, "log", "--format=%s", "gitsite~5"));
+    }
+
+    @Test
+    public void statCacheWithFastImport() throws Exception {
+        final File testDir = prepareTestDir("statCacheWithFastImport");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        final long past = System.currentTimeMillis() - 60000;
+        for (int i = 0; i < 5; i++) {
+            final File page = new File(staging, "page" + i + ".html");
+            FileUtils.fileWrite(page.getAbsolutePath(), "page " + i);
+            page.setLastModified(past);
+        }
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.commitMode = "fast-import";
+        mojo.gitSiteDeploy();
+
+        FileUtils.fileWrite(new File(staging, "page0.html").getAbsolutePath(), "page 0 changed");
+        mojo.gitSiteDeploy();
+        Assert.assertTrue(FileUtils.fileRead(mojo.metricsFile).contains("\"statCacheHits\": 4"));
+        Assert.assertEquals("page 0 changed", git(remote, "show", "gitsite:page0.html"));
+        Assert.assertEquals("page 4", git(remote, "show", "gitsite:page4.html"));
+
+        // a cached blob id which is not in the repository falls back to reading all files
+        final File cacheFile = new File(testDir, "staging.git/gitsite-stat-cache");
+        final StatCache cache = StatCache.open(cacheFile);
+        cache.put("page4.html", 6, past, StatCache.UNKNOWN, "0123456789012345678901234567890123456789");
+        cache.save();
+        FileUtils.fileWrite(new File(staging, "page1.html").getAbsolutePath(), "page 1 changed");
+        mojo.gitSiteDeploy();
+        Assert.assertEquals("page 4", git(remote, "show", "gitsite:page4.html"));
+        Assert.assertEquals("page 1 changed", git(remote, "show", "gitsite:page1.html"));
+        Assert.assertEquals("3", git(remote, "rev-list", "--count", "gitsite"));
+        Assert.assertFalse(cacheFile.exists());
+    }
+
+    @Test
+    public void jgitBackend() throws Exception {
+        final File testDir = prepareTestDir("jgitBackend");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        FileUtils.fileWrite(new File(staging, "index.html"), "first");
+
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.gitBackend = "jgit";
+        mojo.cacheDirectory = new File(testDir, "cache");
+        mojo.gitSiteDeploy();
+        FileUtils.fileWrite(new File(staging, "index.html"), "second");
+        mojo.gitSiteDeploy();
+        mojo.gitSiteDeploy();
+
+        Assert.assertEquals("second", git(remote, "show", "gitsite:index.html"));
+        Assert.assertEquals("2", git(remote, "rev-list", "--count", "gitsite"));
+    }
+
+    @Test
+    public void precompress() throws Exception {
+        final File testDir = prepareTestDir("precompress");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        final String large = FileUtils.fileRead(new File("pom.xml"));
+
+        for (String commitMode : Arrays.asList("worktree", "fast-import")) {
+            FileUtils.deleteDirectory(staging);
+            staging.mkdirs();
+            FileUtils.fileWrite(new File(staging, "index.html"), large);
+            FileUtils.fileWrite(new File(staging, "image.png"), large);
+            final GitSiteDeployMojo mojo = createMojo(staging, remote);
+            mojo.commitMode = commitMode;
+            mojo.cacheDirectory = new File(testDir, "cache");
+            mojo.subcontext = "/VERSION/" + commitMode;
+            mojo.precompress = true;
+            mojo.precompressFormats = "gz";
+            mojo.precompressTypes = "html";
+            mojo.precompressMinSize = 1024;
+            mojo.gitSiteDeploy();
+            final String area = "VERSION/" + commitMode + "/";
+            Assert.assertEquals(area + "image.png\n" + area + "index.html\n" + area + "index.html.gz",
+                git(remote, "ls-tree", "-r", "--name-only", "gitsite", area));
+            Assert.assertFalse("the input stays untouched", new File(staging, "index.html.gz").exists());
+            final String metrics = FileUtils.fileRead(mojo.metricsFile);
+            Assert.assertTrue(metrics, metrics.contains("\"filesPrecompressed\": 1"));
+
+            final String commits = git(remote, "rev-list", "--count", "gitsite");
+            mojo.gitSiteDeploy();
+            Assert.assertEquals(commits, git(remote, "rev-list", "--count", "gitsite"));
+            Assert.assertTrue(FileUtils.fileRead(mojo.metricsFile).contains("\"precompressedUpToDate\": 1"));
+
+            // the sibling goes away with its file
+            FileUtils.fileDelete(new File(staging, "index.html").getAbsolutePath());
+            mojo.gitSiteDeploy();
+            Assert.assertEquals(area + "image.png", git(remote, "ls-tree", "-r", "--name-only", "gitsite", area));
+        }
+    }
+
+    @Test
+    public void mirrors() throws Exception {
+        final File testDir = prepareTestDir("mirrors");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File mirror = createBareRepo(new File(testDir, "mirror.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        FileUtils.fileWrite(new File(staging, "index.html"), "first");
+
+        for (String commitMode : Arrays.asList("worktree", "fast-import")) {
+            final GitSiteDeployMojo mojo = createMojo(staging, remote);
+            mojo.commitMode = commitMode;
+            mojo.gitScmUrl += ", scm:git:file://" + mirror.getAbsolutePath() + ",scm:git:file://" + new File(testDir, "missing.git").getAbsolutePath();
+            mojo.mirrorPushTimeout = 60;
+            FileUtils.fileWrite(new File(staging, "index.html"), commitMode);
+            mojo.gitSiteDeploy();
+            Assert.assertEquals(git(remote, "rev-parse", "gitsite"), git(mirror, "rev-parse", "gitsite"));
+            Assert.assertEquals(commitMode, git(mirror, "show", "gitsite:index.html"));
+            final String metrics = FileUtils.fileRead(mojo.metricsFile);
+            Assert.assertTrue(metrics, metrics.contains("\"mirrorsPushed\": 1"));
+            Assert.assertTrue(metrics, metrics.contains("\"mirrorsFailed\": 1"));
+
+            mojo.mirrorsRequired = true;
+            FileUtils.fileWrite(new File(staging, "index.html"), "required");
+            try {
+                mojo.gitSiteDeploy();
+                Assert.fail("failed mirror must fail the deployment");
+            } catch (MojoExecutionException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals(git(remote, "rev-parse", "gitsite"), git(mirror, "rev-parse", "gitsite"));
+    }
+
+    @Test
+    public void mirrorsFollowAcceptedPushOnly() throws Exception {
+        final File testDir = prepareTestDir("mirrorsFollowAcceptedPushOnly");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File mirror = createBareRepo(new File(testDir, "mirror.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        final File hook = new File(remote, "hooks/pre-receive");
+
+        for (String commitMode : Arrays.asList("worktree", "fast-import")) {
+            final GitSiteDeployMojo mojo = createMojo(staging, remote);
+            mojo.commitMode = commitMode;
+            mojo.gitScmUrl += ",scm:git:file://" + mirror.getAbsolutePath();
+            mojo.pushAttempts = 1;
+            mojo.cacheDirectory = new File(testDir, "cache");
+            for (String content : Arrays.asList("first", "second")) {
+                FileUtils.fileWrite(new File(staging, "index.html"), commitMode + " " + content);
+                mojo.gitSiteDeploy();
+            }
+            final String mirrored = git(mirror, "rev-parse", "gitsite");
+            Assert.assertEquals(git(remote, "rev-parse", "gitsite"), mirrored);
+
+            // the branch moves right before our push is received, so the primary push is rejected
+            FileUtils.fileWrite(hook, "#!/bin/sh\n"
+                + "cat >/dev/null\n"
+                + "env -u GIT_QUARANTINE_PATH git update-ref refs/heads/gitsite refs/heads/gitsite~1\n");
+            hook.setExecutable(true);
+            FileUtils.fileWrite(new File(staging, "index.html"), commitMode + " rejected");
+            try {
+                mojo.gitSiteDeploy();
+                Assert.fail("push rejected with no attempts left must fail");
+            } catch (MojoExecutionException e) {
+                // expected
+            }
+            Assert.assertEquals(commitMode, mirrored, git(mirror, "rev-parse", "gitsite"));
+            Assert.assertFalse(FileUtils.fileRead(mojo.metricsFile).contains("mirrorsPushed"));
+            FileUtils.fileDelete(hook.getAbsolutePath());
+        }
+    }
+
+    @Test
+    public void prefetchInMultiModuleReactor() throws Exception {
+        final File testDir = prepareTestDir("prefetch");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        FileUtils.fileWrite(new File(staging, "index.html"), "prefetched");
+
+        final MavenProject root = createProject("root");
+        root.setExecutionRoot(true);
+        final MavenProject moduleA = createProject("module-a");
+        final MavenProject moduleB = createProject("module-b");
+        final List<MavenProject> reactorProjects = Arrays.asList(root, moduleA, moduleB);
+        final SessionData sessionData = new DefaultSessionData();
+
+        // parallel builds may complete modules in any order; root always goes first as it is the parent
+        for (MavenProject project : Arrays.asList(root, moduleB, moduleA)) {
+            final GitSiteDeployMojo mojo = createMojo(staging, remote);
+            mojo.prefetch = true;
+            mojo.project = project;
+            mojo.reactorProjects = reactorProjects;
+            mojo.mojoExecution = new MojoExecution((Plugin) project.getBuildPlugins().get(0), "deploy", "gitsite-deploy");
+            Assert.assertEquals("nothing deployed before the last module", "", git(remote, "branch", "--list", "gitsite"));
+            mojo.execute(testDir.getPath(), sessionData);
+        }
+
+        Assert.assertEquals("prefetched", git(remote, "show", "gitsite:index.html"));
+        Assert.assertEquals("1", git(remote, "rev-list", "--count", "gitsite"));
+        // the background clone and the deployment write one log
+        final String log = FileUtils.fileRead(new File(testDir, "gitsite-deploy.log"));
+        Assert.assertTrue(log, log.indexOf("'clone'") >= 0 && log.indexOf("'clone'") < log.indexOf("'push'"));
+    }
+
+    @Test
+    public void prefetchAbandonedAtSessionEnd() throws Exception {
+        final File testDir = prepareTestDir("prefetch-abandoned");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+
+        final MavenProject root = createProject("root");
+        root.setExecutionRoot(true);
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.prefetch = true;
+        mojo.project = root;
+        mojo.reactorProjects = Arrays.asList(root, createProject("failing-module"));
+        mojo.mojoExecution = new MojoExecution((Plugin) root.getBuildPlugins().get(0), "deploy", "gitsite-deploy");
+        mojo.execute(testDir.getPath(), new DefaultSessionData());
+        Assert.assertNotNull(mojo.getSessionAttribute("prefetch"));
+
+        mojo.sessionEnded();
+        Assert.assertNull(mojo.getSessionAttribute("prefetch"));
+        Assert.assertFalse("the work clone is removed", new File(testDir, "staging.work").exists());
+    }
+
+    @Test
+    public void participantsMatchExecutionId() throws Exception {
+        final File testDir = prepareTestDir("participants");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        FileUtils.fileWrite(new File(staging, "index.html"), "participants");
+
+        final MavenProject root = createProject("root");
+        root.setExecutionRoot(true);
+        final MavenProject module = createProject("module");
+        // same goal, but within another execution; it does not take part in the countdown of ours
+        final MavenProject other = createProject("other", "gitsite-other");
+        final List<MavenProject> reactorProjects = Arrays.asList(root, module, other);
+        final SessionData sessionData = new DefaultSessionData();
+        for (MavenProject project : Arrays.asList(root, module)) {
+            final GitSiteDeployMojo mojo = createMojo(staging, remote);
+            mojo.project = project;
+            mojo.reactorProjects = reactorProjects;
+            mojo.mojoExecution = new MojoExecution((Plugin) root.getBuildPlugins().get(0), "deploy", "gitsite-deploy");
+            mojo.execute(testDir.getPath(), sessionData);
+        }
+        Assert.assertEquals("participants", git(remote, "show", "gitsite:index.html"));
+    }
+
+    @Test
+    public void unfinishedCountdownReported() throws Exception {
+        final File testDir = prepareTestDir("unfinished");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+
+        final MavenProject root = createProject("root");
+        root.setExecutionRoot(true);
+        final GitSiteDeployMojo mojo = createMojo(staging, remote);
+        mojo.project = root;
+        mojo.reactorProjects = Arrays.asList(root, createProject("failing-module"));
+        mojo.mojoExecution = new MojoExecution((Plugin) root.getBuildPlugins().get(0), "deploy", "gitsite-deploy");
+        final StringBuilder errors = new StringBuilder();
+        mojo.setLog(new SystemStreamLog() {
+            @Override
+            public void error(CharSequence content) {
+                errors.append(content);
+            }
+        });
+        mojo.execute(testDir.getPath(), new DefaultSessionData());
+
+        mojo.sessionEnded();
+        Assert.assertTrue(errors.toString(), errors.toString().startsWith("1 of 2 module(s) did not complete deploy (gitsite-deploy)"));
+        Assert.assertEquals("nothing deployed", "", git(remote, "branch", "--list", "gitsite"));
+    }
+
+    @Test
+    public void lastModuleUsesParametersOfRootModule() throws Exception {
+        final SessionData sessionData = new DefaultSessionData();
+        final List<MavenProject> reactorProjects = Arrays.asList(createProject("root"), createProject("module"));
+        final GitSiteWatchMojo root = new GitSiteWatchMojo();
+        root.reactorProjects = reactorProjects;
+        root.sessionData = sessionData;
+        root.gitBranch = "from-root";
+        root.pushAttempts = 7;
+        root.watchDebounce = 123;
+        root.saveParameters();
+
+        final GitSiteWatchMojo last = new GitSiteWatchMojo();
+        last.reactorProjects = reactorProjects;
+        last.sessionData = sessionData;
+        last.gitBranch = "from-last";
+        last.loadParameters();
+        Assert.assertEquals("from-root", last.gitBranch);
+        Assert.assertEquals(7, last.pushAttempts);
+        Assert.assertEquals(123, last.watchDebounce);
+    }
+
+    static MavenProject createProject(String artifactId) {
+        return createProject(artifactId, "gitsite-deploy");
+    }
+
+    static MavenProject createProject(String artifactId, String executionId) {
+        final MavenProject project = new MavenProject();
+        project.setArtifactId(artifactId);
+        final PluginExecution execution = new PluginExecution();
+        execution.setId(executionId);
+        execution.addGoal("deploy");
+        final Plugin plugin = new Plugin();
+        plugin.setGroupId("net.kozelka.maven");
+        plugin.setArtifactId("gitsite-maven-plugin");
+        plugin.addExecution(execution);
+        final Build build = new Build();
+        build.addPlugin(plugin);
+        project.getModel().setBuild(build);
+        return project;
+    }
+
+    static File prepareTestDir(String name) throws Exception {
+        final File testDir = new File("target/test-work/" + name).getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        testDir.mkdirs();
+        return testDir;
+    }
+
+    static File createBareRepo(File dir) throws Exception {
+        new ShellExecutor().exec("git", "init", "--bare", dir.getAbsolutePath());
+        return dir;
+    }
+
+    static GitSiteDeployMojo createMojo(File staging, File remote) {
+        return configureMojo(new GitSiteDeployMojo(), staging, remote);
+    }
+
+    static <T extends GitSiteDeployMojo> T configureMojo(T mojo, File staging, File remote) {
+        mojo.inputDirectory = staging;
+        mojo.gitBranch = "gitsite";
+        mojo.gitScmUrl = "scm:git:file://" + remote.getAbsolutePath();
+        mojo.keepHistory = true;
+        mojo.commitMessage = "Publishing test site with %d files";
+        mojo.logfile = new File(staging.getParentFile(), "gitsite-deploy.log");
+        mojo.metricsFile = new File(staging.getParentFile(), "gitsite-deploy-metrics.json");
+        mojo.index = ".gitsite.index.txt";
+        mojo.roots = "VERSION,BRANCH";
+        mojo.commitMode = "worktree";
+        mojo.gitBackend = "cli";
+        mojo.statCache = true;
+        return mojo;
+    }
+
+    static String git(File gitDir, String... args) throws Exception {
+        final ShellExecutor shell = new ShellExecutor();
+        shell.setWorkingDirectory(gitDir);
+        final ShellExecutor.Result result = shell.execWithResult("git", args);
+        Assert.assertEquals(0, result.getExitCode());
+        final StringBuilder sb = new StringBuilder();
+        for (String line : result.getStdoutLines()) {
+            if (sb.length() > 0) {
+                sb.append("\n");
+            }
+            sb.append(line);
+        }
+        return sb.toString();
+    }
 }
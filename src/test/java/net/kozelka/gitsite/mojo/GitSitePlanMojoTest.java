@@ -0,0 +1,121 @@
+package net.kozelka.gitsite.mojo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import net.kozelka.gitsite.sync.SitePlan;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static net.kozelka.gitsite.mojo.GitSiteDeployMojoTest.configureMojo;
+import static net.kozelka.gitsite.mojo.GitSiteDeployMojoTest.createBareRepo;
+import static net.kozelka.gitsite.mojo.GitSiteDeployMojoTest.createMojo;
+import static net.kozelka.gitsite.mojo.GitSiteDeployMojoTest.git;
+import static net.kozelka.gitsite.mojo.GitSiteDeployMojoTest.prepareTestDir;
+
+public class GitSitePlanMojoTest {
+    @Test
+    public void planWithoutPublishing() throws Exception {
+        final File testDir = prepareTestDir("plan");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        new File(staging, "old").mkdirs();
+        FileUtils.fileWrite(new File(staging, "index.html"), "first");
+        FileUtils.fileWrite(new File(staging, "same.html"), "same");
+        FileUtils.fileWrite(new File(staging, "old/page.html"), "old");
+        final File versioned = new File(testDir, "versioned");
+        versioned.mkdirs();
+        FileUtils.fileWrite(new File(versioned, "index.html"), "1.0");
+        final GitSiteDeployMojo deployMojo = createMojo(staging, remote);
+        deployMojo.gitSiteDeploy();
+        deployMojo.subcontext = "/VERSION/1.0";
+        deployMojo.inputDirectory = versioned;
+        deployMojo.gitSiteDeploy();
+        final String tip = git(remote, "rev-parse", "gitsite");
+
+        FileUtils.fileWrite(new File(staging, "index.html"), "second");
+        FileUtils.fileWrite(new File(staging, "new.html"), "same");
+        FileUtils.deleteDirectory(new File(staging, "old"));
+        final GitSitePlanMojo mojo = configureMojo(new GitSitePlanMojo(), staging, remote);
+        mojo.planFile = new File(testDir, "gitsite-plan.json");
+        mojo.subcontext = "/BRANCH/feature";
+        final SitePlan plan = mojo.gitSitePlan();
+        Assert.assertEquals(Arrays.asList("BRANCH/feature/index.html", "BRANCH/feature/new.html", "BRANCH/feature/same.html"),
+            new ArrayList<String>(plan.getAdded()));
+        Assert.assertEquals(Collections.singletonList("/BRANCH/feature"), new ArrayList<String>(plan.getIndexAdded()));
+
+        mojo.subcontext = null;
+        final SitePlan rootPlan = mojo.gitSitePlan();
+        Assert.assertEquals(Collections.singleton("new.html"), rootPlan.getAdded());
+        Assert.assertEquals(Collections.singleton("index.html"), rootPlan.getChanged());
+        Assert.assertEquals(Collections.singleton("old/page.html"), rootPlan.getDeleted());
+        Assert.assertEquals(1, rootPlan.getUnchanged());
+        Assert.assertEquals(Collections.singletonMap("VERSION", 1), rootPlan.getProtectedFiles());
+        // new.html has the content of same.html, which is in the branch already
+        Assert.assertEquals("second".length(), rootPlan.getBytesToPush());
+        Assert.assertTrue(rootPlan.getIndexAdded().isEmpty());
+        final String json = FileUtils.fileRead(mojo.planFile);
+        Assert.assertTrue(json, json.contains("\"deleted\": [\"old/page.html\"]"));
+        Assert.assertTrue(json, json.contains("\"bytesToPush\": 6"));
+
+        Assert.assertEquals(tip, git(remote, "rev-parse", "gitsite"));
+        Assert.assertFalse(new File(testDir, "staging.git/refs/gitsite").exists());
+    }
+
+    @Test
+    public void crlfFollowsCommitMode() throws Exception {
+        final File testDir = prepareTestDir("planCrlf");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        final StringBuilder lines = new StringBuilder();
+        while (lines.length() < 100000) {
+            lines.append("line ").append(lines.length()).append("\r\n");
+        }
+        FileUtils.fileWrite(new File(staging, "page.txt"), lines.toString());
+        createMojo(staging, remote).gitSiteDeploy();
+
+        final GitSitePlanMojo mojo = configureMojo(new GitSitePlanMojo(), staging, remote);
+        mojo.planFile = new File(testDir, "gitsite-plan.json");
+        final SitePlan plan = mojo.gitSitePlan();
+        Assert.assertFalse(plan.hasChanges());
+        Assert.assertEquals(1, plan.getUnchanged());
+
+        // fast-import would commit the CRLF line endings as they are
+        mojo.commitMode = "fast-import";
+        Assert.assertEquals(Collections.singleton("page.txt"), mojo.gitSitePlan().getChanged());
+    }
+
+    @Test
+    public void precompressedSiblingsArePending() throws Exception {
+        final File testDir = prepareTestDir("planPrecompress");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        final String large = FileUtils.fileRead(new File("pom.xml"));
+        FileUtils.fileWrite(new File(staging, "index.html"), large);
+        final GitSiteDeployMojo deployMojo = createMojo(staging, remote);
+        deployMojo.precompress = true;
+        deployMojo.precompressFormats = "gz";
+        deployMojo.precompressTypes = "html";
+        deployMojo.precompressMinSize = 1024;
+        deployMojo.gitSiteDeploy();
+        Assert.assertEquals("index.html.gz", git(remote, "ls-tree", "--name-only", "gitsite", "index.html.gz"));
+
+        FileUtils.fileWrite(new File(staging, "page.html"), large);
+        final GitSitePlanMojo mojo = configureMojo(new GitSitePlanMojo(), staging, remote);
+        mojo.planFile = new File(testDir, "gitsite-plan.json");
+        mojo.precompress = true;
+        mojo.precompressFormats = "gz";
+        mojo.precompressTypes = "html";
+        mojo.precompressMinSize = 1024;
+        final SitePlan plan = mojo.gitSitePlan();
+        Assert.assertEquals(Collections.singleton("page.html"), plan.getAdded());
+        Assert.assertEquals(Arrays.asList("index.html.gz", "page.html.gz"), new ArrayList<String>(plan.getPending()));
+        Assert.assertTrue(plan.getDeleted().isEmpty());
+        Assert.assertFalse(new File(staging, "index.html.gz").exists());
+        Assert.assertFalse(new File(staging, "page.html.gz").exists());
+    }
+}
@@ -0,0 +1,95 @@
+package net.kozelka.gitsite.mojo;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static net.kozelka.gitsite.mojo.GitSiteDeployMojoTest.configureMojo;
+import static net.kozelka.gitsite.mojo.GitSiteDeployMojoTest.createBareRepo;
+import static net.kozelka.gitsite.mojo.GitSiteDeployMojoTest.git;
+import static net.kozelka.gitsite.mojo.GitSiteDeployMojoTest.prepareTestDir;
+
+public class GitSiteWatchMojoTest {
+    private static final long TIMEOUT = 60000;
+
+    @Test
+    public void publishesChanges() throws Exception {
+        final File testDir = prepareTestDir("watch");
+        final File remote = createBareRepo(new File(testDir, "remote.git"));
+        final File staging = new File(testDir, "staging");
+        staging.mkdirs();
+        FileUtils.fileWrite(new File(staging, "index.html"), "first");
+        new File(staging, "old").mkdirs();
+        FileUtils.fileWrite(new File(staging, "old/page.html"), "old");
+
+        final GitSiteWatchMojo mojo = configureMojo(new GitSiteWatchMojo(), staging, remote);
+        mojo.watchInterval = 200;
+        mojo.watchDebounce = 100;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread thread = new Thread("watch") {
+            @Override
+            public void run() {
+                try {
+                    mojo.gitSiteWatch();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        thread.start();
+        try {
+            awaitCommits(remote, 1);
+            Assert.assertEquals("first", git(remote, "show", "gitsite:index.html"));
+
+            FileUtils.fileWrite(new File(staging, "index.html"), "second");
+            new File(staging, "new").mkdirs();
+            FileUtils.fileWrite(new File(staging, "new/page.html"), "new");
+            FileUtils.deleteDirectory(new File(staging, "old"));
+            // changes made at once may still come in more than one batch
+            awaitFiles(remote, "index.html\nnew/page.html");
+            awaitContent(remote, "gitsite:index.html", "second");
+            Assert.assertTrue(git(remote, "log", "-1", "--format=%s", "gitsite").endsWith("with 2 files"));
+        } finally {
+            thread.interrupt();
+            thread.join(TIMEOUT);
+        }
+        Assert.assertNull(failure.get());
+        Assert.assertFalse(thread.isAlive());
+    }
+
+    private static void awaitFiles(File remote, String files) throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (files.equals(git(remote, "ls-tree", "-r", "--name-only", "gitsite", "--", "index.html", "new", "old"))) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        Assert.fail("Timed out waiting for " + files);
+    }
+
+    private static void awaitCommits(File remote, int count) throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (!git(remote, "branch", "--list", "gitsite").isEmpty()
+                && Integer.parseInt(git(remote, "rev-list", "--count", "gitsite")) >= count) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        Assert.fail("Timed out waiting for " + count + " commits");
+    }
+
+    private static void awaitContent(File remote, String object, String content) throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (content.equals(git(remote, "show", object))) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        Assert.fail("Timed out waiting for " + object);
+    }
+}
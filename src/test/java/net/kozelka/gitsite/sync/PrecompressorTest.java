@@ -0,0 +1,102 @@
+package net.kozelka.gitsite.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrecompressorTest {
+    @Test
+    public void writesOutdatedSiblings() throws Exception {
+        final File testDir = new File("target/test-work/PrecompressorTest").getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        final String large = FileUtils.fileRead(new File("pom.xml"));
+        final File index = write(testDir, "index.html", large);
+        write(testDir, "css/site.css", large);
+        write(testDir, "small.html", "small");
+        write(testDir, "image.png", large);
+        write(testDir, "VERSION/1.0/index.html", large);
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        final Precompressor precompressor = new Precompressor(Collections.singleton(Precompressor.GZIP), Arrays.asList("html", "CSS"), 100, pool);
+
+        final Precompressor.Stats stats = precompressor.compress(testDir, Collections.singleton("VERSION"));
+        Assert.assertEquals(Arrays.asList("css/site.css.gz", "index.html.gz"), sorted(stats.getWritten()));
+        final File indexGz = new File(testDir, "index.html.gz");
+        Assert.assertEquals(large, gunzip(indexGz));
+        Assert.assertEquals(index.lastModified(), indexGz.lastModified());
+        Assert.assertFalse(new File(testDir, "small.html.gz").exists());
+        Assert.assertFalse(new File(testDir, "image.png.gz").exists());
+        Assert.assertFalse(new File(testDir, "VERSION/1.0/index.html.gz").exists());
+
+        final byte[] compressed = Files.readAllBytes(indexGz.toPath());
+        final Precompressor.Stats again = precompressor.compress(testDir, Collections.singleton("VERSION"));
+        Assert.assertTrue(again.getWritten().isEmpty());
+        Assert.assertEquals(2, again.getUpToDate());
+        pool.shutdown();
+
+        // the same content gives the same sibling
+        index.setLastModified(index.lastModified() - 10000);
+        final Precompressor.Stats touched = new Precompressor(Collections.singleton(Precompressor.GZIP), Collections.singleton("html"), 100, null)
+            .compress(testDir, Collections.<String>emptyList());
+        Assert.assertEquals(Arrays.asList("VERSION/1.0/index.html.gz", "index.html.gz"), sorted(touched.getWritten()));
+        Assert.assertArrayEquals(compressed, Files.readAllBytes(indexGz.toPath()));
+    }
+
+    @Test
+    public void writesSiblingsIntoSeparateDirectory() throws Exception {
+        final File testDir = new File("target/test-work/PrecompressorTest-separate").getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        final File source = new File(testDir, "source");
+        final File target = new File(testDir, "target");
+        final String large = FileUtils.fileRead(new File("pom.xml"));
+        write(source, "index.html", large);
+        final File page = write(source, "sub/page.html", large);
+        write(source, "VERSION/1.0/index.html", large);
+        final Precompressor precompressor = new Precompressor(Collections.singleton(Precompressor.GZIP), Collections.singleton("html"), 100, null);
+        Assert.assertEquals(Arrays.asList("index.html.gz", "sub/page.html.gz"), sorted(precompressor.listSiblings(source, Collections.singleton("VERSION"))));
+        Assert.assertFalse("listing writes nothing", target.exists());
+
+        final Precompressor.Stats stats = precompressor.compress(source, target, Collections.singleton("VERSION"));
+        Assert.assertEquals(Arrays.asList("index.html.gz", "sub/page.html.gz"), sorted(stats.getWritten()));
+        Assert.assertEquals(large, gunzip(new File(target, "sub/page.html.gz")));
+        Assert.assertFalse(new File(source, "index.html.gz").exists());
+
+        // siblings of deleted files are deleted too
+        FileUtils.fileDelete(page.getAbsolutePath());
+        final Precompressor.Stats again = precompressor.compress(source, target, Collections.singleton("VERSION"));
+        Assert.assertEquals(1, again.getUpToDate());
+        Assert.assertEquals(1, again.getRemoved());
+        Assert.assertFalse(new File(target, "sub/page.html.gz").exists());
+    }
+
+    private static List<String> sorted(List<String> paths) {
+        final List<String> copy = new ArrayList<String>(paths);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static String gunzip(File file) throws Exception {
+        final GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            return IOUtil.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File write(File dir, String path, String content) throws Exception {
+        final File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite(file, content);
+        return file;
+    }
+}
@@ -0,0 +1,219 @@
+package net.kozelka.gitsite.sync;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SiteSyncTest {
+    @Test
+    public void syncTouchesOnlyDifferences() throws Exception {
+        final File testDir = new File("target/test-work/SiteSyncTest").getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        final File source = new File(testDir, "source");
+        final File target = new File(testDir, "target");
+        write(source, "same.html", "same");
+        write(source, "changed.html", "new content");
+        write(source, "added/page.html", "added");
+        write(target, "same.html", "same");
+        write(target, "changed.html", "old content");
+        write(target, "removed/page.html", "removed");
+        write(target, "VERSION/1.0/index.html", "protected");
+        write(source, "turned/into/directory.html", "dir");
+        write(target, "turned", "file");
+        write(source, "flattened", "file");
+        write(target, "flattened/a.html", "a");
+        write(target, "flattened/b/c.html", "c");
+        final File same = new File(target, "same.html");
+        same.setLastModified(1000000000000L);
+
+        final SiteSync.Stats stats = new SiteSync(Arrays.asList(".git", "VERSION")).sync(source, target);
+
+        Assert.assertEquals(3, stats.getAdded());
+        Assert.assertEquals(1, stats.getChanged());
+        Assert.assertEquals(4, stats.getDeleted());
+        Assert.assertEquals(1, stats.getUnchanged());
+        Assert.assertEquals(5, stats.getFileCount());
+        Assert.assertEquals(5, SiteScan.of(source).getFiles());
+        Assert.assertEquals(SiteScan.of(source).getBytes(), stats.getBytes());
+        Assert.assertEquals(1000000000000L, same.lastModified());
+        Assert.assertEquals("new content", FileUtils.fileRead(new File(target, "changed.html")));
+        Assert.assertTrue(new File(target, "added/page.html").isFile());
+        Assert.assertFalse(new File(target, "removed").exists());
+        Assert.assertTrue(new File(target, "VERSION/1.0/index.html").isFile());
+        Assert.assertEquals("dir", FileUtils.fileRead(new File(target, "turned/into/directory.html")));
+        Assert.assertEquals("file", FileUtils.fileRead(new File(target, "flattened")));
+    }
+
+    @Test
+    public void parallelSyncCopiesLargeFiles() throws Exception {
+        final File testDir = new File("target/test-work/SiteSyncTest-parallel").getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        final File source = new File(testDir, "source");
+        final File target = new File(testDir, "target");
+        final StringBuilder large = new StringBuilder();
+        while (large.length() <= SiteSync.TRANSFER_THRESHOLD) {
+            large.append("large content\n");
+        }
+        write(source, "assets/large.bin", large.toString());
+        for (int i = 0; i < 500; i++) {
+            write(source, String.format("d%d/sub/page%d.html", i % 7, i), "page " + i);
+        }
+        write(target, "d1/stale.html", "stale");
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final SiteSync.Stats stats = new SiteSync(Arrays.asList(".git"), pool).sync(source, target);
+
+            Assert.assertEquals(501, stats.getAdded());
+            Assert.assertEquals(1, stats.getDeleted());
+            Assert.assertEquals(large.toString(), FileUtils.fileRead(new File(target, "assets/large.bin")));
+            Assert.assertEquals("page 499", FileUtils.fileRead(new File(target, "d2/sub/page499.html")));
+            // the pool serves further synchronizations
+            Assert.assertEquals(0, new SiteSync(Arrays.asList(".git"), pool).sync(source, target).getBytesWritten());
+            Assert.assertFalse(pool.isShutdown());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void syncOnlyChangedPaths() throws Exception {
+        final File testDir = new File("target/test-work/SiteSyncTest-changed").getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        final File source = new File(testDir, "source");
+        final File target = new File(testDir, "target");
+        write(source, "changed.html", "new content");
+        write(source, "added/page.html", "added");
+        write(source, "untouched.html", "source");
+        write(target, "changed.html", "old content");
+        write(target, "removed/page.html", "removed");
+        write(target, "untouched.html", "target");
+        write(target, "VERSION/1.0/index.html", "protected");
+
+        final SiteSync.Stats stats = new SiteSync(Arrays.asList(".git", "VERSION"))
+            .sync(source, target, Arrays.asList("changed.html", "added", "added/page.html", "removed", "VERSION"));
+
+        Assert.assertEquals(1, stats.getAdded());
+        Assert.assertEquals(1, stats.getChanged());
+        Assert.assertEquals(1, stats.getDeleted());
+        Assert.assertEquals("new content", FileUtils.fileRead(new File(target, "changed.html")));
+        Assert.assertEquals("added", FileUtils.fileRead(new File(target, "added/page.html")));
+        Assert.assertFalse(new File(target, "removed").exists());
+        Assert.assertEquals("target", FileUtils.fileRead(new File(target, "untouched.html")));
+        Assert.assertTrue(new File(target, "VERSION/1.0/index.html").isFile());
+    }
+
+    @Test
+    public void siblingsFollowTheirFiles() throws Exception {
+        final File testDir = new File("target/test-work/SiteSyncTest-siblings").getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        final File source = new File(testDir, "source");
+        final File target = new File(testDir, "target");
+        write(source, "kept.html", "kept");
+        write(source, "sub/page.html", "page");
+        write(target, "kept.html", "kept");
+        write(target, "kept.html.gz", "sibling");
+        write(target, "kept.html.br", "sibling");
+        write(target, "removed.html.gz", "sibling of a removed file");
+        write(target, "sub/page.html", "page");
+        write(target, "sub/page.html.gz", "sibling");
+        write(target, "sub/gone.html", "gone");
+        write(target, "sub/gone.html.gz", "sibling");
+
+        final SiteSync sync = new SiteSync(Arrays.asList(".git"));
+        sync.setSiblingExtensions(Arrays.asList("gz"));
+        sync.sync(source, target);
+        Assert.assertTrue(new File(target, "kept.html.gz").isFile());
+        Assert.assertFalse(new File(target, "kept.html.br").exists());
+        Assert.assertFalse(new File(target, "removed.html.gz").exists());
+        Assert.assertFalse(new File(target, "sub/gone.html.gz").exists());
+
+        // a file deleted from the source takes its siblings along
+        FileUtils.fileDelete(new File(source, "sub/page.html").getAbsolutePath());
+        Assert.assertEquals(1, sync.sync(source, target, Arrays.asList("sub/page.html")).getDeleted());
+        Assert.assertFalse(new File(target, "sub/page.html.gz").exists());
+        Assert.assertTrue(new File(target, "kept.html.gz").isFile());
+    }
+
+    @Test
+    public void statCacheSkipsUnchangedFiles() throws Exception {
+        final File testDir = new File("target/test-work/SiteSyncTest-statCache").getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        final File source = new File(testDir, "source");
+        final File target = new File(testDir, "target");
+        final File cacheFile = new File(testDir, "stat-cache");
+        final long past = System.currentTimeMillis() - 60000;
+        for (int i = 0; i < 20; i++) {
+            write(source, "page" + i + ".html", "page " + i).setLastModified(past);
+        }
+        write(target, "VERSION/1.0/index.html", "protected");
+
+        StatCache cache = StatCache.open(cacheFile);
+        final SiteSync sync = new SiteSync(Arrays.asList("VERSION"));
+        sync.setStatCache(cache, "");
+        Assert.assertEquals(20, sync.sync(source, target).getAdded());
+        cache.save();
+
+        // changed content of the same size and time is not noticed - that is the deal
+        write(source, "page1.html", "PAGE 1").setLastModified(past);
+        write(source, "page2.html", "page 2 changed");
+        write(target, "page3.html", "page X");
+        cache = StatCache.open(cacheFile);
+        sync.setStatCache(cache, "");
+        SiteSync.Stats stats = sync.sync(source, target);
+        Assert.assertEquals(18, stats.getStatHits());
+        Assert.assertEquals(2, stats.getChanged());
+        Assert.assertEquals("page 1", FileUtils.fileRead(new File(target, "page1.html")));
+        Assert.assertEquals("page 3", FileUtils.fileRead(new File(target, "page3.html")));
+        Assert.assertEquals(GitBlobHash.hash(new File(source, "page3.html")), cache.lookup("page3.html").getBlobId());
+        cache.put("VERSION/1.0/index.html", 9, past, StatCache.UNKNOWN, null);
+        cache.save();
+
+        // deleted files drop out of the cache, protected roots stay; page2 is too recent to be trusted
+        FileUtils.fileDelete(new File(source, "page0.html").getAbsolutePath());
+        cache = StatCache.open(cacheFile);
+        sync.setStatCache(cache, "");
+        stats = sync.sync(source, target);
+        Assert.assertEquals(19, stats.getFileCount());
+        Assert.assertEquals(18, stats.getStatHits());
+        cache.save();
+        cache = StatCache.open(cacheFile);
+        Assert.assertNull(cache.lookup("page0.html"));
+        Assert.assertNotNull(cache.lookup("page19.html"));
+        Assert.assertNotNull(cache.lookup("VERSION/1.0/index.html"));
+
+        // a broken cache is an empty cache
+        FileUtils.fileWrite(cacheFile, "garbage");
+        cache = StatCache.open(cacheFile);
+        Assert.assertNull(cache.lookup("page19.html"));
+        sync.setStatCache(cache, "");
+        Assert.assertEquals(0, sync.sync(source, target).getStatHits());
+    }
+
+    @Test
+    public void blobHashMatchesGit() throws Exception {
+        final File testDir = new File("target/test-work/SiteSyncTest-hash").getAbsoluteFile();
+        FileUtils.deleteDirectory(testDir);
+        final File file = write(testDir, "hello.txt", "hello\n");
+        // git hash-object hello.txt
+        Assert.assertEquals("ce013625030ba8dba906f756967f9e9ca394464a", GitBlobHash.hash(file));
+        Assert.assertEquals("ce013625030ba8dba906f756967f9e9ca394464a", GitBlobHash.hashText(file));
+        // git stores text files with LF line endings, under "* text=auto"
+        Assert.assertEquals("ce013625030ba8dba906f756967f9e9ca394464a", GitBlobHash.hashText(write(testDir, "crlf.txt", "hello\r\n")));
+        // binary files are left as they are
+        for (String binary : Arrays.asList("hello\r\n\0", "hello\rworld\r\n", "hello\r\n\r")) {
+            final File binaryFile = write(testDir, "binary.bin", binary);
+            Assert.assertEquals(GitBlobHash.hash(binaryFile), GitBlobHash.hashText(binaryFile));
+        }
+    }
+
+    private static File write(File dir, String path, String content) throws Exception {
+        final File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite(file, content);
+        return file;
+    }
+}
@@ -0,0 +1,74 @@
+package net.kozelka.gitsite.utils;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncFileLogTest {
+
+    @Test
+    public void writesAllLinesAndRotates() throws Exception {
+        final File dir = new File("target/test-work/asyncFileLog");
+        FileUtils.deleteDirectory(dir);
+        final File file = new File(dir, "deploy.log");
+        final AsyncFileLog log = new AsyncFileLog(file, 1000, new SystemStreamLog());
+        for (int i = 0; i < 100; i++) {
+            log.log("INFO", "line " + i);
+        }
+        log.close();
+        log.log("INFO", "ignored after close");
+
+        final File rotated = new File(dir, "deploy.log.1");
+        Assert.assertTrue(rotated.isFile());
+        Assert.assertTrue(file.length() <= 1000);
+        final String current = FileUtils.fileRead(file, "UTF-8");
+        Assert.assertTrue(current, current.endsWith(String.format("  INFO line 99%n")));
+        Assert.assertFalse(current.contains("ignored"));
+        Assert.assertTrue(FileUtils.fileRead(rotated, "UTF-8").contains("line "));
+    }
+
+    @Test
+    public void rotatesByEncodedSize() throws Exception {
+        final File dir = new File("target/test-work/asyncFileLog-utf8");
+        FileUtils.deleteDirectory(dir);
+        final File file = new File(dir, "deploy.log");
+        final AsyncFileLog log = new AsyncFileLog(file, 1000, new SystemStreamLog());
+        // each line takes more bytes than characters
+        final String line = "\u017elu\u0165ou\u010dk\u00fd k\u016f\u0148 \u2713\u2713\u2713\u2713";
+        for (int i = 0; i < 100; i++) {
+            log.log("INFO", line);
+        }
+        log.close();
+
+        final long lineBytes = String.format("%6s %s%n", "INFO", line).getBytes("UTF-8").length;
+        Assert.assertTrue(new File(dir, "deploy.log.1").length() < 1000 + lineBytes);
+        Assert.assertTrue(file.length() < 1000 + lineBytes);
+    }
+
+    @Test
+    public void failureReportedOnceAndLinesDropped() throws Exception {
+        final File dir = new File("target/test-work/asyncFileLog-failure");
+        FileUtils.deleteDirectory(dir);
+        // a directory in place of the file cannot be written
+        final File file = new File(dir, "deploy.log");
+        file.mkdirs();
+        final AtomicInteger warnings = new AtomicInteger();
+        final AsyncFileLog log = new AsyncFileLog(file, 0, new SystemStreamLog() {
+            @Override
+            public void warn(CharSequence content) {
+                warnings.incrementAndGet();
+            }
+        });
+        log.log("INFO", "first line fails");
+        log.flush();
+        // many more lines than the queue holds, none of them waits for the failed writer
+        for (int i = 0; i < 100000; i++) {
+            log.log("INFO", "line " + i);
+        }
+        log.close();
+        Assert.assertEquals(1, warnings.get());
+    }
+}
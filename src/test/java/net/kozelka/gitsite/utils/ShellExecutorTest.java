@@ -0,0 +1,31 @@
+package net.kozelka.gitsite.utils;
+
+import java.util.regex.Pattern;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShellExecutorTest {
+
+    @Test
+    public void boundedResultKeepsTailAndWatchedMatches() throws Exception {
+        final ShellExecutor shell = new ShellExecutor();
+        final StreamConsumer quiet = new StreamConsumer() {
+            public void consumeLine(String line) {
+            }
+        };
+        shell.setInfo(quiet);
+        shell.setStdout(quiet);
+        shell.setStderr(quiet);
+        final Pattern first = Pattern.compile("line 1");
+        final Pattern missing = Pattern.compile("line 0");
+        final ShellExecutor.Result result = new ShellExecutor.Result(3).watchStdout(first).watchStdout(missing);
+        shell.execWithResult(result, "sh", "-c", "for i in $(seq 1 1000); do echo \"Line $i\"; done");
+        Assert.assertEquals(0, result.getExitCode());
+        Assert.assertEquals("[Line 998, Line 999, Line 1000]", result.getStdoutLines().toString());
+        Assert.assertTrue(result.stdoutContains(first));
+        Assert.assertFalse(result.stdoutContains(missing));
+        Assert.assertTrue(result.stdoutContains(Pattern.compile("line 999")));
+        Assert.assertFalse(result.stdoutContains(Pattern.compile("line 2")));
+    }
+}